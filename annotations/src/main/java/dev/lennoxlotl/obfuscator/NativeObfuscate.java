@@ -9,9 +9,44 @@ import java.lang.annotation.Target;
  * When a method is annotated with this annotation its contents will be converted into JNI calls.
  * The resulting method's bytecode is removed and replaced with a native method call.
  * <p>
- * Can be applied to a class to obfuscate all the class members.
+ * Can be applied to a class to obfuscate all the class members. The attributes of a class apply to all its methods,
+ * unless a method sets them itself.
  */
 @Target({ElementType.TYPE, ElementType.METHOD})
 @Retention(RetentionPolicy.RUNTIME)
 public @interface NativeObfuscate {
+
+    /**
+     * The optimization level the native code of the class is compiled with. A class is compiled with the fastest
+     * level any of its methods asks for, so a level only applies if all methods of the class agree on it.
+     */
+    Optimization optimization() default Optimization.DEFAULT;
+
+    /**
+     * Resolves the classes, fields and methods the method uses once when it is entered instead of before every
+     * instruction which uses them. Saves a JNI call per access in loops, but classes the method refers to are loaded
+     * and initialized when it is entered, even if it never reaches the instruction using them.
+     */
+    boolean eager() default false;
+
+    /**
+     * Skips the exception checks after field accesses, only null references are still checked. Field accesses never
+     * throw otherwise. Array element accesses keep their exception check, an index out of bounds throws like it does in
+     * bytecode.
+     */
+    boolean unchecked() default false;
+
+    /**
+     * Keeps the method as bytecode, even if its class is annotated or every method is transpiled.
+     */
+    boolean keepBytecode() default false;
+
+    enum Optimization {
+        // The level of the build, -O3
+        DEFAULT,
+        O2,
+        O3,
+        // Optimizes for size, -Os
+        OS
+    }
 }
@@ -0,0 +1,25 @@
+java.sourceCompatibility = JavaVersion.VERSION_17
+java.targetCompatibility = JavaVersion.VERSION_17
+
+dependencies {
+    implementation(project(":obfuscator"))
+
+    implementation("org.ow2.asm:asm:9.6")
+    implementation("org.ow2.asm:asm-tree:9.6")
+
+    implementation("org.openjdk.jmh:jmh-core:1.37")
+    annotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
+// Runs the benchmarks and writes the results to build/results/jmh/results.json, the file can be compared with the
+// results of another commit. Single benchmarks can be selected with -Pjmh=<regex>
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    dependsOn("classes")
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+
+    val results = layout.buildDirectory.file("results/jmh/results.json").get().asFile
+    doFirst { results.parentFile.mkdirs() }
+    args = listOfNotNull(project.findProperty("jmh")?.toString(), "-rf", "json", "-rff", results.absolutePath)
+}
@@ -0,0 +1,99 @@
+package dev.lennoxlotl.obfuscator.benchmarks;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The real-world class files the benchmarks run on.
+ * <p>
+ * The corpus is the ASM core library in the version the obfuscator depends on, it only changes together with the
+ * dependency, so results of different commits stay comparable.
+ */
+final class Corpus {
+
+    private Corpus() {
+    }
+
+    static Path getJar() {
+        try {
+            return Path.of(ClassReader.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException ex) {
+            throw new IllegalStateException("Can't locate the corpus", ex);
+        }
+    }
+
+    /**
+     * @return The class files of the corpus, sorted by their name
+     */
+    static List<byte[]> readClasses() throws IOException {
+        List<byte[]> classes = new ArrayList<>();
+        try (JarFile jar = new JarFile(getJar().toFile())) {
+            List<JarEntry> entries = jar.stream()
+                .filter(entry -> entry.getName().endsWith(".class") && !entry.getName().endsWith("module-info.class"))
+                .sorted(Comparator.comparing(JarEntry::getName))
+                .toList();
+            for (JarEntry entry : entries) {
+                try (InputStream in = jar.getInputStream(entry)) {
+                    classes.add(in.readAllBytes());
+                }
+            }
+        }
+        return classes;
+    }
+
+    static ClassNode readClass(byte[] data) {
+        ClassNode classNode = new ClassNode(Opcodes.ASM7);
+        new ClassReader(data).accept(classNode, 0);
+        return classNode;
+    }
+
+    /**
+     * @return The class names of the corpus
+     */
+    static List<String> readClassNames() throws IOException {
+        return readClasses().stream().map(data -> new ClassReader(data).getClassName()).toList();
+    }
+
+    /**
+     * @return The distinct names, descriptors and string constants of the corpus in their order of appearance, the
+     * strings the transpiler puts into the string pool
+     */
+    static List<String> readStrings() throws IOException {
+        Set<String> strings = new LinkedHashSet<>();
+        for (byte[] data : readClasses()) {
+            ClassNode classNode = readClass(data);
+            strings.add(classNode.name);
+            for (FieldNode field : classNode.fields) {
+                strings.add(field.name);
+                strings.add(field.desc);
+            }
+            for (MethodNode method : classNode.methods) {
+                strings.add(method.name);
+                strings.add(method.desc);
+                for (AbstractInsnNode instruction : method.instructions) {
+                    if (instruction instanceof MethodInsnNode methodInsn) {
+                        strings.add(methodInsn.owner);
+                        strings.add(methodInsn.name);
+                        strings.add(methodInsn.desc);
+                    } else if (instruction instanceof FieldInsnNode fieldInsn) {
+                        strings.add(fieldInsn.owner);
+                        strings.add(fieldInsn.name);
+                        strings.add(fieldInsn.desc);
+                    } else if (instruction instanceof LdcInsnNode ldc && ldc.cst instanceof String value) {
+                        strings.add(value);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(strings);
+    }
+}
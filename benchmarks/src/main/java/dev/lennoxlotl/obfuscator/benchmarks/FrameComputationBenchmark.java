@@ -0,0 +1,134 @@
+package dev.lennoxlotl.obfuscator.benchmarks;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+import org.openjdk.jmh.annotations.*;
+import ru.gravit.launchserver.asm.ClassMetadataReader;
+import ru.gravit.launchserver.asm.SafeClassWriter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Computes the stack map frames of a class whose methods merge types of a synthetic library, every merge looks up the
+ * hierarchy of both types.
+ * <p>
+ * The library consists of independent inheritance chains. The hierarchy is either looked up by one reader for the
+ * whole benchmark, like within a build, or by a new reader for every class.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FrameComputationBenchmark {
+    private static final int CHAINS = 16;
+    private static final int CHAIN_LENGTH = 12;
+    private static final int METHODS = 200;
+    private static final int MERGES_PER_METHOD = 8;
+
+    private Path library;
+    private JarFile libraryJar;
+    private ClassMetadataReader metadataReader;
+    private ClassNode subject;
+
+    @Setup
+    public void setup() throws IOException {
+        library = Files.createTempFile("library", ".jar");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(library))) {
+            for (int chain = 0; chain < CHAINS; chain++) {
+                for (int depth = 0; depth < CHAIN_LENGTH; depth++) {
+                    String superName = depth == 0 ? "java/lang/Object" : getLibraryClass(chain, depth - 1);
+                    writeClass(out, getLibraryClass(chain, depth), superName);
+                }
+            }
+        }
+        libraryJar = new JarFile(library.toFile());
+        metadataReader = new ClassMetadataReader(List.of(libraryJar));
+        subject = createSubject();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        libraryJar.close();
+        Files.deleteIfExists(library);
+    }
+
+    @Benchmark
+    public byte[] computeFrames() {
+        return computeFrames(metadataReader);
+    }
+
+    @Benchmark
+    public byte[] computeFramesColdHierarchy() {
+        return computeFrames(new ClassMetadataReader(List.of(libraryJar)));
+    }
+
+    private byte[] computeFrames(ClassMetadataReader reader) {
+        ClassWriter classWriter = new SafeClassWriter(reader, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        subject.accept(classWriter);
+        return classWriter.toByteArray();
+    }
+
+    private static String getLibraryClass(int chain, int depth) {
+        return "library/chain" + chain + "/Class" + depth;
+    }
+
+    private static void writeClass(JarOutputStream out, String name, String superName) throws IOException {
+        ClassWriter classWriter = new ClassWriter(0);
+        classWriter.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, superName, null);
+        classWriter.visitEnd();
+        out.putNextEntry(new JarEntry(name + ".class"));
+        out.write(classWriter.toByteArray());
+        out.closeEntry();
+    }
+
+    /**
+     * Creates a class whose methods assign one of two library types to the same local in both branches of a
+     * condition, the frame after the branches needs their common super class.
+     */
+    private static ClassNode createSubject() {
+        // Fixed seed, every run merges the same types
+        Random random = new Random(0);
+        ClassNode classNode = new ClassNode(Opcodes.ASM7);
+        classNode.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "Subject", null, "java/lang/Object", null);
+        for (int i = 0; i < METHODS; i++) {
+            MethodNode method = new MethodNode(Opcodes.ASM7, Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "merge" + i,
+                "(Z)Ljava/lang/Object;", null, null);
+            for (int merge = 0; merge < MERGES_PER_METHOD; merge++) {
+                Label otherBranch = new Label();
+                Label end = new Label();
+                method.visitVarInsn(Opcodes.ILOAD, 0);
+                method.visitJumpInsn(Opcodes.IFEQ, otherBranch);
+                method.visitInsn(Opcodes.ACONST_NULL);
+                method.visitTypeInsn(Opcodes.CHECKCAST,
+                    getLibraryClass(random.nextInt(CHAINS), random.nextInt(CHAIN_LENGTH)));
+                method.visitVarInsn(Opcodes.ASTORE, 1);
+                method.visitJumpInsn(Opcodes.GOTO, end);
+                method.visitLabel(otherBranch);
+                method.visitInsn(Opcodes.ACONST_NULL);
+                method.visitTypeInsn(Opcodes.CHECKCAST,
+                    getLibraryClass(random.nextInt(CHAINS), random.nextInt(CHAIN_LENGTH)));
+                method.visitVarInsn(Opcodes.ASTORE, 1);
+                method.visitLabel(end);
+            }
+            method.visitVarInsn(Opcodes.ALOAD, 1);
+            method.visitInsn(Opcodes.ARETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+            classNode.methods.add(method);
+        }
+        classNode.visitEnd();
+        return classNode;
+    }
+}
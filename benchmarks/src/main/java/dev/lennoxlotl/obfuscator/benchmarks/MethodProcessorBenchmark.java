@@ -0,0 +1,92 @@
+package dev.lennoxlotl.obfuscator.benchmarks;
+
+import dev.lennoxlotl.obfuscator.ClassContext;
+import dev.lennoxlotl.obfuscator.HiddenMethodsPool;
+import dev.lennoxlotl.obfuscator.MethodContext;
+import dev.lennoxlotl.obfuscator.MethodProcessor;
+import dev.lennoxlotl.obfuscator.Platform;
+import dev.lennoxlotl.obfuscator.bytecode.PreprocessorRunner;
+import dev.lennoxlotl.obfuscator.source.CppEmitter;
+import dev.lennoxlotl.obfuscator.source.StringPool;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.gravit.launchserver.asm.ClassMetadataReader;
+import ru.gravit.launchserver.asm.SafeClassWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+/**
+ * Transpiles every method of the corpus.
+ * <p>
+ * The classes are preprocessed once like the obfuscator does before transpiling them. Transpilation turns the methods
+ * into native methods, so every invocation gets a fresh copy of the preprocessed classes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class MethodProcessorBenchmark {
+
+    private final List<byte[]> preprocessedClasses = new ArrayList<>();
+    private StringPool stringPool;
+    private HiddenMethodsPool hiddenMethodsPool;
+    private List<ClassNode> classes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ClassMetadataReader metadataReader = new ClassMetadataReader(List.of(new JarFile(Corpus.getJar().toFile())));
+        try {
+            for (byte[] data : Corpus.readClasses()) {
+                ClassNode classNode = Corpus.readClass(data);
+                for (MethodNode method : classNode.methods) {
+                    if (MethodProcessor.shouldProcess(classNode, method, false)) {
+                        PreprocessorRunner.preprocess(classNode, method, Platform.HOTSPOT);
+                    }
+                }
+
+                // The corpus is older than Java 7, its frames are always computed
+                ClassWriter classWriter = new SafeClassWriter(metadataReader, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+                classNode.accept(classWriter);
+                preprocessedClasses.add(classWriter.toByteArray());
+            }
+        } finally {
+            metadataReader.close();
+        }
+        stringPool = new StringPool();
+    }
+
+    @Setup(Level.Invocation)
+    public void readClasses() {
+        classes = preprocessedClasses.stream().map(Corpus::readClass).toList();
+        hiddenMethodsPool = new HiddenMethodsPool("native0/hidden");
+    }
+
+    @Benchmark
+    public void processMethods(Blackhole blackhole) {
+        CppEmitter output = new CppEmitter(Writer.nullWriter(), "    ");
+        for (int classId = 0; classId < classes.size(); classId++) {
+            ClassNode classNode = classes.get(classId);
+            ClassContext classContext = new ClassContext("native0", stringPool, hiddenMethodsPool);
+
+            for (int i = 0; i < classNode.methods.size(); i++) {
+                MethodNode method = classNode.methods.get(i);
+                if (!MethodProcessor.shouldProcess(classNode, method, false)) {
+                    continue;
+                }
+                MethodContext context = new MethodContext(classContext, method, i, classNode, classId, output, false);
+                classContext.getMethodProcessor().processMethod(context);
+                blackhole.consume(context.nativeMethods);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package dev.lennoxlotl.obfuscator.benchmarks;
+
+import dev.lennoxlotl.obfuscator.Snippets;
+import dev.lennoxlotl.obfuscator.Util;
+import dev.lennoxlotl.obfuscator.source.StringPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders snippets the way the instruction handlers do, with plain tokens, with constants from the string pool and
+ * with a try-catch handler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class SnippetsBenchmark {
+
+    private Snippets snippets;
+    private Map<String, String> arithmeticTokens;
+    private Map<String, String> fieldTokens;
+    private Map<String, String> allocationTokens;
+
+    @Setup
+    public void setup() {
+        snippets = new Snippets(new StringPool());
+        arithmeticTokens = Util.createMap(
+            "stackindexm2", 3,
+            "stackindexm1", 4
+        );
+        fieldTokens = Util.createMap(
+            "stackindexm1", 2,
+            "line", 42,
+            "fieldid", "(cfields[7])",
+            "trycatchhandler", "goto L12;"
+        );
+        allocationTokens = Util.createMap(
+            "stackindex0", 5,
+            "desc_ptr", "(cclasses[3])",
+            "trycatchhandler", "if (env->ExceptionCheck()) { return (jobject) 0; }"
+        );
+    }
+
+    @Benchmark
+    public String arithmetic() {
+        return snippets.getSnippet("IADD", arithmeticTokens);
+    }
+
+    @Benchmark
+    public String fieldAccess() {
+        return snippets.getSnippet("GETFIELD_1", fieldTokens);
+    }
+
+    @Benchmark
+    public String allocation() {
+        return snippets.getSnippet("NEW", allocationTokens);
+    }
+}
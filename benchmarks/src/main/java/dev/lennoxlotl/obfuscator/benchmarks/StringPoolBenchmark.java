@@ -0,0 +1,53 @@
+package dev.lennoxlotl.obfuscator.benchmarks;
+
+import dev.lennoxlotl.obfuscator.source.StringPool;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds the strings of the corpus to a string pool, looks them up again and writes the pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class StringPoolBenchmark {
+
+    private List<String> strings;
+    private StringPool filledPool;
+
+    @Setup
+    public void setup() throws IOException {
+        strings = Corpus.readStrings();
+        filledPool = new StringPool();
+        strings.forEach(filledPool::get);
+    }
+
+    @Benchmark
+    public StringPool fill() {
+        StringPool pool = new StringPool();
+        for (String value : strings) {
+            pool.get(value);
+        }
+        return pool;
+    }
+
+    @Benchmark
+    public void get(Blackhole blackhole) {
+        for (String value : strings) {
+            blackhole.consume(filledPool.get(value));
+        }
+    }
+
+    @Benchmark
+    public void build() throws IOException {
+        filledPool.build(Writer.nullWriter());
+    }
+}
@@ -0,0 +1,32 @@
+package dev.lennoxlotl.obfuscator.benchmarks;
+
+import dev.lennoxlotl.obfuscator.Util;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class UtilBenchmark {
+
+    private List<String> classNames;
+
+    @Setup
+    public void setup() throws IOException {
+        classNames = Corpus.readClassNames();
+    }
+
+    @Benchmark
+    public void escapeCppNameString(Blackhole blackhole) {
+        for (String className : classNames) {
+            blackhole.consume(Util.escapeCppNameString(className));
+        }
+    }
+}
@@ -44,6 +44,22 @@ if (!hasProperty("mainClass")) {
     extra["mainClass"] = "dev.lennoxlotl.obfuscator.Main"
 }
 
+tasks.test {
+    useJUnitPlatform {
+        excludeTags("slow")
+    }
+}
+
+// Runs the tests which process gigabytes of data, e.g. entries larger than 4 GiB
+tasks.register<Test>("slowTest") {
+    group = "verification"
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform {
+        includeTags("slow")
+    }
+}
+
 tasks.shadowJar {
     archiveClassifier.set("")
 }
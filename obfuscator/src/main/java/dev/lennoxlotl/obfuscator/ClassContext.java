@@ -0,0 +1,33 @@
+package dev.lennoxlotl.obfuscator;
+
+import dev.lennoxlotl.obfuscator.source.StringPool;
+import lombok.Getter;
+
+/**
+ * The pools, caches and instruction handlers a class is transpiled with. Every class gets its own context, so classes
+ * can be transpiled on different threads.
+ */
+@Getter
+public class ClassContext {
+    private final String nativeDir;
+    private final StringPool stringPool;
+    private final HiddenMethodsPool hiddenMethodsPool;
+    private final Snippets snippets;
+    private final MethodProcessor methodProcessor;
+
+    private final NodeCache<String> cachedStrings = new NodeCache<>("(cstrings[%d])");
+    private final NodeCache<String> cachedClasses = new NodeCache<>("(cclasses[%d])");
+    private final NodeCache<CachedMethodInfo> cachedMethods = new NodeCache<>("(cmethods[%d])");
+    private final NodeCache<CachedFieldInfo> cachedFields = new NodeCache<>("(cfields[%d])");
+
+    /**
+     * @param nativeDir The directory of the loader and the hidden classes
+     */
+    public ClassContext(String nativeDir, StringPool stringPool, HiddenMethodsPool hiddenMethodsPool) {
+        this.nativeDir = nativeDir;
+        this.stringPool = stringPool;
+        this.hiddenMethodsPool = hiddenMethodsPool;
+        this.snippets = new Snippets(stringPool);
+        this.methodProcessor = new MethodProcessor();
+    }
+}
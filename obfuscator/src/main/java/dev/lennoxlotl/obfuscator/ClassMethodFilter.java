@@ -1,5 +1,7 @@
 package dev.lennoxlotl.obfuscator;
 
+import dev.lennoxlotl.obfuscator.cost.JniCostModel;
+import dev.lennoxlotl.obfuscator.jfr.HotMethodFilter;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
@@ -9,9 +11,24 @@ public class ClassMethodFilter {
     private static final String NATIVE_ANNOTATION_DESC = Type.getDescriptor(NativeObfuscate.class);
 
     private final boolean useAnnotations;
+    // Keeps the hot methods of a recording as bytecode, null if no recording has been configured
+    private final HotMethodFilter hotMethodFilter;
+    // Keeps methods with too many JNI crossings as bytecode, null if they are not estimated
+    private final JniCostModel jniCostModel;
 
-    public ClassMethodFilter(boolean useAnnotations) {
+    public ClassMethodFilter(boolean useAnnotations, HotMethodFilter hotMethodFilter, JniCostModel jniCostModel) {
         this.useAnnotations = useAnnotations;
+        this.hotMethodFilter = hotMethodFilter;
+        this.jniCostModel = jniCostModel;
+    }
+
+    /**
+     * @return Whether the method is transpiled
+     */
+    public boolean shouldProcess(ClassNode clazz, MethodNode method) {
+        return MethodProcessor.shouldProcess(clazz, method, useAnnotations) &&
+            (hotMethodFilter == null || hotMethodFilter.shouldProcess(clazz, method)) &&
+            (jniCostModel == null || jniCostModel.shouldProcess(clazz, method));
     }
 
     public static void cleanAnnotations(ClassNode classNode) {
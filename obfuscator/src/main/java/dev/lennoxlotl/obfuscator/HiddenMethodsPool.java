@@ -5,22 +5,59 @@ import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 
 public class HiddenMethodsPool {
 
+    // Starts the method names of a local pool, no method of a class file can have such a name
+    private static final String PLACEHOLDER_PREFIX = "\u0000hidden";
+
     private final String baseName;
+    // The only class of a local pool, null if the pool creates its classes itself
+    private final String localClassName;
 
     public HiddenMethodsPool(String baseName) {
+        this(baseName, null);
+    }
+
+    private HiddenMethodsPool(String baseName, String localClassName) {
         this.baseName = baseName;
+        this.localClassName = localClassName;
+    }
+
+    /**
+     * Creates a pool for a class which is transpiled apart from the other classes. Its methods are placed into the
+     * given class and get placeholder names until the pool is merged into the pool of the build.
+     *
+     * @param className The class the pool of the build is expected to place the methods into
+     */
+    public static HiddenMethodsPool local(String className) {
+        HiddenMethodsPool pool = new HiddenMethodsPool(null, className);
+        pool.startRecording();
+        return pool;
+    }
+
+    /**
+     * @return Whether the name is the name of a method of a local pool
+     */
+    public static boolean isPlaceholder(String name) {
+        return name.startsWith(PLACEHOLDER_PREFIX);
     }
 
     private final HashMap<String, Integer> namePool = new HashMap<>();
     private final HashMap<String, HashMap<String, HiddenMethod>> methods = new HashMap<>();
     private final List<ClassNode> classes = new ArrayList<>();
+    private List<HiddenMethodRequest> recordedRequests;
+    private int emittedClasses;
+
+    public interface ClassEmitter {
+        void emit(ClassNode classNode) throws IOException;
+    }
 
     public static class HiddenMethod {
 
@@ -41,32 +78,140 @@ public class HiddenMethodsPool {
         }
     }
 
+    public static class HiddenMethodRequest {
+
+        private final String name;
+        private final String desc;
+        private final HiddenMethod hiddenMethod;
+        private final boolean created;
+
+        private HiddenMethodRequest(String name, String desc, HiddenMethod hiddenMethod, boolean created) {
+            this.name = name;
+            this.desc = desc;
+            this.hiddenMethod = hiddenMethod;
+            this.created = created;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+
+        public HiddenMethod getHiddenMethod() {
+            return hiddenMethod;
+        }
+
+        /**
+         * @return Whether the method has been created by this request
+         */
+        public boolean isCreated() {
+            return created;
+        }
+    }
+
     public HiddenMethod getMethod(String name, String desc, Consumer<MethodNode> creator) {
         HiddenMethod existingMethod = methods.computeIfAbsent(name, unused -> new HashMap<>()).get(desc);
         if (existingMethod != null) {
+            if (recordedRequests != null) {
+                recordedRequests.add(new HiddenMethodRequest(name, desc, existingMethod, false));
+            }
             return existingMethod;
         }
 
-        String newName = name + namePool.compute(name, (otherName, value) -> value == null ? 0 : value + 1);
+        String newName = localClassName != null
+                ? PLACEHOLDER_PREFIX + (classes.isEmpty() ? 0 : classes.get(0).methods.size())
+                : name + namePool.compute(name, (otherName, value) -> value == null ? 0 : value + 1);
         MethodNode newMethod = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_BRIDGE |
                 Opcodes.ACC_SYNTHETIC, newName, desc, null, new String[0]);
         creator.accept(newMethod);
-        ClassNode classNode = classes.isEmpty() ? null : classes.get(classes.size() - 1).methods.size() > 10000 ? null : classes.get(classes.size() - 1);
+        ClassNode classNode = classes.isEmpty() ? null : localClassName != null ? classes.get(0) : classes.get(classes.size() - 1).methods.size() > 10000 ? null : classes.get(classes.size() - 1);
         if (classNode == null) {
             classNode = new ClassNode(Opcodes.ASM7);
             classNode.access = Opcodes.ACC_PUBLIC;
             classNode.version = 52;
-            classNode.name = baseName + "/Hidden" + classes.size();
+            classNode.name = localClassName != null ? localClassName : baseName + "/Hidden" + classes.size();
             classNode.superName = Type.getInternalName(Object.class);
             classes.add(classNode);
         }
         classNode.methods.add(newMethod);
         HiddenMethod hiddenMethod = new HiddenMethod(classNode, newMethod);
         methods.computeIfAbsent(name, unused -> new HashMap<>()).put(desc, hiddenMethod);
+        if (recordedRequests != null) {
+            recordedRequests.add(new HiddenMethodRequest(name, desc, hiddenMethod, true));
+        }
         return hiddenMethod;
     }
 
-    public List<ClassNode> getClasses() {
-        return classes;
+    /**
+     * @return The name of the class which receives the next created method
+     */
+    public String getNextClassName() {
+        ClassNode lastClass = classes.isEmpty() ? null : classes.get(classes.size() - 1);
+        return lastClass != null && lastClass.methods.size() <= 10000 ? lastClass.name : baseName + "/Hidden" + classes.size();
+    }
+
+    /**
+     * Requests the methods of a local pool in the order the local pool has been asked for them. Created methods get a
+     * copy of the code of their local counterpart.
+     *
+     * @param methodNames Receives the names of the methods by their placeholder names
+     * @return Whether every method is in the class the local pool has placed it into
+     */
+    public boolean merge(HiddenMethodsPool localPool, Map<String, String> methodNames) {
+        for (HiddenMethodRequest request : localPool.stopRecording()) {
+            MethodNode localMethod = request.getHiddenMethod().getMethodNode();
+            HiddenMethod hiddenMethod = getMethod(request.getName(), request.getDesc(), methodNode -> {
+                methodNode.access = localMethod.access;
+                methodNode.signature = localMethod.signature;
+                localMethod.accept(methodNode);
+            });
+            if (!hiddenMethod.getClassNode().name.equals(localPool.localClassName)) {
+                return false;
+            }
+            methodNames.put(localMethod.name, hiddenMethod.getMethodNode().name);
+        }
+        return true;
+    }
+
+    /**
+     * @return The hidden method or null if it has not been requested yet
+     */
+    public HiddenMethod findMethod(String name, String desc) {
+        HashMap<String, HiddenMethod> descs = methods.get(name);
+        return descs == null ? null : descs.get(desc);
+    }
+
+    /**
+     * Records every request from now on, in the order they are made.
+     */
+    public void startRecording() {
+        recordedRequests = new ArrayList<>();
+    }
+
+    public List<HiddenMethodRequest> stopRecording() {
+        List<HiddenMethodRequest> result = recordedRequests;
+        recordedRequests = null;
+        return result;
+    }
+
+    /**
+     * Hands the classes which have not been emitted yet to the emitter. The code of their methods is released
+     * afterwards, methods requested again only need their names.
+     *
+     * @param all Whether to emit the last class as well, which receives new methods until it is full
+     */
+    public void emitClasses(boolean all, ClassEmitter emitter) throws IOException {
+        int end = all ? classes.size() : classes.size() - 1;
+        for (; emittedClasses < end; emittedClasses++) {
+            ClassNode classNode = classes.get(emittedClasses);
+            emitter.emit(classNode);
+            for (MethodNode method : classNode.methods) {
+                method.instructions.clear();
+                method.tryCatchBlocks.clear();
+            }
+        }
     }
 }
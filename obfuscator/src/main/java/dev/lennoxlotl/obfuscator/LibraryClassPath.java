@@ -0,0 +1,126 @@
+package dev.lennoxlotl.obfuscator;
+
+import dev.lennoxlotl.obfuscator.cache.HierarchyCache;
+import ru.gravit.launchserver.asm.ClassMetadataReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * The library jars of a build with their class index and the super classes looked up so far.
+ * <p>
+ * A long running process keeps it between builds as long as the libraries have not changed, so their classes are
+ * only indexed once and their hierarchy is only read once.
+ */
+public class LibraryClassPath {
+    private final List<Path> libraries;
+    private final Path cacheDirectory;
+    // The size and modification time of every library, changed libraries are opened again
+    private final List<String> stamps;
+    private final ClassMetadataReader metadataReader;
+    private final HierarchyCache hierarchyCache;
+
+    private LibraryClassPath(List<Path> libraries, Path cacheDirectory, List<String> stamps,
+                             ClassMetadataReader metadataReader, HierarchyCache hierarchyCache) {
+        this.libraries = libraries;
+        this.cacheDirectory = cacheDirectory;
+        this.stamps = stamps;
+        this.metadataReader = metadataReader;
+        this.hierarchyCache = hierarchyCache;
+    }
+
+    /**
+     * @param librariesDirectory The directory to search, may be null
+     * @return The jar and zip files in the directory and its sub directories
+     */
+    public static List<Path> find(File librariesDirectory) throws IOException {
+        List<Path> libraries = new ArrayList<>();
+        if (librariesDirectory != null) {
+            try (Stream<Path> files = Files.walk(librariesDirectory.toPath(), FileVisitOption.FOLLOW_LINKS)) {
+                files.filter(f -> f.toString().endsWith(".jar") || f.toString().endsWith(".zip"))
+                    .forEach(libraries::add);
+            }
+        }
+        return libraries;
+    }
+
+    /**
+     * Opens the libraries, jars which can't be opened are left out of the class path.
+     *
+     * @param cacheDirectory The directory of the hierarchy cache, null if the cache is disabled
+     */
+    public static LibraryClassPath open(List<Path> libraries, Path cacheDirectory) throws IOException {
+        List<JarFile> classPath = new ArrayList<>();
+        for (Path library : libraries) {
+            try {
+                classPath.add(new JarFile(library.toFile()));
+            } catch (IOException ex) {
+                classPath.add(null);
+            }
+        }
+        ClassMetadataReader metadataReader = new ClassMetadataReader(classPath);
+
+        HierarchyCache hierarchyCache = null;
+        if (cacheDirectory != null) {
+            hierarchyCache = new HierarchyCache(cacheDirectory, libraries);
+            hierarchyCache.load(metadataReader);
+        }
+        return new LibraryClassPath(List.copyOf(libraries), cacheDirectory, getStamps(libraries), metadataReader,
+            hierarchyCache);
+    }
+
+    /**
+     * @return Whether the class path consists of the same, unchanged libraries
+     */
+    public boolean matches(List<Path> libraries, Path cacheDirectory) {
+        if (!this.libraries.equals(libraries) || !Objects.equals(this.cacheDirectory, cacheDirectory)) {
+            return false;
+        }
+        try {
+            return stamps.equals(getStamps(libraries));
+        } catch (IOException ex) {
+            // Deleted libraries
+            return false;
+        }
+    }
+
+    /**
+     * @return A reader which looks up classes in the libraries first and in the given jar afterwards
+     */
+    public ClassMetadataReader createReader(JarFile jar) {
+        List<JarFile> classPath = new ArrayList<>();
+        classPath.add(jar);
+        return new ClassMetadataReader(classPath, metadataReader);
+    }
+
+    /**
+     * Stores the library super classes looked up by the reader in the hierarchy cache.
+     */
+    public void store(ClassMetadataReader reader) {
+        if (hierarchyCache != null) {
+            hierarchyCache.store(reader);
+        }
+    }
+
+    public void close() {
+        metadataReader.close();
+    }
+
+    private static List<String> getStamps(List<Path> libraries) throws IOException {
+        List<String> stamps = new ArrayList<>();
+        for (Path library : libraries) {
+            BasicFileAttributes attributes = Files.readAttributes(library, BasicFileAttributes.class);
+            stamps.add(attributes.size() + ":" + attributes.lastModifiedTime().toMillis());
+        }
+        return stamps;
+    }
+}
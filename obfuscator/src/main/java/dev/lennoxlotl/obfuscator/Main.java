@@ -1,19 +1,126 @@
 package dev.lennoxlotl.obfuscator;
 
 import dev.lennoxlotl.obfuscator.config.ObfuscatorConfig;
+import dev.lennoxlotl.obfuscator.daemon.BuildClient;
+import dev.lennoxlotl.obfuscator.daemon.BuildDaemon;
 import dev.lennoxlotl.obfuscator.log.TinyLogConfiguration;
+import dev.lennoxlotl.obfuscator.metrics.LinkProfileComparison;
+import dev.lennoxlotl.obfuscator.pgo.ProfileGuidedBuild;
+import dev.lennoxlotl.obfuscator.shard.Shard;
+import dev.lennoxlotl.obfuscator.shard.ShardMerger;
+import dev.lennoxlotl.obfuscator.shard.ShardedBuild;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 
-import java.io.IOException;
-import java.nio.file.FileVisitOption;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.Callable;
 
-public class Main {
-    public static void main(String[] args) throws IOException {
+@Command(name = "native-obfuscator", mixinStandardHelpOptions = true,
+    description = "Transpiles the configured jar to native code, using the config.toml of the working directory.")
+public class Main implements Callable<Integer> {
+    @Option(names = "--watch", description = "Rebuild whenever the input jar or the config changes")
+    private boolean watch;
+
+    @Option(names = "--daemon", description = "Keep running and accept build requests on a local port")
+    private boolean daemon;
+
+    @Option(names = "--client", description = "Ask a running daemon for a build")
+    private boolean client;
+
+    @Option(names = "--stop", description = "Stop a running daemon")
+    private boolean stop;
+
+    @Option(names = "--port", description = "The local port of the daemon, 0 picks a free port or the one the daemon announced")
+    private int port;
+
+    @Option(names = "--shard", paramLabel = "<index>", description = "Only build the shard with the index into the shard directory")
+    private Integer shard;
+
+    @Option(names = "--merge", description = "Assemble the output jar from the built shards")
+    private boolean merge;
+
+    @Option(names = "--compare-profiles", description = "Build once with every link profile and compare the libraries")
+    private boolean compareProfiles;
+
+    @Option(names = "--benchmark", paramLabel = "<command>",
+        description = "Command which runs the obfuscated jar for the profile comparison, {jar} is replaced with its " +
+            "path")
+    private String benchmark;
+
+    @Option(names = "--benchmark-runs", defaultValue = "5",
+        description = "How often the benchmark is run per profile, the median is reported")
+    private int benchmarkRuns;
+
+    @Option(names = "--pgo", paramLabel = "<command>",
+        description = "Record a profile with a command which runs the instrumented jar and build every target with " +
+            "it, {jar} is replaced with the path of the jar")
+    private String pgo;
+
+    @Option(names = "--pgo-runs", description = "How often the profile command is run", defaultValue = "1")
+    private int pgoRuns;
+
+    public static void main(String[] args) {
         TinyLogConfiguration.configure();
-        ObfuscatorConfig config = ObfuscatorConfig.load();
-        new NativeObfuscator().process(config);
+        System.exit(new CommandLine(new Main()).execute(args));
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        if (client || stop) {
+            return BuildClient.send(port, stop ? "stop" : "build");
+        }
+
+        if (compareProfiles) {
+            if (benchmarkRuns <= 0) {
+                throw new CommandLine.ParameterException(new CommandLine(this),
+                    "The benchmark has to run at least once");
+            }
+            return new LinkProfileComparison(ObfuscatorConfig.load(), benchmark, benchmarkRuns).run() ? 0 : 1;
+        }
+
+        if (pgo != null) {
+            if (pgoRuns <= 0) {
+                throw new CommandLine.ParameterException(new CommandLine(this),
+                    "The profile command has to run at least once");
+            }
+            return new ProfileGuidedBuild(ObfuscatorConfig.load(), pgo, pgoRuns).run() ? 0 : 1;
+        }
+
+        if (shard != null || merge) {
+            ObfuscatorConfig config = ObfuscatorConfig.load();
+            if (config.getShards() <= 0) {
+                throw new CommandLine.ParameterException(new CommandLine(this), "No shards have been configured");
+            }
+            boolean built = shard == null || new NativeObfuscator().process(config, null, Shard.of(config, shard));
+            if (built && merge) {
+                built = new ShardMerger(config).merge();
+            }
+            return built ? 0 : 1;
+        }
+
+        if (!watch && !daemon) {
+            return ShardedBuild.run(ObfuscatorConfig.load(), null) ? 0 : 1;
+        }
+
+        try (BuildDaemon buildDaemon = new BuildDaemon()) {
+            if (!daemon) {
+                buildDaemon.watch();
+                return 0;
+            }
+
+            if (watch) {
+                Thread watcher = new Thread(() -> {
+                    try {
+                        buildDaemon.watch();
+                    } catch (InterruptedException ignored) {
+                        // The daemon is shutting down
+                    }
+                }, "native-obfuscator-watch");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            buildDaemon.serve(port);
+        }
+        return 0;
     }
 }
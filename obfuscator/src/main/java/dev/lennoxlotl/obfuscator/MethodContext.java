@@ -1,5 +1,6 @@
 package dev.lennoxlotl.obfuscator;
 
+import dev.lennoxlotl.obfuscator.source.CppEmitter;
 import dev.lennoxlotl.obfuscator.source.StringPool;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.ClassNode;
@@ -10,15 +11,17 @@ import java.util.*;
 
 public class MethodContext {
 
-    public NativeObfuscator obfuscator;
+    public final ClassContext classContext;
 
     public final MethodNode method;
     public final ClassNode clazz;
     public final int methodIndex;
     public final int classIndex;
 
-    public final StringBuilder output;
+    public final CppEmitter output;
     public final StringBuilder nativeMethods;
+    // Whether every instruction is preceded by a comment with the instruction and the stack pointer
+    public final boolean instructionComments;
 
     public Type ret;
     public ArrayList<Type> argTypes;
@@ -34,50 +37,64 @@ public class MethodContext {
 
     public int stackPointer;
 
+    // Whether the classes, fields and methods are resolved once on entry, see NativeObfuscate#eager
+    public boolean eager;
+    // Whether field accesses skip their exception check, see NativeObfuscate#unchecked
+    public boolean unchecked;
+    // The ids of the classes, fields and methods which have been resolved on entry
+    public final Set<Integer> resolvedClasses = new HashSet<>();
+    public final Set<Integer> resolvedFields = new HashSet<>();
+    public final Set<Integer> resolvedMethods = new HashSet<>();
+
     private final LabelPool labelPool = new LabelPool();
 
     public String cppNativeMethodName;
 
-    public MethodContext(NativeObfuscator obfuscator, MethodNode method, int methodIndex, ClassNode clazz,
-                         int classIndex) {
-        this.obfuscator = obfuscator;
+    public MethodContext(ClassContext classContext, MethodNode method, int methodIndex, ClassNode clazz,
+                         int classIndex, CppEmitter output, boolean instructionComments) {
+        this.classContext = classContext;
         this.method = method;
         this.methodIndex = methodIndex;
         this.clazz = clazz;
         this.classIndex = classIndex;
 
-        this.output = new StringBuilder();
+        this.output = output;
         this.nativeMethods = new StringBuilder();
+        this.instructionComments = instructionComments;
 
         this.line = -1;
         this.stack = new ArrayList<>();
         this.locals = new ArrayList<>();
         this.tryCatches = new HashSet<>();
-        this.catches = new HashMap<>();
+        this.catches = new LinkedHashMap<>();
     }
 
     public NodeCache<String> getCachedStrings() {
-        return obfuscator.getCachedStrings();
+        return classContext.getCachedStrings();
     }
 
     public NodeCache<String> getCachedClasses() {
-        return obfuscator.getCachedClasses();
+        return classContext.getCachedClasses();
     }
 
     public NodeCache<CachedMethodInfo> getCachedMethods() {
-        return obfuscator.getCachedMethods();
+        return classContext.getCachedMethods();
     }
 
     public NodeCache<CachedFieldInfo> getCachedFields() {
-        return obfuscator.getCachedFields();
+        return classContext.getCachedFields();
     }
 
     public Snippets getSnippets() {
-        return obfuscator.getSnippets();
+        return classContext.getSnippets();
     }
 
     public StringPool getStringPool() {
-        return obfuscator.getStringPool();
+        return classContext.getStringPool();
+    }
+
+    public HiddenMethodsPool getHiddenMethodsPool() {
+        return classContext.getHiddenMethodsPool();
     }
 
     public LabelPool getLabelPool() {
@@ -4,6 +4,7 @@ import dev.lennoxlotl.obfuscator.special.ClInitSpecialMethodProcessor;
 import dev.lennoxlotl.obfuscator.special.DefaultSpecialMethodProcessor;
 import dev.lennoxlotl.obfuscator.special.SpecialMethodProcessor;
 import dev.lennoxlotl.obfuscator.instructions.*;
+import dev.lennoxlotl.obfuscator.source.CppEmitter;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
@@ -49,12 +50,9 @@ public class MethodProcessor {
         1, 1, 1, 2, 2, 0, 0, 0, 0
     };
 
-    private final NativeObfuscator obfuscator;
     private final InstructionHandlerContainer<?>[] handlers;
 
-    public MethodProcessor(NativeObfuscator obfuscator) {
-        this.obfuscator = obfuscator;
-
+    public MethodProcessor() {
         handlers = new InstructionHandlerContainer[16];
         addHandler(AbstractInsnNode.INSN, new InsnHandler(), InsnNode.class);
         addHandler(AbstractInsnNode.INT_INSN, new IntHandler(), IntInsnNode.class);
@@ -99,12 +97,16 @@ public class MethodProcessor {
         // if any method in the class is annotated with it for it to be properly processed
         boolean annotationPresentAny = clazz.methods.stream()
             .anyMatch(methodNode -> methodNode.visibleAnnotations != null &&
-                methodNode.visibleAnnotations.stream().anyMatch(node -> node.desc.equals(NATIVE_ANNOTATION_DESC)));
+                methodNode.visibleAnnotations.stream().anyMatch(node -> node.desc.equals(NATIVE_ANNOTATION_DESC)) &&
+                !NativeObfuscateOptions.of(clazz, methodNode).isKeepBytecode());
         boolean staticBlock = method.name.equals("<clinit>") && annotationPresentAny;
+        // The static block has no annotation of its own, it is only kept if its class is and no method overrides it
+        boolean keepBytecode = NativeObfuscateOptions.of(clazz, method).isKeepBytecode() && !staticBlock;
 
         return !Util.getFlag(method.access, Opcodes.ACC_ABSTRACT) &&
             !Util.getFlag(method.access, Opcodes.ACC_NATIVE) &&
             !method.name.equals("<init>") &&
+            !keepBytecode &&
             (staticBlock || annotationPresent || annotationPresentClazz || !useAnnotations);
     }
 
@@ -118,9 +120,90 @@ public class MethodProcessor {
         return "utils::find_class_wo_static(env, classloader, " + context.getCachedStrings().getPointer(desc.replace('/', '.')) + ")";
     }
 
+    /**
+     * Emits the lazy lookup of a class into the class cache, unless it has been resolved on entry.
+     *
+     * @param onException The code run after the lookup, which handles a pending exception
+     */
+    public static void appendClassLookup(MethodContext context, int classId, String desc, String onException) {
+        if (context.resolvedClasses.contains(classId)) {
+            return;
+        }
+        String classGetter = getClassGetter(context, desc);
+        context.output.append("if (!cclasses[").append(classId).append("] || env->IsSameObject(cclasses[")
+            .append(classId).append("], NULL)) { cclasses_mtx[").append(classId).append("].lock(); if (!cclasses[")
+            .append(classId).append("] || env->IsSameObject(cclasses[").append(classId)
+            .append("], NULL)) { if (jclass clazz = ").append(classGetter).append(") { cclasses[").append(classId)
+            .append("] = (jclass) env->NewWeakGlobalRef(clazz); env->DeleteLocalRef(clazz); } } cclasses_mtx[")
+            .append(classId).append("].unlock(); ").append(onException).append(" }");
+    }
+
+    /**
+     * Resolves every class, field and method the instructions use on entry, in the order they are used. The
+     * instructions skip the lookups of everything resolved here.
+     */
+    private static void appendEagerLookups(MethodContext context, String onException) {
+        if (context.method.tryCatchBlocks != null) {
+            // Caught classes have been resolved right before
+            context.method.tryCatchBlocks.stream()
+                .filter(tryCatch -> tryCatch.type != null)
+                .forEach(tryCatch -> context.resolvedClasses.add(context.getCachedClasses().getId(tryCatch.type)));
+        }
+
+        CppEmitter output = context.output;
+        output.append("    // eager lookups\n");
+        for (AbstractInsnNode insn = context.method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            String owner = null;
+            if (insn instanceof FieldInsnNode field) {
+                owner = field.owner;
+            } else if (insn instanceof MethodInsnNode method && MethodHandler.isDirectCall(method)) {
+                owner = method.owner;
+            } else if (insn instanceof TypeInsnNode type) {
+                owner = type.desc;
+            } else if (insn instanceof LdcInsnNode ldc && ldc.cst instanceof Type) {
+                owner = ldc.cst.toString();
+            }
+            if (owner == null) {
+                continue;
+            }
+
+            int classId = context.getCachedClasses().getId(owner);
+            if (!context.resolvedClasses.contains(classId)) {
+                output.append("    ");
+                appendClassLookup(context, classId, owner, onException);
+                output.append("\n");
+                context.resolvedClasses.add(classId);
+            }
+
+            if (insn instanceof FieldInsnNode field) {
+                boolean isStatic = field.getOpcode() == Opcodes.GETSTATIC || field.getOpcode() == Opcodes.PUTSTATIC;
+                int fieldId = context.getCachedFields().getId(new CachedFieldInfo(field.owner, field.name, field.desc,
+                    isStatic));
+                if (!context.resolvedFields.contains(fieldId)) {
+                    output.append("    ");
+                    FieldHandler.appendFieldLookup(context, field.owner, field.name, field.desc, isStatic, onException);
+                    output.append("\n");
+                    context.resolvedFields.add(fieldId);
+                }
+            } else if (insn instanceof MethodInsnNode method) {
+                boolean isStatic = method.getOpcode() == Opcodes.INVOKESTATIC;
+                int methodId = context.getCachedMethods().getId(new CachedMethodInfo(method.owner, method.name,
+                    method.desc, isStatic));
+                if (!context.resolvedMethods.contains(methodId)) {
+                    output.append("    ");
+                    MethodHandler.appendMethodLookup(context, method.owner, method.name, method.desc, isStatic,
+                        onException);
+                    output.append("\n");
+                    context.resolvedMethods.add(methodId);
+                }
+            }
+        }
+        output.append("\n");
+    }
+
     public void processMethod(MethodContext context) {
         MethodNode method = context.method;
-        StringBuilder output = context.output;
+        CppEmitter output = context.output;
 
         SpecialMethodProcessor specialMethodProcessor = getSpecialMethodProcessor(method.name);
 
@@ -149,11 +232,12 @@ public class MethodProcessor {
             context.nativeMethod.access |= Opcodes.ACC_NATIVE;
         } else {
             context.nativeMethods.append(String.format("            { %s, %s, (void *)&%s },\n",
-                obfuscator.getStringPool().get(context.method.name),
-                obfuscator.getStringPool().get(method.desc), methodName));
+                context.getStringPool().get(context.method.name),
+                context.getStringPool().get(method.desc), methodName));
         }
 
-        output.append(String.format("%s JNICALL %s(JNIEnv *env, ", CPP_TYPES[context.ret.getSort()], methodName));
+        String returnType = CPP_TYPES[context.ret.getSort()];
+        output.append(returnType).append(" JNICALL ").append(methodName).append("(JNIEnv *env, ");
         if (context.proxyMethod != null) {
             output.append("jobject ignored_hidden, ");
         }
@@ -164,7 +248,7 @@ public class MethodProcessor {
 
         for (int i = 0; i < args.length; i++) {
             argNames.add("arg" + i);
-            output.append(String.format(", %s arg%d", CPP_TYPES[args[i].getSort()], i));
+            output.append(", ").append(CPP_TYPES[args[i].getSort()]).append(" arg").append(i);
         }
 
         output.append(") {").append("\n");
@@ -175,22 +259,19 @@ public class MethodProcessor {
 
         if (!isStatic) {
             output.append("    jclass clazz = utils::get_class_from_object(env, obj);\n");
-            output.append("    if (env->ExceptionCheck()) { ").append(String.format("return (%s) 0;",
-                CPP_TYPES[context.ret.getSort()])).append(" }\n");
+            output.append("    if (env->ExceptionCheck()) { return (").append(returnType).append(") 0; }\n");
         }
         output.append("    jobject classloader = utils::get_classloader_from_class(env, clazz);\n");
-        output.append("    if (env->ExceptionCheck()) { ").append(String.format("return (%s) 0;",
-            CPP_TYPES[context.ret.getSort()])).append(" }\n");
+        output.append("    if (env->ExceptionCheck()) { return (").append(returnType).append(") 0; }\n");
         output.append("    if (classloader == nullptr) { env->FatalError(").append(context.getStringPool()
-            .get("classloader == null")).append(String.format("); return (%s) 0; }\n", CPP_TYPES[context.ret.getSort()]));
+            .get("classloader == null")).append("); return (").append(returnType).append(") 0; }\n");
         output.append("\n");
         if (!isStatic) {
             output.append("    env->DeleteLocalRef(clazz);\n");
             output.append("    clazz = utils::find_class_wo_static(env, classloader, ")
                 .append(context.getCachedStrings().getPointer(context.clazz.name.replace('/', '.')))
                 .append(");\n");
-            output.append("    if (env->ExceptionCheck()) { ").append(String.format("return (%s) 0;",
-                CPP_TYPES[context.ret.getSort()])).append(" }\n");
+            output.append("    if (env->ExceptionCheck()) { return (").append(returnType).append(") 0; }\n");
         }
         output.append("    jobject lookup = nullptr;\n");
 
@@ -205,26 +286,21 @@ public class MethodProcessor {
             classesForTryCatches.forEach((clazz) -> {
                 int classId = context.getCachedClasses().getId(clazz);
 
-                context.output.append(String.format("    // try-catch-class %s\n", Util.escapeCommentString(clazz)));
-                context.output.append(String.format("    if (!cclasses[%d] || env->IsSameObject(cclasses[%d], NULL)) { cclasses_mtx[%d].lock(); "
-                        + "if (!cclasses[%d] || env->IsSameObject(cclasses[%d], NULL)) { if (jclass clazz = %s) { cclasses[%d] = (jclass) env->NewWeakGlobalRef(clazz); env->DeleteLocalRef(clazz); } } "
-                        + "cclasses_mtx[%d].unlock(); if (env->ExceptionCheck()) { return (%s) 0; } }\n",
-                    classId,
-                    classId,
-                    classId,
-                    classId,
-                    classId,
-                    getClassGetter(context, clazz),
-                    classId,
-                    classId,
-                    CPP_TYPES[context.ret.getSort()]));
+                output.append("    // try-catch-class ").append(Util.escapeCommentString(clazz)).append("\n");
+                output.append("    ");
+                appendClassLookup(context, classId, clazz, "if (env->ExceptionCheck()) { return (" + returnType + ") 0; }");
+                output.append("\n");
             });
         }
 
+        if (context.eager) {
+            appendEagerLookups(context, "if (env->ExceptionCheck()) { return (" + returnType + ") 0; }");
+        }
+
         if (method.maxStack > 0) {
             output.append("    jvalue ");
             for (int i = 0; i < method.maxStack; i++) {
-                output.append(String.format("cstack%s = {}", i));
+                output.append("cstack").append(i).append(" = {}");
                 if (i != method.maxStack - 1) {
                     output.append(", ");
                 }
@@ -235,7 +311,7 @@ public class MethodProcessor {
         if (method.maxLocals > 0) {
             output.append("    jvalue ");
             for (int i = 0; i < method.maxLocals; i++) {
-                output.append(String.format("clocal%s = {}", i));
+                output.append("clocal").append(i).append(" = {}");
                 if (i != method.maxLocals - 1) {
                     output.append(", ");
                 }
@@ -249,11 +325,12 @@ public class MethodProcessor {
         int localIndex = 0;
         for (int i = 0; i < context.argTypes.size(); ++i) {
             Type current = context.argTypes.get(i);
-            output.append("    ").append(obfuscator.getSnippets().getSnippet(
-                "LOCAL_LOAD_ARG_" + current.getSort(), Util.createMap(
-                    "index", localIndex,
-                    "arg", argNames.get(i)
-                ))).append("\n");
+            output.append("    ");
+            context.getSnippets().appendSnippet(output, "LOCAL_LOAD_ARG_" + current.getSort(), Util.createMap(
+                "index", localIndex,
+                "arg", argNames.get(i)
+            ));
+            output.append("\n");
             localIndex += current.getSize();
         }
         output.append("\n");
@@ -264,14 +341,18 @@ public class MethodProcessor {
 
         for (int instruction = 0; instruction < method.instructions.size(); ++instruction) {
             AbstractInsnNode node = method.instructions.get(instruction);
-            context.output.append("    // ").append(Util.escapeCommentString(handlers[node.getType()]
-                .insnToString(context, node))).append("; Stack: ").append(context.stackPointer).append("\n");
+            if (context.instructionComments) {
+                output.append("    // ").append(Util.escapeCommentString(handlers[node.getType()]
+                    .insnToString(context, node))).append("; Stack: ").append(context.stackPointer).append("\n");
+            }
             handlers[node.getType()].accept(context, node);
             context.stackPointer = handlers[node.getType()].getNewStackPointer(node, context.stackPointer);
-            context.output.append("    // New stack: ").append(context.stackPointer).append("\n");
+            if (context.instructionComments) {
+                output.append("    // New stack: ").append(context.stackPointer).append("\n");
+            }
         }
 
-        output.append(String.format("    return (%s) 0;\n", CPP_TYPES[context.ret.getSort()]));
+        output.append("    return (").append(returnType).append(") 0;\n");
 
         boolean hasAddedNewBlocks = true;
 
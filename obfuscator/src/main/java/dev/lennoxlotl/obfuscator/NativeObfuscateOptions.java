@@ -0,0 +1,80 @@
+package dev.lennoxlotl.obfuscator;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.List;
+
+/**
+ * The attributes of the {@link NativeObfuscate} annotations of a method and its class. Attributes set on the method
+ * take precedence over the ones set on the class, unset attributes keep their defaults.
+ */
+public class NativeObfuscateOptions {
+
+    private static final String NATIVE_ANNOTATION_DESC = Type.getDescriptor(NativeObfuscate.class);
+
+    private NativeObfuscate.Optimization optimization = NativeObfuscate.Optimization.DEFAULT;
+    private boolean eager;
+    private boolean unchecked;
+    private boolean keepBytecode;
+
+    /**
+     * @param method The method, null for the options of the class alone
+     */
+    public static NativeObfuscateOptions of(ClassNode clazz, MethodNode method) {
+        NativeObfuscateOptions options = new NativeObfuscateOptions();
+        options.apply(clazz.visibleAnnotations);
+        if (method != null) {
+            options.apply(method.visibleAnnotations);
+        }
+        return options;
+    }
+
+    private void apply(List<AnnotationNode> annotations) {
+        if (annotations == null) {
+            return;
+        }
+        for (AnnotationNode annotation : annotations) {
+            if (!annotation.desc.equals(NATIVE_ANNOTATION_DESC) || annotation.values == null) {
+                continue;
+            }
+            // Only attributes which have been set are part of the class file, as name and value pairs
+            for (int i = 0; i < annotation.values.size(); i += 2) {
+                Object value = annotation.values.get(i + 1);
+                switch ((String) annotation.values.get(i)) {
+                    case "optimization":
+                        // Enum constants are stored as their descriptor and name
+                        optimization = NativeObfuscate.Optimization.valueOf(((String[]) value)[1]);
+                        break;
+                    case "eager":
+                        eager = (Boolean) value;
+                        break;
+                    case "unchecked":
+                        unchecked = (Boolean) value;
+                        break;
+                    case "keepBytecode":
+                        keepBytecode = (Boolean) value;
+                        break;
+                }
+            }
+        }
+    }
+
+    public NativeObfuscate.Optimization getOptimization() {
+        return optimization;
+    }
+
+    public boolean isEager() {
+        return eager;
+    }
+
+    public boolean isUnchecked() {
+        return unchecked;
+    }
+
+    public boolean isKeepBytecode() {
+        return keepBytecode;
+    }
+}
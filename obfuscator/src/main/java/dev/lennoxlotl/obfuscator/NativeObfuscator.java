@@ -1,341 +1,1090 @@
 package dev.lennoxlotl.obfuscator;
 
 import dev.lennoxlotl.obfuscator.bytecode.PreprocessorRunner;
+import dev.lennoxlotl.obfuscator.cache.CachedClass;
+import dev.lennoxlotl.obfuscator.cache.TranspilationCache;
 import dev.lennoxlotl.obfuscator.config.ObfuscatorConfig;
+import dev.lennoxlotl.obfuscator.daemon.BuildSession;
+import dev.lennoxlotl.obfuscator.cost.JniCostModel;
+import dev.lennoxlotl.obfuscator.jfr.HotMethodFilter;
+import dev.lennoxlotl.obfuscator.metrics.BuildMetrics;
+import dev.lennoxlotl.obfuscator.shard.Shard;
+import dev.lennoxlotl.obfuscator.source.ByteLiteralWriter;
 import dev.lennoxlotl.obfuscator.source.ClassSourceBuilder;
 import dev.lennoxlotl.obfuscator.source.MainSourceBuilder;
 import dev.lennoxlotl.obfuscator.source.StringPool;
+import dev.lennoxlotl.obfuscator.source.UnitPartitioner;
 import dev.lennoxlotl.obfuscator.zig.ZigCompiler;
+import dev.lennoxlotl.obfuscator.zip.JarWriter;
+import dev.lennoxlotl.obfuscator.zip.ZipIndex;
 import lombok.Getter;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.tinylog.Logger;
 import ru.gravit.launchserver.asm.ClassMetadataReader;
 import ru.gravit.launchserver.asm.SafeClassWriter;
 
 import java.io.*;
-import java.nio.file.FileSystem;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.Manifest;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.stream.Stream;
 
 @Getter
 public class NativeObfuscator {
-    private final Snippets snippets;
-    private final StringPool stringPool;
-    private final MethodProcessor methodProcessor;
+    // How many entries per transpilation thread are preprocessed and transpiled ahead of the entry being merged
+    private static final int PREPROCESS_LOOKAHEAD = 4;
 
-    private final NodeCache<String> cachedStrings;
-    private final NodeCache<String> cachedClasses;
-    private final NodeCache<CachedMethodInfo> cachedMethods;
-    private final NodeCache<CachedFieldInfo> cachedFields;
+    private final StringPool stringPool;
 
     private HiddenMethodsPool hiddenMethodsPool;
+    private TranspilationCache transpilationCache;
+    private BuildMetrics metrics = BuildMetrics.DISABLED;
+    // The shard which is being built, null if the whole jar is built at once
+    private Shard shard;
+    private ClassMethodFilter classMethodFilter;
+    private HotMethodFilter hotMethodFilter;
+    private JniCostModel jniCostModel;
 
     private int currentClassId;
     private String nativeDir;
 
     public NativeObfuscator() {
         stringPool = new StringPool();
-        snippets = new Snippets(stringPool);
-        cachedStrings = new NodeCache<>("(cstrings[%d])");
-        cachedClasses = new NodeCache<>("(cclasses[%d])");
-        cachedMethods = new NodeCache<>("(cmethods[%d])");
-        cachedFields = new NodeCache<>("(cfields[%d])");
-        methodProcessor = new MethodProcessor(this);
     }
 
-    public void process(ObfuscatorConfig config) throws IOException {
+    /**
+     * @return Whether the native libraries have been compiled into the output jar
+     */
+    public boolean process(ObfuscatorConfig config) throws IOException {
+        return process(config, null);
+    }
+
+    /**
+     * @param session Keeps state for the next build of a long running process, null for a single build
+     * @return Whether the native libraries have been compiled into the output jar
+     */
+    public boolean process(ObfuscatorConfig config, BuildSession session) throws IOException {
+        return process(config, session, null);
+    }
+
+    /**
+     * @param shard The shard to build into its directory instead of the output jar, null to build the whole jar
+     * @return Whether the native libraries have been compiled into the output jar, or the archives of the shard
+     */
+    public boolean process(ObfuscatorConfig config, BuildSession session, Shard shard) throws IOException {
+        File metricsDirectory = config.getMetricsDirectory();
+        if (metricsDirectory != null && shard != null) {
+            metricsDirectory = new File(metricsDirectory, shard.getName());
+        }
+        metrics = metricsDirectory == null ? BuildMetrics.DISABLED : new BuildMetrics();
+        this.shard = shard;
+        try {
+            boolean built = build(config, session);
+            // Shards write their reports into their own directory
+            Path reportDirectory = metricsDirectory != null ? metricsDirectory.toPath() : shard != null ?
+                shard.getDirectory() : config.getOutputJar().getAbsoluteFile().toPath().getParent();
+            if (hotMethodFilter != null) {
+                hotMethodFilter.writeReport(reportDirectory.resolve("method-selection.json"));
+            }
+            if (jniCostModel != null) {
+                jniCostModel.writeReport(reportDirectory.resolve("jni-cost.json"));
+            }
+            return built;
+        } finally {
+            metrics.finish();
+            if (metricsDirectory != null) {
+                try {
+                    metrics.write(metricsDirectory.toPath());
+                    Logger.info("Build metrics written to {}", metricsDirectory);
+                } catch (IOException ex) {
+                    Logger.warn("Could not write the build metrics", ex);
+                }
+            }
+        }
+    }
+
+    private boolean build(ObfuscatorConfig config, BuildSession session) throws IOException {
+        metrics.phase("read");
         Path workingDir = new File("temp-" + System.currentTimeMillis()).toPath();
         Path inputJarPath = config.getInputJar().toPath();
-        List<Path> inputLibs = new ArrayList<>();
-        if (config.getLibrariesDirectory() != null) {
-            Files.walk(config.getLibrariesDirectory().toPath(), FileVisitOption.FOLLOW_LINKS)
-                .filter(f -> f.toString().endsWith(".jar") || f.toString().endsWith(".zip"))
-                .forEach(inputLibs::add);
-        }
+        List<Path> inputLibs = LibraryClassPath.find(config.getLibrariesDirectory());
 
         if (Files.exists(workingDir) && Files.isSameFile(inputJarPath.toRealPath().getParent(), workingDir.toRealPath())) {
             throw new RuntimeException("Input jar can't be in the same directory as output directory");
         }
 
-        List<Path> libs = new ArrayList<>(inputLibs);
-        libs.add(inputJarPath);
-        ClassMethodFilter classMethodFilter = new ClassMethodFilter(config.isAnnotations());
-        ClassMetadataReader metadataReader = new ClassMetadataReader(libs.stream().map(x -> {
-            try {
-                return new JarFile(x.toFile());
-            } catch (IOException ex) {
-                return null;
-            }
-        }).collect(Collectors.toList()));
+        hotMethodFilter = config.getJfrRecording() == null ? null : HotMethodFilter.load(
+            config.getJfrRecording().toPath(), config.getJfrThreshold(), config.getJfrAction());
+        jniCostModel = !config.isJniCostReport() && config.getJniCostThreshold() <= 0 ? null :
+            new JniCostModel(config.getJniCostThreshold(), config.isAnnotations());
+        classMethodFilter = new ClassMethodFilter(config.isAnnotations(), hotMethodFilter, jniCostModel);
+        Path hierarchyDir = config.getCacheDirectory() == null ? null
+            : config.getCacheDirectory().toPath().resolve("hierarchy");
+        LibraryClassPath libraryClassPath = session != null ? session.getLibraries(inputLibs, hierarchyDir)
+            : LibraryClassPath.open(inputLibs, hierarchyDir);
+        // Shared with the metadata reader, so the central directory of the input jar is only read once
+        JarFile inputJar = new JarFile(inputJarPath.toAbsolutePath().toFile());
+        ClassMetadataReader metadataReader = libraryClassPath.createReader(inputJar);
+        String shardInputHash = null;
+        if (shard != null) {
+            shardInputHash = Shard.getInputHashes(config, inputJar, inputLibs)[shard.getIndex()];
+            shard.invalidate();
+        }
 
         Path cppDir = workingDir.resolve("cpp");
         Path cppOutput = cppDir.resolve("output");
         Files.createDirectories(cppOutput);
 
-        Util.copyResource("sources/native_jvm.cpp", cppDir);
         Util.copyResource("sources/native_jvm.hpp", cppDir);
         Util.copyResource("sources/native_jvm_output.hpp", cppDir);
-        Util.copyResource("sources/string_pool.hpp", cppDir);
+        if (shard == null) {
+            Util.copyResource("sources/native_jvm.cpp", cppDir);
+            Util.copyResource("sources/string_pool.hpp", cppDir);
+        } else {
+            // The runtime is compiled once the shards are merged
+            Files.writeString(cppDir.resolve("string_pool.hpp"), Util.dynamicFormat(
+                Util.readResource("sources/shard_string_pool.hpp"), Util.createMap("shard", shard.getName())));
+        }
 
-        MainSourceBuilder mainSourceBuilder = new MainSourceBuilder();
+        MainSourceBuilder mainSourceBuilder;
+        long memoryBudget = config.getMemoryBudget() * 1024 * 1024;
+        if (memoryBudget > 0) {
+            // Transpiled and hidden classes are released as soon as they have been written, see processEntries
+            Path spillDir = workingDir.resolve("spill");
+            stringPool.spillTo(spillDir.resolve("strings"), memoryBudget / 2);
+            mainSourceBuilder = new MainSourceBuilder(spillDir, memoryBudget / 8);
+        } else {
+            mainSourceBuilder = new MainSourceBuilder();
+        }
 
         File jarFile = inputJarPath.toAbsolutePath().toFile();
-        Path tempJarFile = workingDir.resolve(jarFile.getName());
-        try (JarFile jar = new JarFile(jarFile);
-             ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(tempJarFile))) {
-
-            Logger.info("Processing {}...", jarFile);
-
-            nativeDir = config.getLoaderDirectory();
-            if (jar.stream().anyMatch(x -> x.getName().equals(nativeDir) ||
-                x.getName().startsWith(nativeDir + "/"))) {
-                Logger.warn("Directory '{}' already exists in input jar file", nativeDir);
+        // Shards only keep their transpiled classes, the merge assembles the output jar
+        Path outputJar = shard == null ? config.getOutputJar().toPath().toAbsolutePath() : shard.getClassesJar();
+        // Written next to the output jar, so it can be moved into place once it is complete
+        Path tempJarFile = outputJar.resolveSibling(outputJar.getFileName() + ".tmp");
+        boolean compiled = false;
+        // Classes are compiled as soon as they have been transpiled
+        try (JarWriter out = new JarWriter(tempJarFile);
+             ZigCompiler zigCompiler = ZigCompiler.start(config.getZigExecutable(),
+                 workingDir,
+                 cppDir,
+                 config.getZigCompileThreads(),
+                 config.getZigMemoryLimit(),
+                 true,
+                 shard != null,
+                 config.getZigLinkProfile(),
+                 config.getZigProfileMode(),
+                 config.isZigBuildProject(),
+                 config.getZigCompilerTargets(),
+                 config.getCacheDirectory() == null ? null : config.getCacheDirectory().toPath().resolve("objects"),
+                 config.getCacheDirectory() == null ? null : config.getCacheDirectory().toPath().resolve("profiles"),
+                 metrics)) {
+            // The runtime does not depend on the transpiled classes
+            if (shard == null) {
+                zigCompiler.submit(cppDir.resolve("native_jvm.cpp"));
             }
+            try (JarFile jar = inputJar;
+                 ZipIndex jarIndex = new ZipIndex(jarFile.toPath())) {
 
-            if (jar.stream().anyMatch(x -> x.getName().equals(nativeDir) ||
-                x.getName().startsWith(nativeDir + "/"))) {
-                Logger.warn("Directory '{}' already exists in input jar file", nativeDir);
-            }
+                Logger.info("Processing {}...", jarFile);
 
-            hiddenMethodsPool = new HiddenMethodsPool(nativeDir + "/hidden");
+                // Written first, so the manifest is found by JarInputStream
+                ZipIndex.Entry manifest = jarIndex.getEntry(JarFile.MANIFEST_NAME);
+                if (manifest != null && shard == null) {
+                    out.copy(jarIndex, manifest);
+                }
 
-            Integer[] classIndexReference = new Integer[]{0};
+                setNativeDir(config.getLoaderDirectory());
+                if (shard != null) {
+                    // Hidden classes of different shards must not share names
+                    hiddenMethodsPool = new HiddenMethodsPool(nativeDir + "/hidden/" + shard.getName());
+                }
+                if (jar.stream().anyMatch(x -> x.getName().equals(nativeDir) ||
+                    x.getName().startsWith(nativeDir + "/"))) {
+                    Logger.warn("Directory '{}' already exists in input jar file", nativeDir);
+                }
 
-            jar.stream().forEach(entry -> {
-                if (entry.getName().equals(JarFile.MANIFEST_NAME)) return;
+                if (jar.stream().anyMatch(x -> x.getName().equals(nativeDir) ||
+                    x.getName().startsWith(nativeDir + "/"))) {
+                    Logger.warn("Directory '{}' already exists in input jar file", nativeDir);
+                }
 
+                if (config.getCacheDirectory() != null) {
+                    Path cacheDirectory = config.getCacheDirectory().toPath();
+                    transpilationCache = new TranspilationCache(shard == null ? cacheDirectory
+                        : shard.getCacheDirectory(cacheDirectory), config);
+                    stringPool.preload(transpilationCache.loadStringLayout());
+                }
+
+                int transpileThreads = config.getTranspileThreads();
+                ExecutorService executorService = transpileThreads > 1 ? Executors.newFixedThreadPool(transpileThreads) : null;
+                Executor executor = executorService != null ? executorService : Runnable::run;
+                metrics.phase("classes");
                 try {
-                    if (!entry.getName().endsWith(".class")) {
-                        Util.writeEntry(jar, out, entry);
-                        return;
+                    processEntries(jar, jarIndex, out, config, metadataReader, cppOutput, mainSourceBuilder, zigCompiler,
+                        executor, Math.max(1, transpileThreads) * PREPROCESS_LOOKAHEAD);
+                } finally {
+                    if (executorService != null) {
+                        executorService.shutdownNow();
                     }
+                }
 
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    try (InputStream in = jar.getInputStream(entry)) {
-                        Util.transfer(in, baos);
-                    }
-                    byte[] src = baos.toByteArray();
+                metrics.phase("loader");
+                hiddenMethodsPool.emitClasses(true, hiddenClass -> emitHiddenClass(hiddenClass, config, out,
+                    metadataReader, cppOutput, mainSourceBuilder, zigCompiler));
 
-                    if (Util.byteArrayToInt(Arrays.copyOfRange(src, 0, 4)) != 0xCAFEBABE) {
-                        Util.writeEntry(out, entry.getName(), src);
-                        return;
-                    }
+                if (shard == null) {
+                    out.write(nativeDir + "/Loader.class", createLoaderClass(nativeDir, metadataReader));
+                }
 
-                    StringBuilder nativeMethods = new StringBuilder();
-                    List<HiddenCppMethod> hiddenMethods = new ArrayList<>();
+                Logger.info("Jar file ready!");
+                libraryClassPath.store(metadataReader);
+                metadataReader.close();
+                if (session == null) {
+                    libraryClassPath.close();
+                }
+            }
 
-                    ClassReader classReader = new ClassReader(src);
-                    ClassNode rawClassNode = new ClassNode(Opcodes.ASM7);
-                    classReader.accept(rawClassNode, 0);
+            metrics.phase("sources");
+            try (Writer writer = Files.newBufferedWriter(cppDir.resolve("string_pool.cpp"))) {
+                if (shard == null) {
+                    stringPool.build(writer);
+                } else {
+                    stringPool.build(writer, "native_jvm::shards::" + shard.getName() + "::string_pool");
+                }
+            }
+            if (transpilationCache != null) {
+                transpilationCache.storeStringLayout(stringPool);
+            }
+            stringPool.close();
+            try (Writer writer = Files.newBufferedWriter(cppDir.resolve("native_jvm_output.cpp"))) {
+                if (shard == null) {
+                    mainSourceBuilder.build(writer, nativeDir, currentClassId);
+                } else {
+                    mainSourceBuilder.buildShard(writer, shard.getName(), currentClassId);
+                }
+            }
+            if (config.getUnitSize() > 0) {
+                UnitPartitioner.partition(cppOutput, mainSourceBuilder.getClassFilenames(),
+                    mainSourceBuilder.getOptimizationFlags(), config.getUnitSize() * 1024);
+            }
 
-                    // Check if class should be processed based on include/exclude patterns
-                    if (!config.shouldProcessClass(rawClassNode.name)) {
-                        Logger.info("Skipping {}", rawClassNode.name);
-                        Util.writeEntry(out, entry.getName(), src);
-                        return;
-                    }
+            if (metrics.isEnabled()) {
+                try (Stream<Path> sources = Files.walk(cppDir)) {
+                    metrics.count("cpp.bytes", sources.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum());
+                }
+            }
 
-                    if (rawClassNode.methods.stream().noneMatch(node -> MethodProcessor.shouldProcess(rawClassNode, node, config.isAnnotations()))) {
-                        Util.writeEntry(out, entry.getName(), src);
-                        return;
+            // Compile the source-code with Zig
+            metrics.phase("compile");
+            try {
+                List<Path> paths = zigCompiler.finish();
+
+                // Write the compiled libraries into the jarfile
+                metrics.phase("write");
+                for (Path path : paths) {
+                    if (shard != null) {
+                        Files.copy(path, shard.getDirectory().resolve(path.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                        continue;
                     }
+                    Logger.info("Writing {} to {}", path.getFileName().toString(), nativeDir + "/" + path.getFileName());
+                    out.write(nativeDir + "/" + path.getFileName().toString(), Files.readAllBytes(path));
+                }
+                compiled = true;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempJarFile);
+            throw ex;
+        }
 
-                    Logger.info("Preprocessing {}", rawClassNode.name);
+        if (compiled) {
+            Files.move(tempJarFile, outputJar, StandardCopyOption.REPLACE_EXISTING);
+            if (shard != null) {
+                shard.complete(shardInputHash, currentClassId);
+                Logger.info("Shard {} of {} written to {}", shard.getIndex(), shard.getCount(), shard.getDirectory());
+            }
+        } else {
+            Files.deleteIfExists(tempJarFile);
+        }
 
-                    rawClassNode.methods.stream()
-                        .filter(node -> MethodProcessor.shouldProcess(rawClassNode, node, config.isAnnotations()))
-                        .forEach(methodNode -> PreprocessorRunner.preprocess(rawClassNode, methodNode, config.getPlatform()));
+        if (config.isDeleteTempDir()) {
+            Util.deleteDirectory(workingDir);
+        }
+        return compiled;
+    }
 
-                    ClassWriter preprocessorClassWriter = new SafeClassWriter(metadataReader, Opcodes.ASM7 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-                    rawClassNode.accept(preprocessorClassWriter);
-                    classReader = new ClassReader(preprocessorClassWriter.toByteArray());
-                    ClassNode classNode = new ClassNode(Opcodes.ASM7);
-                    classReader.accept(classNode, 0);
+    /**
+     * @return The loader class, moved into the native directory
+     */
+    public static byte[] createLoaderClass(String nativeDir, ClassMetadataReader metadataReader) throws IOException {
+        String loaderClassName = nativeDir + "/Loader";
 
-                    Logger.info("Processing {}", classNode.name);
+        ClassReader loaderClassReader = new ClassReader(Objects.requireNonNull(NativeObfuscator.class
+            .getResourceAsStream("loader/Loader.class")));
+        ClassNode loaderClass = new ClassNode(Opcodes.ASM7);
+        loaderClassReader.accept(loaderClass, 0);
+        loaderClass.sourceFile = "synthetic";
 
-                    if (classNode.methods.stream().noneMatch(x -> x.name.equals("<clinit>"))) {
-                        classNode.methods.add(new MethodNode(Opcodes.ASM7, Opcodes.ACC_STATIC,
-                            "<clinit>", "()V", null, new String[0]));
-                    }
+        ClassNode resultLoaderClass = new ClassNode(Opcodes.ASM7);
+        String originalLoaderClassName = loaderClass.name;
+        loaderClass.accept(new ClassRemapper(resultLoaderClass, new Remapper() {
+            @Override
+            public String map(String internalName) {
+                return internalName.equals(originalLoaderClassName) ? loaderClassName : internalName;
+            }
+        }));
+        resultLoaderClass.version = Opcodes.V1_8;
 
-                    cachedStrings.clear();
-                    cachedClasses.clear();
-                    cachedMethods.clear();
-                    cachedFields.clear();
+        ClassWriter classWriter = new SafeClassWriter(metadataReader, Opcodes.ASM7 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        resultLoaderClass.accept(classWriter);
+        return classWriter.toByteArray();
+    }
 
-                    try (ClassSourceBuilder cppBuilder =
-                             new ClassSourceBuilder(cppOutput, classNode.name, classIndexReference[0]++, stringPool)) {
-                        StringBuilder instructions = new StringBuilder();
+    /**
+     * Sets the directory of the loader and the hidden classes, methods can be transpiled once it has been set.
+     */
+    public void setNativeDir(String nativeDir) {
+        this.nativeDir = nativeDir;
+        this.hiddenMethodsPool = new HiddenMethodsPool(nativeDir + "/hidden");
+    }
 
-                        for (int i = 0; i < classNode.methods.size(); i++) {
-                            MethodNode method = classNode.methods.get(i);
+    /**
+     * Writes a hidden class, into the jar on Android and otherwise as class data which is defined by the library.
+     */
+    private void emitHiddenClass(ClassNode hiddenClass, ObfuscatorConfig config, JarWriter out,
+                                 ClassMetadataReader metadataReader, Path cppOutput,
+                                 MainSourceBuilder mainSourceBuilder, ZigCompiler zigCompiler) throws IOException {
+        ClassWriter classWriter = new SafeClassWriter(metadataReader, Opcodes.ASM7 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        hiddenClass.accept(classWriter);
+        byte[] data = classWriter.toByteArray();
+        if (config.getPlatform() == Platform.ANDROID) {
+            out.write(hiddenClass.name + ".class", data);
+            return;
+        }
 
-                            if (!MethodProcessor.shouldProcess(classNode, method, config.isAnnotations())) {
-                                continue;
-                            }
+        String hiddenClassFileName = "data_" + Util.escapeCppNameString(hiddenClass.name.replace('/', '_'));
 
-                            MethodContext context = new MethodContext(this, method, i, classNode, currentClassId);
-                            methodProcessor.processMethod(context);
-                            instructions.append(context.output.toString().replace("\n", "\n    "));
+        mainSourceBuilder.addHeader(hiddenClassFileName + ".hpp");
+        mainSourceBuilder.registerDefine(stringPool.get(hiddenClass.name), hiddenClassFileName);
 
-                            nativeMethods.append(context.nativeMethods);
+        try (BufferedWriter hppWriter = Files.newBufferedWriter(cppOutput.resolve(hiddenClassFileName + ".hpp"))) {
+            hppWriter.append("#include \"../native_jvm.hpp\"\n\n");
+            hppWriter.append("#ifndef ").append(hiddenClassFileName.toUpperCase()).append("_HPP_GUARD\n\n");
+            hppWriter.append("#define ").append(hiddenClassFileName.toUpperCase()).append("_HPP_GUARD\n\n");
+            hppWriter.append("namespace native_jvm::data::__ngen_").append(hiddenClassFileName).append(" {\n");
+            hppWriter.append("    const jbyte* get_class_data();\n");
+            hppWriter.append("    const jsize get_class_data_length();\n");
+            hppWriter.append("}\n\n");
+            hppWriter.append("#endif\n");
+        }
 
-                            if (context.proxyMethod != null) {
-                                hiddenMethods.add(new HiddenCppMethod(context.proxyMethod, context.cppNativeMethodName));
-                            }
+        Path source = cppOutput.resolve(hiddenClassFileName + ".cpp");
+        try (BufferedWriter cppWriter = Files.newBufferedWriter(source)) {
+            cppWriter.append("#include \"").append(hiddenClassFileName).append(".hpp\"\n\n");
+            cppWriter.append("namespace native_jvm::data::__ngen_").append(hiddenClassFileName).append(" {\n");
+            // The array includes the terminator of the literal, which is not part of the class data
+            cppWriter.append("    static const jbyte class_data[").append(String.valueOf(data.length + 1)).append("] =");
+            ByteLiteralWriter literalWriter = new ByteLiteralWriter(cppWriter, "        ");
+            literalWriter.write(data);
+            literalWriter.finish();
+            cppWriter.append(";\n");
+            cppWriter.append("    static const jsize class_data_length = ").append(String.valueOf(data.length)).append(";\n\n");
+            cppWriter.append("    const jbyte* get_class_data() { return class_data; }\n");
+            cppWriter.append("    const jsize get_class_data_length() { return class_data_length; }\n");
+            cppWriter.append("}\n");
+        }
+        zigCompiler.submit(source);
+    }
 
-                            if ((classNode.access & Opcodes.ACC_INTERFACE) > 0) {
-                                method.access &= ~Opcodes.ACC_NATIVE;
-                            }
-                        }
+    /**
+     * Runs every jar entry through the preprocessing, transpilation and class writing stages.
+     * <p>
+     * Every class is preprocessed, transpiled and written on the given executor. A class is transpiled with its own
+     * caches and instruction handlers, and with local string and hidden method pools, since the offsets of strings,
+     * the names of hidden methods and the ids of classes are handed out in first-use order. The classes are merged in
+     * jar order: their strings and hidden methods are requested from the pools of the build in the order the class has
+     * used them and the offsets in its source are moved to the ones of the build, so the output does not depend on
+     * the thread count. A class whose hidden methods end up in another hidden class than expected is transpiled
+     * again during the merge.
+     * <p>
+     * Class sources are submitted to the compiler as soon as they have been merged, unless they may still be grouped
+     * into a translation unit.
+     * <p>
+     * With a memory budget only a few merged classes may wait for the entries in front of them and hidden classes are
+     * emitted as soon as they are full, so the memory use does not depend on the size of the jar.
+     */
+    private void processEntries(JarFile jar, ZipIndex jarIndex, JarWriter out, ObfuscatorConfig config,
+                                ClassMetadataReader metadataReader, Path cppOutput,
+                                MainSourceBuilder mainSourceBuilder, ZigCompiler zigCompiler, Executor executor,
+                                int lookahead) throws IOException {
+        long unitBudget = config.getUnitSize() * 1024;
+        boolean boundedMemory = config.getMemoryBudget() > 0;
+        // A single thread transpiles every class against the pools of the build right away
+        boolean parallel = config.getTranspileThreads() > 1;
+        int maxPendingWrites = boundedMemory ? lookahead : Integer.MAX_VALUE;
+        // Shards only contain their own class files, all other entries are copied by the merge
+        Iterator<JarEntry> entries = jar.stream()
+            .filter(entry -> !entry.getName().equals(JarFile.MANIFEST_NAME))
+            .filter(entry -> shard == null || (entry.getName().endsWith(".class") && shard.contains(entry.getName())))
+            .iterator();
+        Deque<CompletableFuture<PreprocessedEntry>> preprocessed = new ArrayDeque<>();
+        Deque<PendingEntry> pendingEntries = new ArrayDeque<>();
+        Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+        int classIndex = 0;
 
-                        if (config.isAnnotations()) {
-                            ClassMethodFilter.cleanAnnotations(classNode);
-                        }
+        while (entries.hasNext() || !preprocessed.isEmpty() || !pendingEntries.isEmpty()) {
+            while (entries.hasNext() && preprocessed.size() < lookahead) {
+                JarEntry entry = entries.next();
+                preprocessed.add(CompletableFuture.supplyAsync(() ->
+                    preprocessEntry(jar, entry, config, metadataReader), executor));
+            }
 
-                        classNode.version = rawClassNode.version;
-                        ClassWriter classWriter = new SafeClassWriter(metadataReader,
-                            Opcodes.ASM7 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-                        classNode.accept(classWriter);
-                        Util.writeEntry(out, entry.getName(), classWriter.toByteArray());
+            if (!preprocessed.isEmpty() && pendingEntries.size() < lookahead &&
+                (pendingEntries.isEmpty() || !pendingEntries.peek().isDone())) {
+                PreprocessedEntry result = await(preprocessed.poll());
+                if (result == null) {
+                    continue;
+                }
+                if (result.classNode == null && result.cachedClass == null) {
+                    pendingEntries.add(new PendingEntry(result, -1, -1, null));
+                    continue;
+                }
 
-                        cppBuilder.addHeader(cachedStrings.size(), cachedClasses.size(), cachedMethods.size(), cachedFields.size());
-                        cppBuilder.addInstructions(instructions.toString());
-                        cppBuilder.registerMethods(cachedStrings, cachedClasses, nativeMethods.toString(), hiddenMethods);
+                // Class indices and ids are handed out in jar order, cached classes are only reused with the same ones
+                int transpiledClassIndex = classIndex++;
+                int transpiledClassId = currentClassId++;
+                CompletableFuture<TranspiledClass> transpiled = null;
+                if (parallel && result.classNode != null) {
+                    String hiddenClassName = hiddenMethodsPool.getNextClassName();
+                    transpiled = CompletableFuture.supplyAsync(() -> transpileApart(result, config, cppOutput,
+                        transpiledClassIndex, transpiledClassId, hiddenClassName), executor);
+                }
+                pendingEntries.add(new PendingEntry(result, transpiledClassIndex, transpiledClassId, transpiled));
+                continue;
+            }
 
-                        mainSourceBuilder.addHeader(cppBuilder.getHppFilename());
-                        mainSourceBuilder.registerClassMethods(currentClassId, cppBuilder.getFilename());
-                    }
+            if (boundedMemory) {
+                hiddenMethodsPool.emitClasses(false, hiddenClass -> emitHiddenClass(hiddenClass, config, out,
+                    metadataReader, cppOutput, mainSourceBuilder, zigCompiler));
+            }
+            PendingWrite pendingWrite = mergeEntry(pendingEntries.poll(), config, metadataReader, cppOutput,
+                mainSourceBuilder, zigCompiler, executor, unitBudget);
+            if (pendingWrite != null) {
+                pendingWrites.add(pendingWrite);
+            }
+            writePending(jarIndex, out, pendingWrites, maxPendingWrites);
+        }
 
-                    currentClassId++;
-                } catch (IOException ex) {
-                    Logger.error("Error while processing {}", entry.getName(), ex);
+        writePending(jarIndex, out, pendingWrites, 0);
+    }
+
+    /**
+     * Merges an entry into the build in jar order: restores or transpiles its class if that has not happened yet and
+     * starts writing the final class.
+     *
+     * @return The entry to write into the output jar, null if the entry is left out
+     */
+    private PendingWrite mergeEntry(PendingEntry pending, ObfuscatorConfig config, ClassMetadataReader metadataReader,
+                                    Path cppOutput, MainSourceBuilder mainSourceBuilder, ZigCompiler zigCompiler,
+                                    Executor executor, long unitBudget) throws IOException {
+        PreprocessedEntry result = pending.result;
+        if (result.classNode == null && result.cachedClass == null) {
+            // Untouched entries are copied without being decompressed, shards leave them to the merge
+            metrics.count("entries.copied", 1);
+            return shard == null ? new PendingWrite(result.entry, null) : null;
+        }
+
+        // Hidden methods which have been created by a failed restore or merge count as created by the class
+        Set<HiddenMethodsPool.HiddenMethod> createdMethods = new HashSet<>();
+        if (result.cachedClass != null) {
+            hiddenMethodsPool.startRecording();
+            boolean restored = restoreClass(result.cachedClass, cppOutput, mainSourceBuilder, pending.classIndex,
+                pending.classId);
+            createdMethods.addAll(getCreatedMethods(hiddenMethodsPool.stopRecording()));
+            if (restored) {
+                Logger.info("Using cached {}", result.cachedClass.getFilename());
+                metrics.count("classes.restored", 1);
+                submitClassSource(zigCompiler, cppOutput, result.cachedClass.getFilename(),
+                    result.cachedClass.getOptimizationFlag(), unitBudget);
+                return new PendingWrite(result.entry, CompletableFuture.completedFuture(result.cachedClass.getClassData()));
+            }
+            result = preprocessClass(result.entry, result.data, readClass(result.data), config, metadataReader,
+                result.cacheKey);
+        }
+
+        if (transpilationCache != null) {
+            stringPool.startRecording();
+            hiddenMethodsPool.startRecording();
+        }
+        String filename;
+        Map<String, Long> strings = null;
+        List<HiddenMethodsPool.HiddenMethodRequest> hiddenMethodRequests = null;
+        try {
+            TranspiledClass transpiled = pending.transpiled == null ? null : await(pending.transpiled);
+            if (pending.transpiled != null && transpiled == null) {
+                return null;
+            }
+            filename = transpiled != null ? transpiled.filename : null;
+            if (transpiled != null && !mergeClass(transpiled, result.classNode, cppOutput)) {
+                Logger.info("Transpiling {} again, its hidden methods are placed into another class", result.classNode.name);
+                metrics.count("classes.retranspiled", 1);
+                if (transpilationCache != null) {
+                    stringPool.stopRecording();
+                    createdMethods.addAll(getCreatedMethods(hiddenMethodsPool.stopRecording()));
+                    stringPool.startRecording();
+                    hiddenMethodsPool.startRecording();
                 }
+                result = preprocessClass(result.entry, result.data, readClass(result.data), config, metadataReader,
+                    result.cacheKey);
+                filename = null;
+            }
+            if (filename == null) {
+                filename = transpileClass(result, config, cppOutput,
+                    new ClassContext(nativeDir, stringPool, hiddenMethodsPool), pending.classIndex, pending.classId);
+            }
+            mainSourceBuilder.addHeader(filename + ".hpp");
+            mainSourceBuilder.registerClassMethods(pending.classId, filename, result.optimizationFlag);
+            submitClassSource(zigCompiler, cppOutput, filename, result.optimizationFlag, unitBudget);
+        } catch (IOException ex) {
+            Logger.error("Error while processing {}", result.entry.getName(), ex);
+            return null;
+        } finally {
+            if (transpilationCache != null) {
+                strings = stringPool.stopRecording();
+                hiddenMethodRequests = hiddenMethodsPool.stopRecording();
+            }
+        }
+
+        PreprocessedEntry transpiled = result;
+        CompletableFuture<byte[]> data = CompletableFuture.supplyAsync(() -> {
+            try (BuildMetrics.Span span = metrics.start("write", transpiled.classNode.name)) {
+                byte[] classData = writeClass(metadataReader, transpiled.classNode);
+                span.arg("bytes", classData.length);
+                return classData;
+            }
+        }, executor);
+        if (transpilationCache != null) {
+            List<CachedClass.CachedHiddenMethod> hiddenMethods = hiddenMethodRequests.stream()
+                .map(request -> CachedClass.CachedHiddenMethod.of(request,
+                    request.isCreated() || createdMethods.contains(request.getHiddenMethod())))
+                .collect(Collectors.toList());
+            Map<String, Long> classStrings = strings;
+            String classFilename = filename;
+            data = data.thenApply(classData -> {
+                cacheClass(transpiled, metadataReader, cppOutput, pending.classIndex, pending.classId,
+                    classFilename, classData, classStrings, hiddenMethods);
+                return classData;
             });
+        }
+        return new PendingWrite(result.entry, data);
+    }
 
-            if (config.getPlatform() == Platform.ANDROID) {
-                for (ClassNode hiddenClass : hiddenMethodsPool.getClasses()) {
-                    ClassWriter classWriter = new SafeClassWriter(metadataReader, Opcodes.ASM7 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-                    hiddenClass.accept(classWriter);
-                    Util.writeEntry(out, hiddenClass.name + ".class", classWriter.toByteArray());
+    private static Set<HiddenMethodsPool.HiddenMethod> getCreatedMethods(
+        List<HiddenMethodsPool.HiddenMethodRequest> requests) {
+        return requests.stream()
+            .filter(HiddenMethodsPool.HiddenMethodRequest::isCreated)
+            .map(HiddenMethodsPool.HiddenMethodRequest::getHiddenMethod)
+            .collect(Collectors.toSet());
+    }
+
+    /**
+     * Transpiles a class with its own string and hidden method pools, so it does not depend on the classes in front
+     * of it. Runs on the executor.
+     *
+     * @param hiddenClassName The hidden class the pool of the build is expected to place new hidden methods into
+     * @return The transpiled class or null if its sources could not be written
+     */
+    private TranspiledClass transpileApart(PreprocessedEntry result, ObfuscatorConfig config, Path cppOutput,
+                                           int classIndex, int classId, String hiddenClassName) {
+        StringPool localStringPool = new StringPool();
+        localStringPool.startRecording();
+        HiddenMethodsPool localHiddenMethodsPool = HiddenMethodsPool.local(hiddenClassName);
+        try {
+            String filename = transpileClass(result, config, cppOutput,
+                new ClassContext(nativeDir, localStringPool, localHiddenMethodsPool), classIndex, classId);
+            return new TranspiledClass(filename, localStringPool.stopRecording(), localHiddenMethodsPool);
+        } catch (IOException ex) {
+            Logger.error("Error while processing {}", result.entry.getName(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Requests the strings and hidden methods of a class transpiled apart from the pools of the build, in the order
+     * the class has used them, and rewrites its source and bytecode with their offsets and names in the build.
+     *
+     * @return Whether the class could be merged, false if its hidden methods are placed into another class
+     */
+    private boolean mergeClass(TranspiledClass transpiled, ClassNode classNode, Path cppOutput) throws IOException {
+        try (BuildMetrics.Span span = metrics.start("merge", classNode.name)) {
+            // The methods have to be in the expected hidden class, the source registers them per class
+            Map<String, String> methodNames = new HashMap<>();
+            if (!hiddenMethodsPool.merge(transpiled.hiddenMethodsPool, methodNames)) {
+                return false;
+            }
+
+            Map<Long, Long> offsets = new HashMap<>();
+            for (Map.Entry<String, Long> string : transpiled.strings.entrySet()) {
+                String value = HiddenMethodsPool.isPlaceholder(string.getKey())
+                    ? methodNames.get(string.getKey()) : string.getKey();
+                if (value == null) {
+                    return false;
                 }
-            } else {
-                for (ClassNode hiddenClass : hiddenMethodsPool.getClasses()) {
-                    String hiddenClassFileName = "data_" + Util.escapeCppNameString(hiddenClass.name.replace('/', '_'));
-
-                    mainSourceBuilder.addHeader(hiddenClassFileName + ".hpp");
-                    mainSourceBuilder.registerDefine(stringPool.get(hiddenClass.name), hiddenClassFileName);
-
-                    ClassWriter classWriter = new SafeClassWriter(metadataReader, Opcodes.ASM7 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-                    hiddenClass.accept(classWriter);
-                    byte[] rawData = classWriter.toByteArray();
-                    List<Byte> data = new ArrayList<>(rawData.length);
-                    for (byte b : rawData) {
-                        data.add(b);
-                    }
+                offsets.put(string.getValue(), stringPool.getOffset(value));
+            }
+            span.arg("strings", offsets.size());
 
-                    try (BufferedWriter hppWriter = Files.newBufferedWriter(cppOutput.resolve(hiddenClassFileName + ".hpp"))) {
-                        hppWriter.append("#include \"../native_jvm.hpp\"\n\n");
-                        hppWriter.append("#ifndef ").append(hiddenClassFileName.toUpperCase()).append("_HPP_GUARD\n\n");
-                        hppWriter.append("#define ").append(hiddenClassFileName.toUpperCase()).append("_HPP_GUARD\n\n");
-                        hppWriter.append("namespace native_jvm::data::__ngen_").append(hiddenClassFileName).append(" {\n");
-                        hppWriter.append("    const jbyte* get_class_data();\n");
-                        hppWriter.append("    const jsize get_class_data_length();\n");
-                        hppWriter.append("}\n\n");
-                        hppWriter.append("#endif\n");
-                    }
+            // The header does not refer to any strings
+            Path source = cppOutput.resolve(transpiled.filename + ".cpp");
+            StringPool.relocate(source, offsets);
 
-                    try (BufferedWriter cppWriter = Files.newBufferedWriter(cppOutput.resolve(hiddenClassFileName + ".cpp"))) {
-                        cppWriter.append("#include \"").append(hiddenClassFileName).append(".hpp\"\n\n");
-                        cppWriter.append("namespace native_jvm::data::__ngen_").append(hiddenClassFileName).append(" {\n");
-                        cppWriter.append("    static const jbyte class_data[").append(String.valueOf(data.size())).append("] = { ");
-                        cppWriter.append(data.stream().map(String::valueOf).collect(Collectors.joining(", ")));
-                        cppWriter.append("};\n");
-                        cppWriter.append("    static const jsize class_data_length = ").append(String.valueOf(data.size())).append(";\n\n");
-                        cppWriter.append("    const jbyte* get_class_data() { return class_data; }\n");
-                        cppWriter.append("    const jsize get_class_data_length() { return class_data_length; }\n");
-                        cppWriter.append("}\n");
+            for (MethodNode method : classNode.methods) {
+                for (AbstractInsnNode instruction : method.instructions) {
+                    if (instruction instanceof MethodInsnNode methodInstruction &&
+                        HiddenMethodsPool.isPlaceholder(methodInstruction.name)) {
+                        methodInstruction.name = methodNames.get(methodInstruction.name);
                     }
                 }
             }
+            return true;
+        }
+    }
+
+    /**
+     * Compiles a class source right away, unless it is small enough to be grouped into a translation unit once all
+     * classes have been transpiled. Sources with their own optimization level are never grouped.
+     *
+     * @param optimizationFlag The optimization flag of the source, null for the level of the build
+     * @param unitBudget       The maximum size of a translation unit in bytes, 0 if classes are not grouped
+     */
+    private static void submitClassSource(ZigCompiler zigCompiler, Path cppOutput, String filename,
+                                          String optimizationFlag, long unitBudget) throws IOException {
+        Path source = cppOutput.resolve(filename + ".cpp");
+        if (unitBudget <= 0 || optimizationFlag != null || Files.size(source) >= unitBudget) {
+            zigCompiler.submit(source, optimizationFlag);
+        }
+    }
+
+    /**
+     * Reads a jar entry and, if it is a class which has to be transpiled, runs the preprocessors on it.
+     *
+     * @return The preprocessed entry or null if the entry could not be read
+     */
+    private PreprocessedEntry preprocessEntry(JarFile jar, JarEntry entry, ObfuscatorConfig config,
+                                              ClassMetadataReader metadataReader) {
+        try {
+            if (!entry.getName().endsWith(".class")) {
+                return new PreprocessedEntry(entry, null, null, 0);
+            }
 
-            String loaderClassName = nativeDir + "/Loader";
+            byte[] src;
+            try (BuildMetrics.Span span = metrics.start("read", entry.getName());
+                 InputStream in = jar.getInputStream(entry)) {
+                src = readEntry(in, entry);
+                span.arg("bytes", src.length);
+            }
+            metrics.count("read.bytes", src.length);
 
-            ClassReader loaderClassReader = new ClassReader(Objects.requireNonNull(NativeObfuscator.class
-                .getResourceAsStream("loader/Loader.class")));
-            ClassNode loaderClass = new ClassNode(Opcodes.ASM7);
-            loaderClassReader.accept(loaderClass, 0);
-            loaderClass.sourceFile = "synthetic";
+            if (src.length < 4 || Util.byteArrayToInt(src, 0) != 0xCAFEBABE) {
+                return new PreprocessedEntry(entry, src, null, 0);
+            }
+
+            ClassNode rawClassNode = readClass(src);
 
-            ClassNode resultLoaderClass = new ClassNode(Opcodes.ASM7);
-            String originalLoaderClassName = loaderClass.name;
-            loaderClass.accept(new ClassRemapper(resultLoaderClass, new Remapper() {
-                @Override
-                public String map(String internalName) {
-                    return internalName.equals(originalLoaderClassName) ? loaderClassName : internalName;
+            // Check if class should be processed based on include/exclude patterns
+            if (!config.shouldProcessClass(rawClassNode.name)) {
+                Logger.info("Skipping {}", rawClassNode.name);
+                return new PreprocessedEntry(entry, src, null, 0);
+            }
+
+            if (rawClassNode.methods.stream().noneMatch(node -> classMethodFilter.shouldProcess(rawClassNode, node))) {
+                return new PreprocessedEntry(entry, src, null, 0);
+            }
+
+            String cacheKey = null;
+            if (transpilationCache != null) {
+                cacheKey = transpilationCache.getKey(src);
+                CachedClass cachedClass = transpilationCache.load(cacheKey);
+                if (cachedClass != null && cachedClass.dependenciesMatch(metadataReader)) {
+                    return new PreprocessedEntry(entry, src, cacheKey, cachedClass);
                 }
-            }));
-            resultLoaderClass.version = Opcodes.V1_8;
+            }
+
+            return preprocessClass(entry, src, rawClassNode, config, metadataReader, cacheKey);
+        } catch (IOException ex) {
+            Logger.error("Error while processing {}", entry.getName(), ex);
+            return null;
+        }
+    }
 
-            ClassWriter classWriter = new SafeClassWriter(metadataReader, Opcodes.ASM7 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-            resultLoaderClass.accept(classWriter);
-            Util.writeEntry(out, loaderClassName + ".class", classWriter.toByteArray());
+    /**
+     * Runs the preprocessors on a class and recomputes the stack map frames of the methods they have changed.
+     * <p>
+     * The frames of all other methods are taken from the class file. Class files older than Java 7 may come without
+     * frames, their processed methods always get computed frames.
+     *
+     * @param cacheKey The key of the class in the transpilation cache, null if the cache is disabled
+     */
+    private PreprocessedEntry preprocessClass(JarEntry entry, byte[] src, ClassNode classNode, ObfuscatorConfig config,
+                                              ClassMetadataReader metadataReader, String cacheKey) {
+        Logger.info("Preprocessing {}", classNode.name);
+        BuildMetrics.Span span = metrics.start("preprocess", classNode.name);
 
-            Logger.info("Jar file ready!");
-            Manifest mf = jar.getManifest();
-            if (mf != null) {
-                out.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
-                mf.write(out);
+        boolean missingFrames = (classNode.version & 0xFFFF) < Opcodes.V1_7;
+        List<Integer> changedMethods = new ArrayList<>();
+        for (int i = 0; i < classNode.methods.size(); i++) {
+            MethodNode methodNode = classNode.methods.get(i);
+            if (!classMethodFilter.shouldProcess(classNode, methodNode)) {
+                continue;
             }
-            out.closeEntry();
-            metadataReader.close();
+            if (PreprocessorRunner.preprocess(classNode, methodNode, config.getPlatform()) || missingFrames) {
+                changedMethods.add(i);
+            }
+        }
+
+        Set<String> resolvedTypes = cacheKey == null ? null : new HashSet<>();
+        recomputeFrames(metadataReader, classNode, changedMethods, resolvedTypes);
+        span.arg("changedMethods", changedMethods.size()).close();
+        // Taken before the annotations are removed by the transpilation
+        return new PreprocessedEntry(entry, src, classNode, classNode.version, cacheKey, resolvedTypes,
+            getOptimizationFlag(classNode));
+    }
+
+    /**
+     * Reuses the cached sources of a class if the class index, string offsets and hidden methods are still the same.
+     *
+     * @return Whether the cached class could be reused
+     */
+    private boolean restoreClass(CachedClass cachedClass, Path cppOutput, MainSourceBuilder mainSourceBuilder,
+                                 int classIndex, int classId) throws IOException {
+        if (cachedClass.getClassIndex() != classIndex || cachedClass.getClassId() != classId ||
+            !cachedClass.restore(stringPool, hiddenMethodsPool)) {
+            return false;
         }
 
-        Files.writeString(cppDir.resolve("string_pool.cpp"), stringPool.build());
-        Files.writeString(cppDir.resolve("native_jvm_output.cpp"), mainSourceBuilder.build(nativeDir, currentClassId));
+        Files.write(cppOutput.resolve(cachedClass.getFilename() + ".cpp"), cachedClass.getCppSource());
+        Files.write(cppOutput.resolve(cachedClass.getFilename() + ".hpp"), cachedClass.getHppSource());
+        mainSourceBuilder.addHeader(cachedClass.getFilename() + ".hpp");
+        mainSourceBuilder.registerClassMethods(classId, cachedClass.getFilename(), cachedClass.getOptimizationFlag());
+        return true;
+    }
+
+    /**
+     * Stores a transpiled class in the cache once its final class file has been written.
+     */
+    private void cacheClass(PreprocessedEntry transpiled, ClassMetadataReader metadataReader, Path cppOutput,
+                            int classIndex, int classId, String filename, byte[] classData,
+                            Map<String, Long> strings, List<CachedClass.CachedHiddenMethod> hiddenMethods) {
+        Map<String, List<String>> dependencies = new LinkedHashMap<>();
+        new TreeSet<>(transpiled.resolvedTypes)
+            .forEach(type -> dependencies.put(type, metadataReader.getSuperClasses(type)));
 
-        // Compile the source-code with Zig
         try {
-            List<Path> paths = ZigCompiler.compileWithZig(config.getZigExecutable(),
-                workingDir,
-                cppDir,
-                config.getZigCompileThreads(),
-                true,
-                config.getZigCompilerTargets());
-
-            // Copy the compiled libraries into the jarfile
-            try (FileSystem fileSystem = FileSystems.newFileSystem(tempJarFile)) {
-                for (Path path : paths) {
-                    Logger.info("Copying {} to {}", path.getFileName().toString(), nativeDir + "/" + path.getFileName());
-                    Path zipPath = fileSystem.getPath(nativeDir + "/" + path.getFileName().toString());
-                    Files.copy(path, zipPath);
+            transpilationCache.store(transpiled.cacheKey, new CachedClass(classIndex, classId, filename,
+                transpiled.optimizationFlag,
+                Files.readAllBytes(cppOutput.resolve(filename + ".cpp")),
+                Files.readAllBytes(cppOutput.resolve(filename + ".hpp")),
+                classData, strings, hiddenMethods, dependencies));
+        } catch (IOException ex) {
+            Logger.warn("Could not cache {}", filename, ex);
+        }
+    }
+
+    /**
+     * Transpiles all methods of a preprocessed class and writes its cpp source files.
+     *
+     * @param classContext The pools the class is transpiled with
+     * @param classId      The id of the class within the build or shard
+     * @return The name of the written source files without extension
+     */
+    private String transpileClass(PreprocessedEntry preprocessedEntry, ObfuscatorConfig config, Path cppOutput,
+                                  ClassContext classContext, int classIndex, int classId) throws IOException {
+        ClassNode classNode = preprocessedEntry.classNode;
+        StringBuilder nativeMethods = new StringBuilder();
+        List<HiddenCppMethod> hiddenMethods = new ArrayList<>();
+
+        Logger.info("Processing {}", classNode.name);
+        BuildMetrics.Span span = metrics.start("transpile", classNode.name);
+
+        if (classNode.methods.stream().noneMatch(x -> x.name.equals("<clinit>"))) {
+            classNode.methods.add(new MethodNode(Opcodes.ASM7, Opcodes.ACC_STATIC,
+                "<clinit>", "()V", null, new String[0]));
+        }
+
+        String filename;
+        try (ClassSourceBuilder cppBuilder = new ClassSourceBuilder(cppOutput, classNode.name, classIndex,
+            classContext.getStringPool())) {
+            cppBuilder.addHeader();
+
+            for (int i = 0; i < classNode.methods.size(); i++) {
+                MethodNode method = classNode.methods.get(i);
+
+                if (!classMethodFilter.shouldProcess(classNode, method)) {
+                    continue;
+                }
+
+                MethodContext context = new MethodContext(classContext, method, i, classNode,
+                    shard == null ? classId : shard.getClassId(classId),
+                    cppBuilder.getMethodEmitter(), config.isInstructionComments());
+                NativeObfuscateOptions options = NativeObfuscateOptions.of(classNode, method);
+                context.eager = options.isEager();
+                context.unchecked = options.isUnchecked();
+                try (BuildMetrics.Span methodSpan = metrics.start("method", classNode.name + "." + method.name + method.desc)) {
+                    methodSpan.arg("instructions", method.instructions.size());
+                    classContext.getMethodProcessor().processMethod(context);
                 }
+                metrics.count("methods.transpiled", 1);
+
+                nativeMethods.append(context.nativeMethods);
+
+                if (context.proxyMethod != null) {
+                    hiddenMethods.add(new HiddenCppMethod(context.proxyMethod, context.cppNativeMethodName));
+                }
+
+                if ((classNode.access & Opcodes.ACC_INTERFACE) > 0) {
+                    method.access &= ~Opcodes.ACC_NATIVE;
+                }
+            }
+
+            if (config.isAnnotations()) {
+                ClassMethodFilter.cleanAnnotations(classNode);
             }
 
-            Files.copy(tempJarFile, config.getOutputJar().toPath(), StandardCopyOption.REPLACE_EXISTING);
-        } catch (Exception e) {
-            e.printStackTrace();
+            classNode.version = preprocessedEntry.version;
+
+            cppBuilder.addCaches(classContext.getCachedStrings().size(), classContext.getCachedClasses().size(),
+                classContext.getCachedMethods().size(), classContext.getCachedFields().size());
+            cppBuilder.registerMethods(classContext.getCachedStrings(), classContext.getCachedClasses(),
+                nativeMethods.toString(), hiddenMethods);
+            filename = cppBuilder.getFilename();
         }
 
-        if (config.isDeleteTempDir()) {
-            Util.deleteDirectory(workingDir);
+        if (metrics.isEnabled()) {
+            span.arg("cppBytes", Files.size(cppOutput.resolve(filename + ".cpp")) +
+                Files.size(cppOutput.resolve(filename + ".hpp")));
+            metrics.count("classes.transpiled", 1);
+        }
+        span.close();
+        return filename;
+    }
+
+    /**
+     * A class source is compiled with the fastest level any of its transpiled methods asks for, the static initializer
+     * only runs once and is left out.
+     *
+     * @return The optimization flag of the class source, null if it is compiled with the level of the build
+     */
+    private String getOptimizationFlag(ClassNode classNode) {
+        boolean optimized = false;
+        boolean o2 = false;
+        for (MethodNode method : classNode.methods) {
+            if (method.name.equals("<clinit>") || !classMethodFilter.shouldProcess(classNode, method)) {
+                continue;
+            }
+            switch (NativeObfuscateOptions.of(classNode, method).getOptimization()) {
+                case DEFAULT:
+                case O3:
+                    return null;
+                case O2:
+                    o2 = true;
+                    break;
+                case OS:
+                    break;
+            }
+            optimized = true;
+        }
+        return !optimized ? null : o2 ? "-O2" : "-Os";
+    }
+
+    /**
+     * Writes pending jar entries in their original order, stops at the first entry which is still being written.
+     *
+     * @param maxPending The amount of entries which may stay pending, the oldest entries are waited for beyond it
+     */
+    private static void writePending(ZipIndex jarIndex, JarWriter out, Deque<PendingWrite> pendingWrites,
+                                     int maxPending) throws IOException {
+        while (!pendingWrites.isEmpty() && (pendingWrites.size() > maxPending || pendingWrites.peek().isDone())) {
+            PendingWrite pendingWrite = pendingWrites.poll();
+            if (pendingWrite.data == null) {
+                out.copy(jarIndex, jarIndex.getEntry(pendingWrite.entry.getName()));
+            } else {
+                out.write(pendingWrite.entry.getName(), await(pendingWrite.data));
+            }
+        }
+    }
+
+    /**
+     * Reads the entry into an array of its exact size, falls back to reading the whole stream if the size is unknown.
+     */
+    private static byte[] readEntry(InputStream in, JarEntry entry) throws IOException {
+        long size = entry.getSize();
+        if (size < 0 || size > Integer.MAX_VALUE - 8) {
+            return in.readAllBytes();
+        }
+
+        byte[] data = new byte[(int) size];
+        if (in.readNBytes(data, 0, data.length) != data.length || in.read() != -1) {
+            throw new IOException("Size mismatch of " + entry.getName());
+        }
+        return data;
+    }
+
+    private static ClassNode readClass(byte[] data) {
+        ClassNode classNode = new ClassNode(Opcodes.ASM7);
+        new ClassReader(data).accept(classNode, 0);
+        return classNode;
+    }
+
+    /**
+     * Writes a transpiled class. Transpiled methods are either native or a straight call of their native counterpart,
+     * so no stack map frames have to be computed and the frames of all other methods are kept as they are.
+     */
+    private static byte[] writeClass(ClassMetadataReader metadataReader, ClassNode classNode) {
+        ClassWriter classWriter = new SafeClassWriter(metadataReader, Opcodes.ASM7 | ClassWriter.COMPUTE_MAXS);
+        classNode.accept(classWriter);
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * Replaces the given methods by a copy with computed maxs and stack map frames.
+     *
+     * @param methodIndices The indices of the methods in the class
+     * @param resolvedTypes Receives the types whose hierarchy the stack map frames depend on, may be null
+     */
+    private static void recomputeFrames(ClassMetadataReader metadataReader, ClassNode classNode,
+                                        List<Integer> methodIndices, Set<String> resolvedTypes) {
+        if (methodIndices.isEmpty()) {
+            return;
+        }
+
+        // Frames only depend on the class header and the method itself
+        ClassWriter classWriter = new SafeClassWriter(metadataReader, Opcodes.ASM7 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES,
+            resolvedTypes);
+        classWriter.visit(classNode.version, classNode.access, classNode.name, classNode.signature, classNode.superName,
+            classNode.interfaces.toArray(new String[0]));
+        for (int index : methodIndices) {
+            classNode.methods.get(index).accept(classWriter);
+        }
+        classWriter.visitEnd();
+
+        ClassNode computedClass = readClass(classWriter.toByteArray());
+        for (int i = 0; i < methodIndices.size(); i++) {
+            classNode.methods.set(methodIndices.get(i), computedClass.methods.get(i));
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (ex.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw ex;
+        }
+    }
+
+    private static class PreprocessedEntry {
+        private final JarEntry entry;
+        private final byte[] data;
+        private final ClassNode classNode;
+        private final int version;
+        private final String cacheKey;
+        private final CachedClass cachedClass;
+        private final Set<String> resolvedTypes;
+        // The optimization flag of the class source, null if it is compiled with the level of the build
+        private final String optimizationFlag;
+
+        private PreprocessedEntry(JarEntry entry, byte[] data, ClassNode classNode, int version) {
+            this(entry, data, classNode, version, null, null, null);
+        }
+
+        private PreprocessedEntry(JarEntry entry, byte[] data, ClassNode classNode, int version, String cacheKey,
+                                  Set<String> resolvedTypes, String optimizationFlag) {
+            this.entry = entry;
+            this.data = data;
+            this.classNode = classNode;
+            this.version = version;
+            this.cacheKey = cacheKey;
+            this.cachedClass = null;
+            this.resolvedTypes = resolvedTypes;
+            this.optimizationFlag = optimizationFlag;
+        }
+
+        private PreprocessedEntry(JarEntry entry, byte[] data, String cacheKey, CachedClass cachedClass) {
+            this.entry = entry;
+            this.data = data;
+            this.classNode = null;
+            this.version = 0;
+            this.cacheKey = cacheKey;
+            this.cachedClass = cachedClass;
+            this.resolvedTypes = null;
+            this.optimizationFlag = null;
+        }
+    }
+
+    private static class PendingEntry {
+        private final PreprocessedEntry result;
+        private final int classIndex;
+        private final int classId;
+        // The class transpiled apart from the pools of the build, null if it is restored or transpiled by the merge
+        private final CompletableFuture<TranspiledClass> transpiled;
+
+        private PendingEntry(PreprocessedEntry result, int classIndex, int classId,
+                             CompletableFuture<TranspiledClass> transpiled) {
+            this.result = result;
+            this.classIndex = classIndex;
+            this.classId = classId;
+            this.transpiled = transpiled;
+        }
+
+        private boolean isDone() {
+            return transpiled == null || transpiled.isDone();
+        }
+    }
+
+    private static class TranspiledClass {
+        private final String filename;
+        // The offsets of the strings in the local pool, in the order the class has used them
+        private final Map<String, Long> strings;
+        private final HiddenMethodsPool hiddenMethodsPool;
+
+        private TranspiledClass(String filename, Map<String, Long> strings, HiddenMethodsPool hiddenMethodsPool) {
+            this.filename = filename;
+            this.strings = strings;
+            this.hiddenMethodsPool = hiddenMethodsPool;
+        }
+    }
+
+    private static class PendingWrite {
+        private final JarEntry entry;
+        private final CompletableFuture<byte[]> data;
+
+        private PendingWrite(JarEntry entry, CompletableFuture<byte[]> data) {
+            this.entry = entry;
+            this.data = data;
+        }
+
+        private boolean isDone() {
+            return data == null || data.isDone();
         }
     }
 }
@@ -1,6 +1,6 @@
 package dev.lennoxlotl.obfuscator;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class NodeCache<T> {
@@ -10,7 +10,8 @@ public class NodeCache<T> {
 
     public NodeCache(String pointerPattern) {
         this.pointerPattern = pointerPattern;
-        cache = new HashMap<>();
+        // Iterates in the order of the ids, so sources do not depend on the hashes of the keys
+        cache = new LinkedHashMap<>();
     }
 
     public String getPointer(T key) {
@@ -3,64 +3,252 @@ package dev.lennoxlotl.obfuscator;
 import dev.lennoxlotl.obfuscator.source.StringPool;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Properties;
+import java.io.UncheckedIOException;
+import java.util.*;
 
+/**
+ * Cpp snippets used for every transpiled instruction.
+ * <p>
+ * The snippets are parsed into templates once, so rendering only appends literal parts and token values. A token
+ * {@code $name} is replaced by the value of the longest token name it starts with, the rest of the name is kept.
+ * Variables declared in {@code <KEY>_S_VARS} are replaced by pointers into the string pool, {@code #NAME} variables
+ * use the constant {@code <KEY>_S_CONST_NAME} and {@code $name} variables the value of the token.
+ * <p>
+ * Tokens which are neither in {@link #TOKENS} nor declared variables are rejected when the snippets are parsed, and
+ * tokens without a value when a snippet is rendered, so a misspelled token never reaches the generated code.
+ */
 public class Snippets {
 
-    private final Properties snippets;
+    // The tokens the instruction handlers provide values for
+    private static final Set<String> TOKENS = createTokens();
+
+    // The parsed snippets only depend on the bundled properties, a long running process parses them once
+    private static Map<String, Snippet> parsedSnippets;
+
+    private final Map<String, Snippet> snippets;
     private final StringPool stringPool;
 
     public Snippets(StringPool stringPool) {
         this.stringPool = stringPool;
-        snippets = new Properties();
+        this.snippets = getParsedSnippets();
+    }
 
+    private static synchronized Map<String, Snippet> getParsedSnippets() {
+        if (parsedSnippets != null) {
+            return parsedSnippets;
+        }
+
+        Properties properties = new Properties();
         try {
-            snippets.load(NativeObfuscator.class.getClassLoader()
+            properties.load(NativeObfuscator.class.getClassLoader()
                     .getResourceAsStream("sources/cppsnippets.properties"));
         } catch (IOException e) {
             throw new RuntimeException("Can't load cpp snippets", e);
         }
-    }
 
-    private String[] getVars(String key) {
-        key += "_S_VARS";
-        String result = snippets.getProperty(key);
-        if(result == null || result.isEmpty()) {
-            return new String[0];
+        Map<String, Snippet> snippets = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (!isMetadata(key)) {
+                snippets.put(key, new Snippet(key, properties));
+            }
         }
-        return result.split(",");
+
+        for (String key : properties.stringPropertyNames()) {
+            if (key.endsWith("_S_VARS") && !snippets.containsKey(key.substring(0, key.length() - "_S_VARS".length()))) {
+                throw new RuntimeException("Variables declared for unknown snippet: " + key);
+            }
+        }
+        parsedSnippets = snippets;
+        return snippets;
     }
 
     public String getSnippet(String key) {
-        return getSnippet(key, Util.createMap());
+        return getSnippet(key, Collections.emptyMap());
     }
 
     public String getSnippet(String key, Map<String, String> tokens) {
-        String value = snippets.getProperty(key);
-        Objects.requireNonNull(value, key);
-
-        String[] stringVars = getVars(key);
-        Map<String, String> result = new HashMap<>();
-        for (String var : stringVars) {
-            if (var.startsWith("#")) {
-                result.put(var, snippets.getProperty(key + "_S_CONST_" + var.substring(1)));
-            } else if (var.startsWith("$")) {
-                result.put(var, tokens.get(var.substring(1)));
-            } else {
-                throw new RuntimeException("Unknown format modifier: " + var);
+        StringBuilder output = new StringBuilder();
+        appendSnippet(output, key, tokens);
+        return output.toString();
+    }
+
+    /**
+     * Renders the snippet directly into the output.
+     */
+    public void appendSnippet(Appendable output, String key, Map<String, String> tokens) {
+        Snippet snippet = snippets.get(key);
+        Objects.requireNonNull(snippet, key);
+        try {
+            snippet.render(output, tokens, stringPool);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static Set<String> createTokens() {
+        Set<String> tokens = new HashSet<>(List.of("arg", "args", "class_ptr", "count", "cst", "cst_ptr", "desc",
+                "desc_ptr", "dims", "exception_class_ptr", "fieldid", "handler_block", "incr", "index", "key", "label",
+                "line", "methodid", "objectstackindex", "operand", "required_count", "rettype", "returnstackindex",
+                "sort", "trycatchhandler", "var"));
+        // GenericInstructionHandler provides the stack pointer with an offset of up to 5
+        for (int i = -5; i <= 5; i++) {
+            tokens.add("stackindex" + (i >= 0 ? i : "m" + (-i)));
+        }
+        return Set.copyOf(tokens);
+    }
+
+    private static boolean isMetadata(String key) {
+        return key.endsWith("_S_VARS") || key.contains("_S_CONST_");
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static class Snippet {
+        private final String key;
+        // Declared string variables, in the order their strings are added to the pool
+        private final String[] variables;
+        // Constant value of every declared variable, null for variables taking the value of a token
+        private final String[] constants;
+        // Literal parts and tokens, literal parts are strings
+        private final List<Object> parts = new ArrayList<>();
+
+        private Snippet(String key, Properties properties) {
+            this.key = key;
+
+            String vars = properties.getProperty(key + "_S_VARS");
+            // Strings have always been requested in the iteration order of a hash map, keeping it keeps their offsets
+            Map<String, Boolean> declaredVariables = new HashMap<>();
+            if (vars != null && !vars.isEmpty()) {
+                for (String var : vars.split(",")) {
+                    if (!var.startsWith("#") && !var.startsWith("$")) {
+                        throw new RuntimeException(key + " - unknown format modifier: " + var);
+                    }
+                    declaredVariables.put(var, Boolean.TRUE);
+                }
+            }
+
+            variables = declaredVariables.keySet().toArray(new String[0]);
+            constants = new String[variables.length];
+            for (int i = 0; i < variables.length; i++) {
+                if (variables[i].startsWith("#")) {
+                    constants[i] = properties.getProperty(key + "_S_CONST_" + variables[i].substring(1));
+                    if (constants[i] == null) {
+                        throw new RuntimeException(key + " - missing constant for " + variables[i]);
+                    }
+                }
+            }
+
+            parse(properties.getProperty(key));
+        }
+
+        private void parse(String value) {
+            StringBuilder literal = new StringBuilder();
+            int i = 0;
+            while (i < value.length()) {
+                char c = value.charAt(i);
+                int end = i + 1;
+                while (end < value.length() && isNameChar(value.charAt(end))) {
+                    end++;
+                }
+
+                Token token = (c == '$' || c == '#') && end > i + 1 ? createToken(value.substring(i, end)) : null;
+                if (token == null) {
+                    literal.append(c);
+                    i++;
+                    continue;
+                }
+
+                if (literal.length() > 0) {
+                    parts.add(literal.toString());
+                    literal.setLength(0);
+                }
+                parts.add(token);
+                i = end;
+            }
+            if (literal.length() > 0) {
+                parts.add(literal.toString());
+            }
+        }
+
+        /**
+         * @param text The token including its prefix character
+         * @return The token or null if it is a {@code #} which is not a declared variable, e.g. a preprocessor
+         * directive
+         */
+        private Token createToken(String text) {
+            List<String> names = new ArrayList<>();
+            List<Integer> variableIndices = new ArrayList<>();
+            for (int length = text.length(); length > 1; length--) {
+                String name = text.substring(0, length);
+                int variableIndex = Arrays.asList(variables).indexOf(name);
+                if (variableIndex == -1 && (name.startsWith("#") || !TOKENS.contains(name.substring(1)))) {
+                    // Constants can only be declared variables
+                    continue;
+                }
+
+                names.add(name.substring(1));
+                variableIndices.add(variableIndex);
+                if (variableIndex != -1) {
+                    // Declared variables always have a value
+                    break;
+                }
+            }
+
+            if (names.isEmpty()) {
+                if (text.startsWith("$")) {
+                    throw new RuntimeException(key + " - unknown token: " + text);
+                }
+                return null;
+            }
+            return new Token(text, names.toArray(new String[0]),
+                    variableIndices.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        private void render(Appendable output, Map<String, String> tokens, StringPool stringPool) throws IOException {
+            String[] pointers = new String[variables.length];
+            for (int i = 0; i < variables.length; i++) {
+                String value = constants[i] != null ? constants[i] : tokens.get(variables[i].substring(1));
+                if (value == null) {
+                    throw new RuntimeException(key + " - token value can't be null");
+                }
+                pointers[i] = stringPool.get(value);
+            }
+
+            for (Object part : parts) {
+                if (part instanceof String) {
+                    output.append((String) part);
+                } else {
+                    ((Token) part).render(key, output, tokens, pointers);
+                }
             }
         }
+    }
 
-        result.entrySet().stream().filter(var -> var.getValue() == null).findAny().ifPresent(entry -> {
-            throw new RuntimeException(key + " - token value can't be null");
-        });
+    private static class Token {
+        private final String text;
+        // Names the token may refer to, longest first
+        private final String[] names;
+        // Index of the declared variable of every name, -1 for names which are looked up in the tokens
+        private final int[] variableIndices;
 
-        result.entrySet().forEach(entry -> entry.setValue(stringPool.get(entry.getValue())));
-        tokens.forEach((k, v) -> result.putIfAbsent("$" + k, v));
+        private Token(String text, String[] names, int[] variableIndices) {
+            this.text = text;
+            this.names = names;
+            this.variableIndices = variableIndices;
+        }
 
-        return Util.dynamicRawFormat(value, result);
+        private void render(String key, Appendable output, Map<String, String> tokens, String[] pointers)
+                throws IOException {
+            for (int i = 0; i < names.length; i++) {
+                String value = variableIndices[i] != -1 ? pointers[variableIndices[i]] : tokens.get(names[i]);
+                if (value != null) {
+                    output.append(value).append(text, names[i].length() + 1, text.length());
+                    return;
+                }
+            }
+            throw new RuntimeException(key + " - no value for token " + text);
+        }
     }
 }
@@ -16,14 +16,11 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
-import java.util.zip.ZipOutputStream;
 
 public class Util {
 
@@ -99,20 +96,6 @@ public class Util {
         }
     }
 
-    public static void writeEntry(JarFile f, ZipOutputStream out, JarEntry e) throws IOException {
-        out.putNextEntry(new JarEntry(e.getName()));
-        try (InputStream in = f.getInputStream(e)) {
-            transfer(in, out);
-        }
-        out.closeEntry();
-    }
-
-    public static void writeEntry(ZipOutputStream out, String entryName, byte[] data) throws IOException {
-        out.putNextEntry(new JarEntry(entryName));
-        out.write(data, 0, data.length);
-        out.closeEntry();
-    }
-
     static void transfer(InputStream in, OutputStream out) throws IOException {
         byte[] buffer = new byte[4096];
         for (int r = in.read(buffer, 0, 4096); r != -1; r = in.read(buffer, 0, 4096)) {
@@ -164,6 +147,10 @@ public class Util {
         return 0;
     }
 
+    public static int byteArrayToInt(byte[] b, int offset) {
+        return b[offset] << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | (b[offset + 3] & 0xff);
+    }
+
     public static String getOpcodesString(int value, String prefix) {
         for (Field f : Opcodes.class.getFields()) {
             try {
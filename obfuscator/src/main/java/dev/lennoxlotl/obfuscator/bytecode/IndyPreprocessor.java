@@ -368,12 +368,15 @@ public class IndyPreprocessor implements Preprocessor {
     }
 
     @Override
-    public void process(ClassNode classNode, MethodNode methodNode, Platform platform) {
+    public boolean process(ClassNode classNode, MethodNode methodNode, Platform platform) {
+        boolean changed = false;
         for (int i = 0; i < methodNode.instructions.size(); i++) {
             AbstractInsnNode insnNode = methodNode.instructions.get(i);
             if (insnNode instanceof InvokeDynamicInsnNode) {
                 processIndy(classNode, methodNode, (InvokeDynamicInsnNode) insnNode, platform);
+                changed = true;
             }
         }
+        return changed;
     }
 }
@@ -7,7 +7,8 @@ import org.objectweb.asm.tree.*;
 
 public class LdcPreprocessor implements Preprocessor {
     @Override
-    public void process(ClassNode classNode, MethodNode methodNode, Platform platform) {
+    public boolean process(ClassNode classNode, MethodNode methodNode, Platform platform) {
+        boolean changed = false;
         AbstractInsnNode insnNode = methodNode.instructions.getFirst();
         while (insnNode != null) {
             if (insnNode instanceof LdcInsnNode) {
@@ -16,6 +17,7 @@ public class LdcPreprocessor implements Preprocessor {
                 if (ldcInsnNode.cst instanceof Handle) {
                     methodNode.instructions.insertBefore(ldcInsnNode,
                             MethodHandleUtils.generateMethodHandleLdcInsn((Handle) ldcInsnNode.cst));
+                    changed = true;
                     AbstractInsnNode nextInsnNode = insnNode.getNext();
                     methodNode.instructions.remove(insnNode);
                     insnNode = nextInsnNode;
@@ -28,6 +30,7 @@ public class LdcPreprocessor implements Preprocessor {
                     if (type.getSort() == Type.METHOD) {
                         methodNode.instructions.insertBefore(ldcInsnNode,
                                 MethodHandleUtils.generateMethodTypeLdcInsn(type));
+                        changed = true;
                         AbstractInsnNode nextInsnNode = insnNode.getNext();
                         methodNode.instructions.remove(insnNode);
                         insnNode = nextInsnNode;
@@ -37,5 +40,6 @@ public class LdcPreprocessor implements Preprocessor {
 
             insnNode = insnNode.getNext();
         }
+        return changed;
     }
 }
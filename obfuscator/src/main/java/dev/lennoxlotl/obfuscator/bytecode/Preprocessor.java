@@ -6,5 +6,8 @@ import org.objectweb.asm.tree.MethodNode;
 
 public interface Preprocessor {
 
-    void process(ClassNode classNode, MethodNode methodNode, Platform platform);
+    /**
+     * @return Whether the instructions of the method have been changed
+     */
+    boolean process(ClassNode classNode, MethodNode methodNode, Platform platform);
 }
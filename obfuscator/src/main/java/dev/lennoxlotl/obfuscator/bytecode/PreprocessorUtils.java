@@ -12,7 +12,8 @@ import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class PreprocessorUtils {
-    private static final String MAGIC_CONST = String.valueOf(Math.random());
+    // Fixed instead of random, so a class is transpiled to the same sources in every run and its object can be reused
+    private static final String MAGIC_CONST = "0.3819660112501051";
 
     public static final Supplier<AbstractInsnNode> LOOKUP_LOCAL = () -> new MethodInsnNode(Opcodes.INVOKESTATIC,
             "native/magic/1/lookup/obfuscator" + MAGIC_CONST, "a",
@@ -0,0 +1,231 @@
+package dev.lennoxlotl.obfuscator.cache;
+
+import dev.lennoxlotl.obfuscator.HiddenMethodsPool;
+import dev.lennoxlotl.obfuscator.source.StringPool;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import ru.gravit.launchserver.asm.ClassMetadataReader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transpilation result of a single class.
+ * <p>
+ * The generated sources reference string pool offsets, hidden methods and the class index, which all depend on the
+ * classes processed before. A cached class is therefore only reused if replaying its string and hidden method requests
+ * on the current pools yields the same offsets and names as in the run it has been created in.
+ */
+@Getter
+@AllArgsConstructor
+public class CachedClass {
+    private int classIndex;
+    private int classId;
+    private String filename;
+    // The optimization flag the source is compiled with, null for the level of the build
+    private String optimizationFlag;
+    private byte[] cppSource;
+    private byte[] hppSource;
+    private byte[] classData;
+    // Every requested string with its offset, in the order of the first request
+    private Map<String, Long> strings;
+    private List<CachedHiddenMethod> hiddenMethods;
+    // Super classes of every type looked up while computing the stack map frames
+    private Map<String, List<String>> dependencies;
+
+    /**
+     * Checks whether the hierarchy of every type the stack map frames depend on is still the same.
+     */
+    public boolean dependenciesMatch(ClassMetadataReader metadataReader) {
+        return dependencies.entrySet().stream()
+            .allMatch(entry -> metadataReader.getSuperClasses(entry.getKey()).equals(entry.getValue()));
+    }
+
+    /**
+     * Requests all hidden methods and strings of this class in their original order. If this is the first request
+     * of a hidden method created by this class it is recreated from the cached method.
+     * <p>
+     * Transpiling the class makes the same requests in the same order, so the pools stay consistent even if the
+     * cached class can't be reused and the class has to be transpiled again.
+     *
+     * @return Whether all names and offsets match the cached ones
+     */
+    public boolean restore(StringPool stringPool, HiddenMethodsPool hiddenMethodsPool) {
+        for (CachedHiddenMethod cachedMethod : hiddenMethods) {
+            HiddenMethodsPool.HiddenMethod hiddenMethod = cachedMethod.methodData == null
+                ? hiddenMethodsPool.findMethod(cachedMethod.name, cachedMethod.desc)
+                : hiddenMethodsPool.getMethod(cachedMethod.name, cachedMethod.desc, cachedMethod::copyTo);
+            if (hiddenMethod == null ||
+                !hiddenMethod.getClassNode().name.equals(cachedMethod.className) ||
+                !hiddenMethod.getMethodNode().name.equals(cachedMethod.methodName)) {
+                return false;
+            }
+        }
+
+        for (Map.Entry<String, Long> string : strings.entrySet()) {
+            if (stringPool.getOffset(string.getKey()) != string.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(classIndex);
+        out.writeInt(classId);
+        out.writeUTF(filename);
+        out.writeBoolean(optimizationFlag != null);
+        if (optimizationFlag != null) {
+            out.writeUTF(optimizationFlag);
+        }
+        writeBytes(out, cppSource);
+        writeBytes(out, hppSource);
+        writeBytes(out, classData);
+
+        out.writeInt(strings.size());
+        for (Map.Entry<String, Long> string : strings.entrySet()) {
+            out.writeUTF(string.getKey());
+            out.writeLong(string.getValue());
+        }
+
+        out.writeInt(hiddenMethods.size());
+        for (CachedHiddenMethod hiddenMethod : hiddenMethods) {
+            hiddenMethod.write(out);
+        }
+
+        out.writeInt(dependencies.size());
+        for (Map.Entry<String, List<String>> dependency : dependencies.entrySet()) {
+            out.writeUTF(dependency.getKey());
+            out.writeInt(dependency.getValue().size());
+            for (String superClass : dependency.getValue()) {
+                out.writeUTF(superClass);
+            }
+        }
+    }
+
+    public static CachedClass read(DataInputStream in) throws IOException {
+        int classIndex = in.readInt();
+        int classId = in.readInt();
+        String filename = in.readUTF();
+        String optimizationFlag = in.readBoolean() ? in.readUTF() : null;
+        byte[] cppSource = readBytes(in);
+        byte[] hppSource = readBytes(in);
+        byte[] classData = readBytes(in);
+
+        int stringCount = in.readInt();
+        Map<String, Long> strings = new LinkedHashMap<>();
+        for (int i = 0; i < stringCount; i++) {
+            strings.put(in.readUTF(), in.readLong());
+        }
+
+        int hiddenMethodCount = in.readInt();
+        List<CachedHiddenMethod> hiddenMethods = new ArrayList<>(hiddenMethodCount);
+        for (int i = 0; i < hiddenMethodCount; i++) {
+            hiddenMethods.add(CachedHiddenMethod.read(in));
+        }
+
+        int dependencyCount = in.readInt();
+        Map<String, List<String>> dependencies = new LinkedHashMap<>();
+        for (int i = 0; i < dependencyCount; i++) {
+            String type = in.readUTF();
+            int superClassCount = in.readInt();
+            List<String> superClasses = new ArrayList<>(superClassCount);
+            for (int j = 0; j < superClassCount; j++) {
+                superClasses.add(in.readUTF());
+            }
+            dependencies.put(type, superClasses);
+        }
+
+        return new CachedClass(classIndex, classId, filename, optimizationFlag, cppSource, hppSource, classData,
+            strings, hiddenMethods, dependencies);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+
+    /**
+     * A hidden method requested by the cached class. Methods which have been created by the request are stored as
+     * well, since later classes may rely on them.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class CachedHiddenMethod {
+        private String name;
+        private String desc;
+        private String className;
+        private String methodName;
+        // Class file containing only the created method, null if the method already existed
+        private byte[] methodData;
+
+        /**
+         * @param created Whether the method has been created by the cached class
+         */
+        public static CachedHiddenMethod of(HiddenMethodsPool.HiddenMethodRequest request, boolean created) {
+            HiddenMethodsPool.HiddenMethod hiddenMethod = request.getHiddenMethod();
+            byte[] methodData = null;
+            if (created) {
+                ClassNode classNode = new ClassNode(Opcodes.ASM7);
+                classNode.version = Opcodes.V1_8;
+                classNode.access = Opcodes.ACC_PUBLIC;
+                classNode.name = hiddenMethod.getClassNode().name;
+                classNode.superName = "java/lang/Object";
+                classNode.methods.add(hiddenMethod.getMethodNode());
+
+                // Frames and maxs are computed once the hidden class is written
+                ClassWriter classWriter = new ClassWriter(0);
+                classNode.accept(classWriter);
+                methodData = classWriter.toByteArray();
+            }
+            return new CachedHiddenMethod(request.getName(), request.getDesc(), hiddenMethod.getClassNode().name,
+                hiddenMethod.getMethodNode().name, methodData);
+        }
+
+        private void copyTo(MethodNode methodNode) {
+            ClassNode classNode = new ClassNode(Opcodes.ASM7);
+            new ClassReader(methodData).accept(classNode, 0);
+            MethodNode cachedMethod = classNode.methods.get(0);
+
+            methodNode.access = cachedMethod.access;
+            methodNode.signature = cachedMethod.signature;
+            cachedMethod.accept(methodNode);
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(name);
+            out.writeUTF(desc);
+            out.writeUTF(className);
+            out.writeUTF(methodName);
+            out.writeBoolean(methodData != null);
+            if (methodData != null) {
+                writeBytes(out, methodData);
+            }
+        }
+
+        private static CachedHiddenMethod read(DataInputStream in) throws IOException {
+            String name = in.readUTF();
+            String desc = in.readUTF();
+            String className = in.readUTF();
+            String methodName = in.readUTF();
+            byte[] methodData = in.readBoolean() ? readBytes(in) : null;
+            return new CachedHiddenMethod(name, desc, className, methodName, methodData);
+        }
+    }
+}
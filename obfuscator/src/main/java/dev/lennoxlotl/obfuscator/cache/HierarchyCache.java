@@ -0,0 +1,137 @@
+package dev.lennoxlotl.obfuscator.cache;
+
+import org.tinylog.Logger;
+import ru.gravit.launchserver.asm.ClassMetadataReader;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+
+/**
+ * Persistent cache of the super classes of library classes, shared between runs.
+ * <p>
+ * Super classes are stored per library jar by a hash of its content, so a changed jar starts with an empty cache.
+ * Only classes which are actually loaded from that jar in the current class path are taken over.
+ */
+public class HierarchyCache {
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path directory;
+    private final Map<String, String> libraryKeys = new LinkedHashMap<>();
+    private final Map<String, Map<String, String>> loadedSuperClasses = new HashMap<>();
+
+    public HierarchyCache(Path directory, List<Path> libraries) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        for (Path library : libraries) {
+            libraryKeys.put(library.toFile().getPath(), getKey(library));
+        }
+    }
+
+    public void load(ClassMetadataReader metadataReader) {
+        int loadedClasses = 0;
+        for (Map.Entry<String, String> library : libraryKeys.entrySet()) {
+            Path file = getLibraryFile(library.getValue());
+            if (!Files.exists(file)) {
+                continue;
+            }
+
+            Map<String, String> superClasses = new HashMap<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String type = in.readUTF();
+                    superClasses.put(type, in.readBoolean() ? in.readUTF() : null);
+                }
+            } catch (IOException ex) {
+                Logger.warn("Ignoring unreadable hierarchy cache entry {}", file);
+                continue;
+            }
+            loadedSuperClasses.put(library.getKey(), superClasses);
+
+            // Classes shadowed by an earlier jar of the class path are loaded from that jar instead
+            Map<String, String> ownedSuperClasses = new HashMap<>();
+            superClasses.forEach((type, superClass) -> {
+                if (isOwner(metadataReader.getOwner(type), library.getKey())) {
+                    ownedSuperClasses.put(type, superClass);
+                }
+            });
+            metadataReader.preloadSuperClasses(ownedSuperClasses);
+            loadedClasses += ownedSuperClasses.size();
+        }
+        Logger.info("Loaded {} cached library super classes", loadedClasses);
+    }
+
+    /**
+     * Stores the super classes looked up in this run for every library which has new ones.
+     */
+    public void store(ClassMetadataReader metadataReader) {
+        Map<String, Map<String, String>> librarySuperClasses = new HashMap<>();
+        metadataReader.getKnownSuperClasses().forEach((type, superClass) -> {
+            JarFile owner = metadataReader.getOwner(type);
+            if (owner != null && libraryKeys.containsKey(owner.getName())) {
+                librarySuperClasses.computeIfAbsent(owner.getName(), key -> new HashMap<>()).put(type, superClass);
+            }
+        });
+
+        librarySuperClasses.forEach((library, superClasses) -> {
+            Map<String, String> loaded = loadedSuperClasses.getOrDefault(library, Map.of());
+            if (loaded.keySet().containsAll(superClasses.keySet())) {
+                return;
+            }
+
+            Map<String, String> merged = new HashMap<>(loaded);
+            merged.putAll(superClasses);
+            try {
+                TranspilationCache.write(getLibraryFile(libraryKeys.get(library)), out -> {
+                    out.writeInt(merged.size());
+                    for (Map.Entry<String, String> entry : merged.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeBoolean(entry.getValue() != null);
+                        if (entry.getValue() != null) {
+                            out.writeUTF(entry.getValue());
+                        }
+                    }
+                });
+                // A long running process stores the next build's new super classes only
+                loadedSuperClasses.put(library, merged);
+            } catch (IOException ex) {
+                Logger.warn("Could not write hierarchy cache entry for {}", library, ex);
+            }
+        });
+    }
+
+    private static boolean isOwner(JarFile owner, String library) {
+        return owner != null && owner.getName().equals(library);
+    }
+
+    private Path getLibraryFile(String key) {
+        return directory.resolve(key + ".bin");
+    }
+
+    private static String getKey(Path library) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        digest.update(Integer.toString(FORMAT_VERSION).getBytes());
+
+        try (InputStream in = Files.newInputStream(library)) {
+            byte[] buffer = new byte[1 << 16];
+            for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+                digest.update(buffer, 0, length);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,223 @@
+package dev.lennoxlotl.obfuscator.cache;
+
+import dev.lennoxlotl.obfuscator.NativeObfuscator;
+import dev.lennoxlotl.obfuscator.config.ObfuscatorConfig;
+import dev.lennoxlotl.obfuscator.jfr.HotMethodAction;
+import dev.lennoxlotl.obfuscator.source.StringPool;
+import org.tinylog.Logger;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Persistent cache of transpiled classes, shared between runs.
+ * <p>
+ * Classes are stored by a hash of their bytes, the obfuscator build, the cpp snippets and the config values which
+ * change the generated code. The string pool layout of the last run is stored as well, preloading it keeps the
+ * offsets of unchanged strings stable so cached classes stay valid when other classes change.
+ */
+public class TranspilationCache {
+    private static final int FORMAT_VERSION = 2;
+    // Preloaded strings which are not used anymore are dropped once they take up more than this part of the pool
+    private static final double MAX_UNUSED_STRINGS = 0.25;
+
+    // The obfuscator build can't change while it is running, a long running process only hashes it once
+    private static byte[] obfuscatorBuildHash;
+
+    private final Path directory;
+    private final byte[] environmentHash;
+
+    public TranspilationCache(Path directory, ObfuscatorConfig config) throws IOException {
+        this.directory = directory;
+        this.environmentHash = getEnvironmentHash(config);
+
+        Files.createDirectories(directory.resolve("classes"));
+    }
+
+    /**
+     * @return The hash of everything besides the class itself which the transpiled sources depend on
+     */
+    public static byte[] getEnvironmentHash(ObfuscatorConfig config) throws IOException {
+        MessageDigest digest = createDigest();
+        digest.update(Integer.toString(FORMAT_VERSION).getBytes(StandardCharsets.UTF_8));
+        digest.update(getObfuscatorBuildHash());
+        try (InputStream in = Objects.requireNonNull(NativeObfuscator.class.getClassLoader()
+            .getResourceAsStream("sources/cppsnippets.properties"))) {
+            digest.update(in.readAllBytes());
+        }
+        digest.update(String.join("\n", config.getPlatform().name(), String.valueOf(config.isAnnotations()),
+            config.getLoaderDirectory(), String.valueOf(config.isInstructionComments())).getBytes(StandardCharsets.UTF_8));
+        // Hot methods of the recording stay bytecode, flagged ones don't change the output
+        if (config.getJfrRecording() != null && config.getJfrAction() == HotMethodAction.KEEP) {
+            digest.update(Double.toString(config.getJfrThreshold()).getBytes(StandardCharsets.UTF_8));
+            try (InputStream in = new DigestInputStream(Files.newInputStream(config.getJfrRecording().toPath()), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+        // Methods above the threshold stay bytecode, the report alone doesn't change the output
+        if (config.getJniCostThreshold() > 0) {
+            digest.update(Double.toString(config.getJniCostThreshold()).getBytes(StandardCharsets.UTF_8));
+        }
+        return digest.digest();
+    }
+
+    public String getKey(byte[] classData) {
+        MessageDigest digest = createDigest();
+        digest.update(environmentHash);
+        digest.update(classData);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return The cached class or null if there is no valid entry for the key
+     */
+    public CachedClass load(String key) {
+        Path file = getClassFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return CachedClass.read(in);
+        } catch (IOException ex) {
+            Logger.warn("Ignoring unreadable cache entry {}", file);
+            return null;
+        }
+    }
+
+    public void store(String key, CachedClass cachedClass) {
+        try {
+            Path file = getClassFile(key);
+            Files.createDirectories(file.getParent());
+            write(file, cachedClass::write);
+        } catch (IOException ex) {
+            Logger.warn("Could not write cache entry {}", key, ex);
+        }
+    }
+
+    /**
+     * @return The strings of the last string pool in the order of their offsets
+     */
+    public List<String> loadStringLayout() {
+        Path file = directory.resolve("strings.bin");
+        if (!Files.exists(file)) {
+            return Collections.emptyList();
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int count = in.readInt();
+            List<String> layout = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                layout.add(in.readUTF());
+            }
+            return layout;
+        } catch (IOException ex) {
+            Logger.warn("Ignoring unreadable string pool layout {}", file);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Stores the layout of the string pool for the next run. Strings which are not used anymore are kept until they
+     * take up too much space, removing them moves the following strings and invalidates the classes using them.
+     */
+    public void storeStringLayout(StringPool stringPool) {
+        boolean dropUnused = stringPool.getUnusedLength() > stringPool.getLength() * MAX_UNUSED_STRINGS;
+        if (dropUnused) {
+            Logger.info("Dropping unused strings from the cached string pool layout");
+        }
+
+        int count = dropUnused ? stringPool.getCount() - stringPool.getUnusedCount() : stringPool.getCount();
+        try {
+            write(directory.resolve("strings.bin"), out -> {
+                out.writeInt(count);
+                stringPool.forEach((value, unused) -> {
+                    if (!dropUnused || !unused) {
+                        out.writeUTF(value);
+                    }
+                });
+            });
+        } catch (IOException ex) {
+            Logger.warn("Could not write string pool layout", ex);
+        }
+    }
+
+    private Path getClassFile(String key) {
+        return directory.resolve("classes").resolve(key.substring(0, 2)).resolve(key + ".bin");
+    }
+
+    /**
+     * Writes into a temporary file first, so concurrent runs sharing the cache never read partially written files.
+     */
+    static void write(Path file, DataWriter writer) throws IOException {
+        Path tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                writer.write(out);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static synchronized byte[] getObfuscatorBuildHash() throws IOException {
+        if (obfuscatorBuildHash == null) {
+            MessageDigest digest = createDigest();
+            updateWithObfuscatorBuild(digest);
+            obfuscatorBuildHash = digest.digest();
+        }
+        return obfuscatorBuildHash;
+    }
+
+    /**
+     * Hashes the jar the obfuscator has been loaded from, or all of its class files when running from a directory.
+     */
+    private static void updateWithObfuscatorBuild(MessageDigest digest) throws IOException {
+        Path location;
+        try {
+            location = Path.of(NativeObfuscator.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException ex) {
+            throw new IOException("Can't locate the obfuscator build", ex);
+        }
+
+        if (!Files.isDirectory(location)) {
+            digest.update(Files.readAllBytes(location));
+            return;
+        }
+
+        try (Stream<Path> files = Files.walk(location)) {
+            for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(file));
+            }
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @FunctionalInterface
+    interface DataWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
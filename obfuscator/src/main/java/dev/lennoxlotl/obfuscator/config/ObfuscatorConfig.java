@@ -2,11 +2,15 @@ package dev.lennoxlotl.obfuscator.config;
 
 import dev.lennoxlotl.obfuscator.Platform;
 import dev.lennoxlotl.obfuscator.Util;
+import dev.lennoxlotl.obfuscator.jfr.HotMethodAction;
+import dev.lennoxlotl.obfuscator.zig.LinkProfile;
+import dev.lennoxlotl.obfuscator.zig.ProfileMode;
 import dev.lennoxlotl.obfuscator.zig.ZigCompilationTarget;
 import dev.lennoxlotl.obfuscator.zig.ZigTargetCompiler;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.ToString;
+import lombok.With;
 import org.tinylog.Logger;
 import org.tomlj.Toml;
 import org.tomlj.TomlArray;
@@ -23,6 +27,7 @@ import java.util.List;
 @Getter
 @ToString
 @AllArgsConstructor
+@With
 public class ObfuscatorConfig {
     private List<String> includePatterns;
     private List<String> excludePatterns;
@@ -34,9 +39,27 @@ public class ObfuscatorConfig {
     private Platform platform;
     private boolean annotations;
     private boolean deleteTempDir;
+    private int transpileThreads;
+    private File cacheDirectory;
+    private long unitSize;
+    private boolean instructionComments;
+    private File metricsDirectory;
+    private long memoryBudget;
+    private int shards;
+    private File shardDirectory;
+    private File jfrRecording;
+    private double jfrThreshold;
+    private HotMethodAction jfrAction;
+    private boolean jniCostReport;
+    private double jniCostThreshold;
     // Zig properties
     private String zigExecutable;
     private int zigCompileThreads;
+    private long zigMemoryLimit;
+    private LinkProfile zigLinkProfile;
+    private ProfileMode zigProfileMode;
+    private String zigProfdataExecutable;
+    private boolean zigBuildProject;
     private List<ZigCompilationTarget> zigCompilerTargets;
 
     /**
@@ -70,8 +93,26 @@ public class ObfuscatorConfig {
         String loaderDirectory = result.getString("loader", () -> "native0");
         boolean annotations = result.getBoolean("annotations", () -> false);
         boolean deleteTempDir = result.getBoolean("delete_temp_dir", () -> true);
+        int transpileThreads = (int) result.getLong("transpile_threads", () -> 1L);
+        String cache = result.getString("cache", () -> "");
+        long unitSize = result.getLong("unit_size", () -> 0L);
+        boolean instructionComments = result.getBoolean("instruction_comments", () -> false);
+        String metrics = result.getString("metrics", () -> "");
+        long memoryBudget = result.getLong("memory_budget", () -> 0L);
+        int shards = (int) result.getLong("shards", () -> 0L);
+        String shardDirectory = result.getString("shard_directory", () -> "shards");
+        String jfrRecording = result.getString("jfr", () -> "");
+        double jfrThreshold = result.getDouble("jfr_threshold", () -> 1.0);
+        String jfrAction = result.getString("jfr_action", () -> "keep");
+        boolean jniCostReport = result.getBoolean("jni_cost", () -> false);
+        double jniCostThreshold = result.getDouble("jni_cost_threshold", () -> 0.0);
         String zigExecutable = result.getString("zig.executable", () -> null);
         int zigCompileThreads = (int) result.getLong("zig.threads", () -> 1L);
+        long zigMemoryLimit = result.getLong("zig.memory", () -> 0L);
+        String zigLinkProfile = result.getString("zig.profile", () -> "default");
+        boolean zigPgo = result.getBoolean("zig.pgo", () -> false);
+        String zigProfdataExecutable = result.getString("zig.profdata", () -> "llvm-profdata");
+        boolean zigBuildProject = result.getBoolean("zig.build_project", () -> false);
         TomlArray targets = result.getArray("zig.targets");
         TomlArray includePatternsArray = result.getArray("include_patterns");
         TomlArray excludePatternsArray = result.getArray("exclude_patterns");
@@ -80,6 +121,10 @@ public class ObfuscatorConfig {
         File outputDir = new File(output);
         File librariesDir = new File(libraries);
         Platform enumPlatform = Platform.valueOf(platform.toUpperCase());
+        // An empty cache directory disables the transpilation cache
+        File cacheDir = cache.isEmpty() ? null : new File(cache);
+        // An empty metrics directory disables the build metrics
+        File metricsDir = metrics.isEmpty() ? null : new File(metrics);
 
         // Input file must exist and cannot be a directory
         if (!inputDir.exists() || inputDir.isDirectory()) {
@@ -92,6 +137,16 @@ public class ObfuscatorConfig {
             Logger.warn("Libraries directory is invalid, it will not be imported");
         }
 
+        // The recorded profiles are kept in the cache directory
+        if (zigPgo && cacheDir == null) {
+            throw new IllegalStateException("Profile guided optimization needs a cache directory");
+        }
+
+        // The generated build.zig has no way to pass a profile per source
+        if (zigPgo && zigBuildProject) {
+            throw new IllegalStateException("Profile guided optimization is not supported with the zig build project");
+        }
+
         if (targets == null || targets.isEmpty()) {
             throw new IllegalStateException("Please provide at least one compiler target!");
         }
@@ -128,8 +183,27 @@ public class ObfuscatorConfig {
             enumPlatform,
             annotations,
             deleteTempDir,
+            transpileThreads,
+            cacheDir,
+            unitSize,
+            instructionComments,
+            metricsDir,
+            memoryBudget,
+            shards,
+            new File(shardDirectory),
+            // An empty recording transpiles every method regardless of how hot it is
+            jfrRecording.isEmpty() ? null : new File(jfrRecording),
+            jfrThreshold,
+            HotMethodAction.valueOf(jfrAction.toUpperCase()),
+            jniCostReport,
+            jniCostThreshold,
             zigExecutable,
             zigCompileThreads,
+            zigMemoryLimit,
+            LinkProfile.valueOf(zigLinkProfile.toUpperCase()),
+            zigPgo ? ProfileMode.OPTIMIZE : ProfileMode.NONE,
+            zigProfdataExecutable,
+            zigBuildProject,
             compilerTargets);
     }
 
@@ -0,0 +1,280 @@
+package dev.lennoxlotl.obfuscator.cost;
+
+import dev.lennoxlotl.obfuscator.MethodProcessor;
+import dev.lennoxlotl.obfuscator.Util;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates how many JNI crossings the transpiled code of a method makes per bytecode instruction it executes.
+ * <p>
+ * The crossings of every instruction are taken from the code the instruction handlers emit once the caches are warm:
+ * field accesses and calls check the class cache with {@code IsSameObject}, cross for the access itself and check for
+ * a pending exception afterwards, array elements are read and written one at a time through {@code Get*ArrayRegion}
+ * and {@code Set*ArrayRegion}. The lookups of the class loader on entry are counted once per call. Instructions inside
+ * loops are weighted by how deeply they are nested, so a loop dominated by array accesses outweighs its setup.
+ */
+public class JniCostModel {
+    // Every loop an instruction is nested in multiplies its weight, deeper nesting is not told apart anymore
+    private static final int LOOP_WEIGHT = 10;
+    private static final int MAX_LOOP_DEPTH = 3;
+    // A rough cost of a crossing in JIT compiled bytecode instructions, only used for the estimated slowdown
+    private static final int CROSSING_INSTRUCTIONS = 20;
+
+    // Crossings per executed instruction at which a method stays bytecode, 0 transpiles every method
+    private final double threshold;
+    private final boolean useAnnotations;
+
+    // The estimates by class, made once for the class as it has been read from the input jar
+    private final Map<String, Map<String, Estimate>> estimates = new ConcurrentHashMap<>();
+
+    public JniCostModel(double threshold, boolean useAnnotations) {
+        this.threshold = threshold;
+        this.useAnnotations = useAnnotations;
+    }
+
+    /**
+     * @return Whether the estimated crossings of the method are below the threshold
+     */
+    public boolean shouldProcess(ClassNode clazz, MethodNode method) {
+        Estimate estimate = estimates.computeIfAbsent(clazz.name, unused -> estimate(clazz))
+            .get(method.name + method.desc);
+        return estimate == null || !estimate.skipped;
+    }
+
+    /**
+     * Writes the estimate of every candidate method of the processed classes to the report, the most expensive first.
+     */
+    public void writeReport(Path file) throws IOException {
+        List<Estimate> estimated = new ArrayList<>();
+        estimates.values().forEach(classEstimates -> estimated.addAll(classEstimates.values()));
+        estimated.sort(Comparator.comparingDouble(Estimate::getCrossingsPerInstruction).reversed()
+            .thenComparing(estimate -> estimate.key));
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.append("{\n  \"threshold\": ").append(String.valueOf(threshold));
+            writer.append(",\n  \"methods\": [");
+            for (int i = 0; i < estimated.size(); i++) {
+                Estimate estimate = estimated.get(i);
+                writer.append(i == 0 ? "\n" : ",\n").append("    {\"method\": ").append(quote(estimate.key));
+                writer.append(", \"instructions\": ").append(String.valueOf(estimate.instructions));
+                writer.append(", \"crossings\": ").append(String.valueOf(estimate.crossings));
+                writer.append(", \"entryCrossings\": ").append(String.valueOf(estimate.entryCrossings));
+                writer.append(", \"loopInstructions\": ").append(String.valueOf(estimate.loopInstructions));
+                writer.append(", \"crossingsPerInstruction\": ")
+                    .append(String.format(Locale.ROOT, "%.3f", estimate.getCrossingsPerInstruction()));
+                writer.append(", \"estimatedSlowdown\": ")
+                    .append(String.format(Locale.ROOT, "%.1f", estimate.getEstimatedSlowdown()));
+                writer.append(", \"decision\": ").append(quote(estimate.skipped ? "bytecode" : "transpiled"));
+                writer.append("}");
+            }
+            writer.append(estimated.isEmpty() ? "]" : "\n  ]").append("\n}\n");
+        }
+
+        long skipped = estimated.stream().filter(estimate -> estimate.skipped).count();
+        Logger.info("Kept {} of {} methods as bytecode by their JNI crossings, see {}", skipped, estimated.size(), file);
+    }
+
+    private Map<String, Estimate> estimate(ClassNode clazz) {
+        Map<String, Estimate> classEstimates = new HashMap<>();
+        for (MethodNode method : clazz.methods) {
+            if (!MethodProcessor.shouldProcess(clazz, method, useAnnotations) || method.instructions.size() == 0) {
+                continue;
+            }
+
+            Estimate estimate = estimate(clazz.name + "." + method.name + method.desc, method);
+            // The static initializer registers the native methods, it has to be transpiled
+            estimate.skipped = threshold > 0 && !method.name.equals("<clinit>") &&
+                estimate.getCrossingsPerInstruction() >= threshold;
+            classEstimates.put(method.name + method.desc, estimate);
+        }
+        return classEstimates;
+    }
+
+    private static Estimate estimate(String key, MethodNode method) {
+        int[] loopDepths = getLoopDepths(method);
+        Estimate estimate = new Estimate(key, getEntryCrossings(method));
+        for (int i = 0; i < method.instructions.size(); i++) {
+            AbstractInsnNode insn = method.instructions.get(i);
+            if (insn.getOpcode() < 0) {
+                continue;
+            }
+            long weight = 1;
+            for (int depth = 0; depth < Math.min(loopDepths[i], MAX_LOOP_DEPTH); depth++) {
+                weight *= LOOP_WEIGHT;
+            }
+            estimate.instructions++;
+            if (loopDepths[i] > 0) {
+                estimate.loopInstructions++;
+            }
+            estimate.weightedInstructions += weight;
+            int crossings = getCrossings(insn);
+            estimate.crossings += crossings;
+            estimate.weightedCrossings += crossings * weight;
+        }
+        return estimate;
+    }
+
+    /**
+     * Loops are found by their back edges, a jump to a label in front of it. Every instruction from the label up to
+     * the jump is one loop deeper.
+     *
+     * @return The loop depth of every instruction by its index
+     */
+    private static int[] getLoopDepths(MethodNode method) {
+        int[] depths = new int[method.instructions.size()];
+        Set<AbstractInsnNode> visitedLabels = new HashSet<>();
+        for (int i = 0; i < depths.length; i++) {
+            AbstractInsnNode insn = method.instructions.get(i);
+            if (insn.getType() == AbstractInsnNode.LABEL) {
+                visitedLabels.add(insn);
+            } else if (insn instanceof JumpInsnNode jump && visitedLabels.contains(jump.label)) {
+                for (int j = method.instructions.indexOf(jump.label); j <= i; j++) {
+                    depths[j]++;
+                }
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * The prologue resolves the class loader of the class, instance methods look up their class by it first. Every
+     * caught exception type is resolved through the class cache as well.
+     *
+     * @return The crossings made once per call
+     */
+    private static int getEntryCrossings(MethodNode method) {
+        // get_classloader_from_class calls getClassLoader and both check for an exception
+        int crossings = 3;
+        if (!Util.getFlag(method.access, Opcodes.ACC_STATIC)) {
+            // get_class_from_object, DeleteLocalRef and find_class_wo_static, each followed by an exception check
+            crossings += 7;
+        }
+        if (method.tryCatchBlocks != null) {
+            crossings += (int) method.tryCatchBlocks.stream()
+                .map(tryCatch -> tryCatch.type)
+                .filter(type -> type != null)
+                .distinct()
+                .count();
+        }
+        return crossings;
+    }
+
+    /**
+     * @return The crossings of an instruction once the class, field and method caches are warm
+     */
+    private static int getCrossings(AbstractInsnNode insn) {
+        switch (insn.getOpcode()) {
+            // Class cache check, the access or call and the exception check
+            case Opcodes.GETSTATIC:
+            case Opcodes.PUTSTATIC:
+            case Opcodes.GETFIELD:
+            case Opcodes.PUTFIELD:
+            case Opcodes.INVOKEVIRTUAL:
+            case Opcodes.INVOKESPECIAL:
+            case Opcodes.INVOKESTATIC:
+            case Opcodes.INVOKEINTERFACE:
+            case Opcodes.INVOKEDYNAMIC:
+            case Opcodes.NEW:
+            case Opcodes.ANEWARRAY:
+                return 3;
+            // Class cache check and IsInstanceOf, the exception is only checked if the cast fails
+            case Opcodes.CHECKCAST:
+            case Opcodes.INSTANCEOF:
+                return 2;
+            // One element through Get*ArrayRegion or Set*ArrayRegion and the exception check
+            case Opcodes.IALOAD:
+            case Opcodes.LALOAD:
+            case Opcodes.FALOAD:
+            case Opcodes.DALOAD:
+            case Opcodes.AALOAD:
+            case Opcodes.BALOAD:
+            case Opcodes.CALOAD:
+            case Opcodes.SALOAD:
+            case Opcodes.IASTORE:
+            case Opcodes.LASTORE:
+            case Opcodes.FASTORE:
+            case Opcodes.DASTORE:
+            case Opcodes.AASTORE:
+            case Opcodes.BASTORE:
+            case Opcodes.CASTORE:
+            case Opcodes.SASTORE:
+            case Opcodes.NEWARRAY:
+            case Opcodes.ARRAYLENGTH:
+            case Opcodes.ATHROW:
+            case Opcodes.MONITORENTER:
+            case Opcodes.MONITOREXIT:
+                return 2;
+            // References are compared with IsSameObject
+            case Opcodes.IF_ACMPEQ:
+            case Opcodes.IF_ACMPNE:
+            case Opcodes.IFNULL:
+            case Opcodes.IFNONNULL:
+                return 1;
+            case Opcodes.LDC:
+                // Class constants come from the class cache
+                return ((LdcInsnNode) insn).cst instanceof Type type && type.getSort() != Type.METHOD ? 1 : 0;
+            case Opcodes.MULTIANEWARRAY:
+                // Every dimension is created and filled on its own
+                return 2 + 2 * ((MultiANewArrayInsnNode) insn).dims;
+            default:
+                return 0;
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static class Estimate {
+        private final String key;
+        private final int entryCrossings;
+        private long instructions;
+        private long loopInstructions;
+        private long crossings;
+        // Weighted by the loop depth of the instructions
+        private long weightedInstructions;
+        private long weightedCrossings;
+        private boolean skipped;
+
+        private Estimate(String key, int entryCrossings) {
+            this.key = key;
+            this.entryCrossings = entryCrossings;
+        }
+
+        private double getCrossingsPerInstruction() {
+            return weightedInstructions == 0 ? 0 :
+                (double) (weightedCrossings + entryCrossings) / weightedInstructions;
+        }
+
+        /**
+         * @return The estimated run time of the transpiled method relative to the bytecode
+         */
+        private double getEstimatedSlowdown() {
+            return 1 + getCrossingsPerInstruction() * CROSSING_INSTRUCTIONS;
+        }
+    }
+}
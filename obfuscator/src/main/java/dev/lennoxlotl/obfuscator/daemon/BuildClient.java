@@ -0,0 +1,45 @@
+package dev.lennoxlotl.obfuscator.daemon;
+
+import org.tinylog.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Sends requests to a {@link BuildDaemon}.
+ */
+public class BuildClient {
+
+    /**
+     * @param port The port of the daemon, 0 uses the port announced in the working directory
+     * @return The exit code, 0 if the daemon has answered with {@code OK}
+     */
+    public static int send(int port, String command) throws IOException {
+        if (port == 0) {
+            if (!Files.isRegularFile(BuildDaemon.PORT_FILE)) {
+                Logger.error("No daemon is running in this directory, start one with --daemon");
+                return 1;
+            }
+            port = Integer.parseInt(Files.readString(BuildDaemon.PORT_FILE).trim());
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            out.println(command);
+            String reply = in.readLine();
+            if (reply == null) {
+                Logger.error("The daemon has closed the connection");
+                return 1;
+            }
+            Logger.info("Daemon: {}", reply);
+            return reply.startsWith("OK") ? 0 : 1;
+        }
+    }
+}
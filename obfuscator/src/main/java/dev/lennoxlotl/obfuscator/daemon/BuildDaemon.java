@@ -0,0 +1,145 @@
+package dev.lennoxlotl.obfuscator.daemon;
+
+import dev.lennoxlotl.obfuscator.config.ObfuscatorConfig;
+import dev.lennoxlotl.obfuscator.shard.ShardedBuild;
+import org.tinylog.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Runs builds in a long running process.
+ * <p>
+ * The transpiler stays warm between builds and the {@link BuildSession} keeps the class path of the libraries, so
+ * together with the transpilation cache and the object cache of the compiler only the classes which have changed
+ * are transpiled and compiled again. The config is loaded again for every build.
+ */
+public class BuildDaemon implements AutoCloseable {
+    // Announces the port of a running daemon to clients started in the same working directory
+    public static final Path PORT_FILE = Path.of("daemon.port");
+
+    private static final File CONFIG_FILE = new File("config.toml");
+    private static final long WATCH_INTERVAL = 500;
+
+    private final BuildSession session = new BuildSession();
+    // The input jar of the last loaded config, watched for changes
+    private volatile File inputJar;
+    // The stamp of the files the last build has read, see getInputStamp
+    private volatile String builtStamp = "";
+    private boolean warnedAboutCache;
+
+    /**
+     * Builds with the current config, failures are logged.
+     *
+     * @return Whether the build has succeeded
+     */
+    public synchronized boolean build() {
+        long start = System.nanoTime();
+        // Taken before the files are read, so changes made while building are built again
+        String configStamp = getStamp(CONFIG_FILE);
+        builtStamp = configStamp + "|" + getJarStamp();
+        try {
+            ObfuscatorConfig config = ObfuscatorConfig.load();
+            inputJar = config.getInputJar();
+            builtStamp = configStamp + "|" + getJarStamp();
+            if (config.getCacheDirectory() == null && !warnedAboutCache) {
+                Logger.warn("No cache directory has been configured, every build transpiles and compiles all classes again");
+                warnedAboutCache = true;
+            }
+
+            boolean compiled = ShardedBuild.run(config, session);
+            Logger.info("Build {} after {} ms", compiled ? "finished" : "failed",
+                (System.nanoTime() - start) / 1_000_000);
+            return compiled;
+        } catch (Exception ex) {
+            Logger.error(ex, "Build failed after {} ms", (System.nanoTime() - start) / 1_000_000);
+            return false;
+        }
+    }
+
+    /**
+     * Accepts build requests on the loopback interface until a client asks the daemon to stop. Every request is one
+     * line, {@code build} or {@code stop}, answered with a line starting with {@code OK} or {@code FAILED}.
+     *
+     * @param port The port to listen on, 0 picks a free one
+     */
+    public void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            Files.writeString(PORT_FILE, Integer.toString(server.getLocalPort()));
+            Logger.info("Waiting for build requests on port {}", server.getLocalPort());
+
+            boolean running = true;
+            while (running) {
+                try (Socket socket = server.accept();
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                     PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+                    String command = in.readLine();
+                    if ("build".equals(command)) {
+                        long start = System.nanoTime();
+                        boolean compiled = build();
+                        out.println((compiled ? "OK" : "FAILED") + " build took " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                    } else if ("stop".equals(command)) {
+                        out.println("OK stopping");
+                        running = false;
+                    } else {
+                        out.println("FAILED unknown command " + command);
+                    }
+                } catch (IOException ex) {
+                    Logger.warn("Could not answer build request: {}", ex.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(PORT_FILE);
+        }
+    }
+
+    /**
+     * Builds once and again whenever the input jar or the config changes. A change is only picked up once the files
+     * have stayed the same for a whole interval, so jars which are still being written are not read.
+     */
+    public void watch() throws InterruptedException {
+        build();
+
+        String seen = builtStamp;
+        while (!Thread.currentThread().isInterrupted()) {
+            Thread.sleep(WATCH_INTERVAL);
+            String current = getInputStamp();
+            if (current.equals(seen) && !current.equals(builtStamp)) {
+                Logger.info("Input has changed, building again");
+                build();
+            }
+            seen = current;
+        }
+    }
+
+    /**
+     * @return The size and modification time of the config and the input jar of the last build, a changed config
+     * points the next build to its new input jar
+     */
+    private String getInputStamp() {
+        return getStamp(CONFIG_FILE) + "|" + getJarStamp();
+    }
+
+    private String getJarStamp() {
+        File inputJar = this.inputJar;
+        return inputJar != null ? getStamp(inputJar) : "";
+    }
+
+    private static String getStamp(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+    @Override
+    public void close() {
+        session.close();
+    }
+}
@@ -0,0 +1,38 @@
+package dev.lennoxlotl.obfuscator.daemon;
+
+import dev.lennoxlotl.obfuscator.LibraryClassPath;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * State which outlives a single build, kept by a long running process.
+ */
+public class BuildSession implements AutoCloseable {
+    private LibraryClassPath libraries;
+
+    /**
+     * @param cacheDirectory The directory of the hierarchy cache, null if the cache is disabled
+     * @return The class path of the libraries, reused as long as they have not changed
+     */
+    public synchronized LibraryClassPath getLibraries(List<Path> libraries, Path cacheDirectory) throws IOException {
+        if (this.libraries != null && this.libraries.matches(libraries, cacheDirectory)) {
+            Logger.info("Reusing the class path of {} unchanged libraries", libraries.size());
+            return this.libraries;
+        }
+
+        close();
+        this.libraries = LibraryClassPath.open(libraries, cacheDirectory);
+        return this.libraries;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (libraries != null) {
+            libraries.close();
+            libraries = null;
+        }
+    }
+}
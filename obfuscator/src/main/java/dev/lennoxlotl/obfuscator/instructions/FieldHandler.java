@@ -22,28 +22,30 @@ public class FieldHandler extends GenericInstructionHandler<FieldInsnNode> {
 
         int classId = context.getCachedClasses().getId(node.owner);
 
-        context.output.append(String.format("if (!cclasses[%d]  || env->IsSameObject(cclasses[%d], NULL)) { cclasses_mtx[%d].lock(); if (!cclasses[%d] || env->IsSameObject(cclasses[%d], NULL)) { if (jclass clazz = %s) { cclasses[%d] = (jclass) env->NewWeakGlobalRef(clazz); env->DeleteLocalRef(clazz); } } cclasses_mtx[%d].unlock(); %s } ",
-                classId,
-                classId,
-                classId,
-                classId,
-                classId,
-                MethodProcessor.getClassGetter(context, node.owner),
-                classId,
-                classId,
-                trimmedTryCatchBlock));
+        MethodProcessor.appendClassLookup(context, classId, node.owner, trimmedTryCatchBlock);
+        context.output.append(" ");
 
-        int fieldId = context.getCachedFields().getId(info);
         props.put("fieldid", context.getCachedFields().getPointer(info));
+        appendFieldLookup(context, node.owner, node.name, node.desc, isStatic, trimmedTryCatchBlock);
+    }
 
-        context.output.append(String.format("if (!cfields[%d]) { cfields[%d] = env->Get%sFieldID(%s, %s, %s); %s  } ",
-                fieldId,
-                fieldId,
-                isStatic ? "Static" : "",
-                context.getCachedClasses().getPointer(node.owner),
-                context.getStringPool().get(node.name),
-                context.getStringPool().get(node.desc),
-                trimmedTryCatchBlock));
+    /**
+     * Emits the lazy lookup of a field id, unless it has been resolved on entry.
+     *
+     * @param onException The code run after the lookup, which handles a pending exception
+     */
+    public static void appendFieldLookup(MethodContext context, String owner, String name, String desc,
+                                         boolean isStatic, String onException) {
+        int fieldId = context.getCachedFields().getId(new CachedFieldInfo(owner, name, desc, isStatic));
+        if (context.resolvedFields.contains(fieldId)) {
+            return;
+        }
+        context.output.append("if (!cfields[").append(fieldId).append("]) { cfields[").append(fieldId)
+                .append("] = env->Get").append(isStatic ? "Static" : "").append("FieldID(")
+                .append(context.getCachedClasses().getPointer(owner)).append(", ")
+                .append(context.getStringPool().get(name)).append(", ")
+                .append(context.getStringPool().get(desc)).append("); ")
+                .append(onException).append("  } ");
     }
 
     @Override
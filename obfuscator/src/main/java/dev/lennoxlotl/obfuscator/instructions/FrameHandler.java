@@ -94,8 +94,13 @@ public class FrameHandler implements InstructionTypeHandler<FrameNode> {
     @Override
     public String insnToString(MethodContext context, FrameNode node) {
         return String.format("FRAME %s L: %s S: %s", Util.getOpcodesString(node.type, "F_"),
-                node.local == null ? "null" : Arrays.toString(node.local.toArray(new Object[0])),
-                node.stack == null ? "null" : Arrays.toString(node.stack.toArray(new Object[0])));
+                node.local == null ? "null" : Arrays.toString(node.local.stream().map(item -> frameItemToString(context, item)).toArray()),
+                node.stack == null ? "null" : Arrays.toString(node.stack.stream().map(item -> frameItemToString(context, item)).toArray()));
+    }
+
+    private static Object frameItemToString(MethodContext context, Object item) {
+        // Uninitialized types are referenced by the label of their NEW instruction, print its name instead of the identity hash
+        return item instanceof LabelNode ? context.getLabelPool().getName(((LabelNode) item).getLabel()) : item;
     }
 
     @Override
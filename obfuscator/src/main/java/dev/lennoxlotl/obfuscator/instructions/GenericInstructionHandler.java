@@ -4,7 +4,10 @@ import dev.lennoxlotl.obfuscator.CatchesBlock;
 import dev.lennoxlotl.obfuscator.MethodContext;
 import dev.lennoxlotl.obfuscator.MethodProcessor;
 import dev.lennoxlotl.obfuscator.Util;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 
 import java.util.*;
@@ -54,12 +57,44 @@ public abstract class GenericInstructionHandler<T extends AbstractInsnNode> impl
 
         context.output.append("    ");
         process(context, node);
+        if (context.unchecked) {
+            String uncheckedHandler = getUncheckedHandler(context, node);
+            if (uncheckedHandler != null) {
+                props.put("trycatchhandler", uncheckedHandler);
+            }
+        }
 
         if (instructionName != null) {
-            context.output.append(context.obfuscator.getSnippets().getSnippet(instructionName, props));
+            context.getSnippets().appendSnippet(context.output, instructionName, props);
         }
         context.output.append("\n");
     }
 
+    /**
+     * Field accesses only throw the exception of their null check, the field id is looked up and checked before. The
+     * exception check is only kept behind the null check, which still sees the null reference since the result is only
+     * stored if the reference is not null. Array element accesses keep their exception check, an index out of bounds
+     * leaves an exception pending.
+     *
+     * @return The exception check of the instruction if it is unchecked, null if the instruction is always checked
+     */
+    private String getUncheckedHandler(MethodContext context, T node) {
+        int objectIndex;
+        switch (node.getOpcode()) {
+            case Opcodes.GETSTATIC:
+            case Opcodes.PUTSTATIC:
+                return "";
+            case Opcodes.GETFIELD:
+                objectIndex = context.stackPointer - 1;
+                break;
+            case Opcodes.PUTFIELD:
+                objectIndex = context.stackPointer - 1 - Type.getType(((FieldInsnNode) node).desc).getSize();
+                break;
+            default:
+                return null;
+        }
+        return "if (cstack" + objectIndex + ".l == nullptr) { " + trimmedTryCatchBlock + " }";
+    }
+
     protected abstract void process(MethodContext context, T node);
 }
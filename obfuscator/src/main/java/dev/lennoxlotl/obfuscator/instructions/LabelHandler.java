@@ -16,7 +16,8 @@ public class LabelHandler extends GenericInstructionHandler<LabelNode> {
     	} catch (UnsupportedOperationException ex) {
     		// ignored
     	}
-        context.output.append(String.format("%s: %s\n", context.getLabelPool().getName(node.getLabel()), trimmedTryCatchBlock));
+        context.output.append(context.getLabelPool().getName(node.getLabel())).append(": ").append(trimmedTryCatchBlock)
+                .append("\n");
     }
 
     @Override
@@ -2,44 +2,35 @@ package dev.lennoxlotl.obfuscator.instructions;
 
 import dev.lennoxlotl.obfuscator.MethodContext;
 import dev.lennoxlotl.obfuscator.Util;
-import org.objectweb.asm.Label;
+import dev.lennoxlotl.obfuscator.source.CppEmitter;
 import org.objectweb.asm.tree.LookupSwitchInsnNode;
 
 public class LookupSwitchHandler extends GenericInstructionHandler<LookupSwitchInsnNode> {
 
     @Override
     protected void process(MethodContext context, LookupSwitchInsnNode node) {
-        StringBuilder output = context.output;
+        CppEmitter output = context.output;
 
-        output.append(getStart(context)).append("\n    ");
-
-        for (int i = 0; i < node.labels.size(); ++i) {
-            output.append(String.format("    %s\n    ", getPart(context,
-                    node.keys.get(i),
-                    node.labels.get(i).getLabel())));
-        }
-        output.append(String.format("    %s\n    ", getDefault(context, node.dflt.getLabel())));
-
-        instructionName = "LOOKUPSWITCH_END";
-    }
-
-    private static String getStart(MethodContext context) {
-        return context.getSnippets().getSnippet("LOOKUPSWITCH_START", Util.createMap(
+        context.getSnippets().appendSnippet(output, "LOOKUPSWITCH_START", Util.createMap(
                 "stackindexm1", String.valueOf(context.stackPointer - 1)
         ));
-    }
+        output.append("\n    ");
 
-    private static String getPart(MethodContext context, int key, Label label) {
-        return context.getSnippets().getSnippet("LOOKUPSWITCH_PART", Util.createMap(
-                "key", key,
-                "label", context.getLabelPool().getName(label)
+        for (int i = 0; i < node.labels.size(); ++i) {
+            output.append("    ");
+            context.getSnippets().appendSnippet(output, "LOOKUPSWITCH_PART", Util.createMap(
+                    "key", node.keys.get(i),
+                    "label", context.getLabelPool().getName(node.labels.get(i).getLabel())
+            ));
+            output.append("\n    ");
+        }
+        output.append("    ");
+        context.getSnippets().appendSnippet(output, "LOOKUPSWITCH_DEFAULT", Util.createMap(
+                "label", context.getLabelPool().getName(node.dflt.getLabel())
         ));
-    }
+        output.append("\n    ");
 
-    private static String getDefault(MethodContext context, Label label) {
-        return context.getSnippets().getSnippet("LOOKUPSWITCH_DEFAULT", Util.createMap(
-                "label", context.getLabelPool().getName(label)
-        ));
+        instructionName = "LOOKUPSWITCH_END";
     }
 
     @Override
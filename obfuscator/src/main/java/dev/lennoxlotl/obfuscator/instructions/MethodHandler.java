@@ -90,7 +90,7 @@ public class MethodHandler extends GenericInstructionHandler<MethodInsnNode> {
                     Util.reverse(Util.reverse(Arrays.stream(Type.getArgumentTypes(node.desc)))
                             .skip(1)).toArray(Type[]::new)).getDescriptor());
 
-            HiddenMethodsPool.HiddenMethod hiddenMethod = context.obfuscator.getHiddenMethodsPool()
+            HiddenMethodsPool.HiddenMethod hiddenMethod = context.getHiddenMethodsPool()
                     .getMethod("invokereverse", methodDesc, method -> {
                         method.visibleAnnotations = new ArrayList<>();
                         method.visibleAnnotations.add(new AnnotationNode("Ljava/lang/invoke/LambdaForm$Hidden;"));
@@ -129,7 +129,7 @@ public class MethodHandler extends GenericInstructionHandler<MethodInsnNode> {
             methodDesc = Type.getMethodDescriptor(Type.getReturnType(methodDesc), methodArguments);
             String mhDesc = simplifyDesc(node.desc);
 
-            HiddenMethodsPool.HiddenMethod hiddenMethod = context.obfuscator.getHiddenMethodsPool()
+            HiddenMethodsPool.HiddenMethod hiddenMethod = context.getHiddenMethodsPool()
                     .getMethod("mhinvoke", methodDesc, method -> {
                         method.visibleAnnotations = new ArrayList<>();
                         method.visibleAnnotations.add(new AnnotationNode("Ljava/lang/invoke/LambdaForm$Hidden;"));
@@ -186,34 +186,48 @@ public class MethodHandler extends GenericInstructionHandler<MethodInsnNode> {
 
         int classId = context.getCachedClasses().getId(node.owner);
 
-        context.output.append(String.format("if (!cclasses[%d] || env->IsSameObject(cclasses[%d], NULL)) { cclasses_mtx[%d].lock(); if (!cclasses[%d] || env->IsSameObject(cclasses[%d], NULL)) { if (jclass clazz = %s) { cclasses[%d] = (jclass) env->NewWeakGlobalRef(clazz); env->DeleteLocalRef(clazz); } } cclasses_mtx[%d].unlock(); %s } ",
-                classId,
-                classId,
-                classId,
-                classId,
-                classId,
-                MethodProcessor.getClassGetter(context, node.owner),
-                classId,
-                classId,
-                trimmedTryCatchBlock));
+        MethodProcessor.appendClassLookup(context, classId, node.owner, trimmedTryCatchBlock);
+        context.output.append(" ");
 
         CachedMethodInfo methodInfo = new CachedMethodInfo(node.owner, node.name, node.desc, isStatic);
-        int methodId = context.getCachedMethods().getId(methodInfo);
         props.put("methodid", context.getCachedMethods().getPointer(methodInfo));
-
-        context.output.append(
-                String.format("if (!cmethods[%d]) { cmethods[%d] = env->Get%sMethodID(%s, %s, %s); %s  } ",
-                        methodId,
-                        methodId,
-                        isStatic ? "Static" : "",
-                        context.getCachedClasses().getPointer(node.owner),
-                        context.getStringPool().get(node.name),
-                        context.getStringPool().get(node.desc),
-                        trimmedTryCatchBlock));
+        appendMethodLookup(context, node.owner, node.name, node.desc, isStatic, trimmedTryCatchBlock);
 
         props.put("args", argsBuilder.toString());
     }
 
+    /**
+     * Emits the lazy lookup of a method id, unless it has been resolved on entry.
+     *
+     * @param onException The code run after the lookup, which handles a pending exception
+     */
+    public static void appendMethodLookup(MethodContext context, String owner, String name, String desc,
+                                          boolean isStatic, String onException) {
+        int methodId = context.getCachedMethods().getId(new CachedMethodInfo(owner, name, desc, isStatic));
+        if (context.resolvedMethods.contains(methodId)) {
+            return;
+        }
+        context.output.append("if (!cmethods[").append(methodId).append("]) { cmethods[").append(methodId)
+                .append("] = env->Get").append(isStatic ? "Static" : "").append("MethodID(")
+                .append(context.getCachedClasses().getPointer(owner)).append(", ")
+                .append(context.getStringPool().get(name)).append(", ")
+                .append(context.getStringPool().get(desc)).append("); ")
+                .append(onException).append("  } ");
+    }
+
+    /**
+     * @return Whether the instruction calls its owner directly, the owner of the others is only known once they have
+     * been rewritten into calls of hidden methods or they don't call a method at all
+     */
+    public static boolean isDirectCall(MethodInsnNode node) {
+        return !PreprocessorUtils.isLookupLocal(node) && !PreprocessorUtils.isClassLoaderLocal(node) &&
+                !PreprocessorUtils.isClassLocal(node) && !PreprocessorUtils.isLinkCallSiteMethod(node) &&
+                !PreprocessorUtils.isInvokeReverse(node) &&
+                !(node.owner.equals("java/lang/invoke/MethodHandle") &&
+                        (node.name.equals("invokeExact") || node.name.equals("invoke")) &&
+                        node.getOpcode() == Opcodes.INVOKEVIRTUAL);
+    }
+
     @Override
     public String insnToString(MethodContext context, MethodInsnNode node) {
         return String.format("%s %s.%s%s", Util.getOpcodeString(node.getOpcode()), node.owner, node.name, node.desc);
@@ -2,44 +2,35 @@ package dev.lennoxlotl.obfuscator.instructions;
 
 import dev.lennoxlotl.obfuscator.MethodContext;
 import dev.lennoxlotl.obfuscator.Util;
-import org.objectweb.asm.Label;
+import dev.lennoxlotl.obfuscator.source.CppEmitter;
 import org.objectweb.asm.tree.TableSwitchInsnNode;
 
 public class TableSwitchHandler extends GenericInstructionHandler<TableSwitchInsnNode> {
 
     @Override
     protected void process(MethodContext context, TableSwitchInsnNode node) {
-        StringBuilder output = context.output;
+        CppEmitter output = context.output;
 
-        output.append(getStart(context)).append("\n    ");
-
-        for (int i = 0; i < node.labels.size(); ++i) {
-            output.append(String.format("    %s\n    ", getPart(context,
-                    node.min + i,
-                    node.labels.get(i).getLabel())));
-        }
-        output.append(String.format("    %s\n    ", getDefault(context, node.dflt.getLabel())));
-
-        instructionName = "TABLESWITCH_END";
-    }
-
-    private static String getStart(MethodContext context) {
-        return context.getSnippets().getSnippet("TABLESWITCH_START", Util.createMap(
+        context.getSnippets().appendSnippet(output, "TABLESWITCH_START", Util.createMap(
                 "stackindexm1", String.valueOf(context.stackPointer - 1)
         ));
-    }
+        output.append("\n    ");
 
-    private static String getPart(MethodContext context, int index, Label label) {
-        return context.getSnippets().getSnippet("TABLESWITCH_PART", Util.createMap(
-                "index", index,
-                "label", context.getLabelPool().getName(label)
+        for (int i = 0; i < node.labels.size(); ++i) {
+            output.append("    ");
+            context.getSnippets().appendSnippet(output, "TABLESWITCH_PART", Util.createMap(
+                    "index", node.min + i,
+                    "label", context.getLabelPool().getName(node.labels.get(i).getLabel())
+            ));
+            output.append("\n    ");
+        }
+        output.append("    ");
+        context.getSnippets().appendSnippet(output, "TABLESWITCH_DEFAULT", Util.createMap(
+                "label", context.getLabelPool().getName(node.dflt.getLabel())
         ));
-    }
+        output.append("\n    ");
 
-    private static String getDefault(MethodContext context, Label label) {
-        return context.getSnippets().getSnippet("TABLESWITCH_DEFAULT", Util.createMap(
-                "label", context.getLabelPool().getName(label)
-        ));
+        instructionName = "TABLESWITCH_END";
     }
 
     @Override
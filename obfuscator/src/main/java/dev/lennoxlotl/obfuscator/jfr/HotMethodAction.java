@@ -0,0 +1,11 @@
+package dev.lennoxlotl.obfuscator.jfr;
+
+/**
+ * What happens to the methods which are hot in the recording.
+ */
+public enum HotMethodAction {
+    // Hot methods stay bytecode, the JIT compiles them without any JNI crossings
+    KEEP,
+    // Hot methods are transpiled anyway, they are only listed in the report
+    FLAG
+}
@@ -0,0 +1,252 @@
+package dev.lennoxlotl.obfuscator.jfr;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Selects the methods which stay bytecode by the execution samples of a JFR recording.
+ * <p>
+ * Transpiled methods turn every field access and call into a JNI crossing, which makes methods the JIT compiles well a
+ * lot slower. A method is hot if its share of the samples reaches the threshold, either on top of the stack or inside
+ * one of its loops at any depth of the stack. The latter also catches methods which spend their time calling others
+ * from a tight loop.
+ */
+public class HotMethodFilter {
+    private static final Set<String> SAMPLE_EVENTS = Set.of("jdk.ExecutionSample", "jdk.NativeMethodSample");
+
+    private final Path recording;
+    // In percent of all samples
+    private final double threshold;
+    private final HotMethodAction action;
+    private final Map<String, MethodSamples> samples;
+    private final long totalSamples;
+
+    // The decisions by class, made once for the class as it has been read from the input jar
+    private final Map<String, Map<String, Decision>> decisions = new ConcurrentHashMap<>();
+
+    private HotMethodFilter(Path recording, double threshold, HotMethodAction action, Map<String, MethodSamples> samples,
+                            long totalSamples) {
+        this.recording = recording;
+        this.threshold = threshold;
+        this.action = action;
+        this.samples = samples;
+        this.totalSamples = totalSamples;
+    }
+
+    /**
+     * Reads the execution and native method samples of a recording.
+     */
+    public static HotMethodFilter load(Path recording, double threshold, HotMethodAction action) throws IOException {
+        Map<String, MethodSamples> samples = new HashMap<>();
+        long totalSamples = 0;
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                RecordedStackTrace stackTrace = event.getStackTrace();
+                if (stackTrace == null || !SAMPLE_EVENTS.contains(event.getEventType().getName())) {
+                    continue;
+                }
+                totalSamples++;
+
+                // Recursive methods only count once per sample, with their innermost frame
+                Set<String> sampledMethods = new HashSet<>();
+                for (RecordedFrame frame : stackTrace.getFrames()) {
+                    if (!frame.isJavaFrame()) {
+                        continue;
+                    }
+                    RecordedMethod method = frame.getMethod();
+                    String key = getKey(method.getType().getName().replace('.', '/'), method.getName(),
+                        method.getDescriptor());
+                    if (sampledMethods.add(key)) {
+                        samples.computeIfAbsent(key, unused -> new MethodSamples())
+                            .add(sampledMethods.size() == 1, frame.getLineNumber());
+                    }
+                }
+            }
+        }
+        Logger.info("Read {} samples of {} methods from {}", totalSamples, samples.size(), recording);
+        return new HotMethodFilter(recording, threshold, action, samples, totalSamples);
+    }
+
+    /**
+     * @return Whether the method may be transpiled, always true for flagged methods
+     */
+    public boolean shouldProcess(ClassNode clazz, MethodNode method) {
+        Decision decision = decisions.computeIfAbsent(clazz.name, unused -> decide(clazz))
+            .get(method.name + method.desc);
+        return decision == null || !decision.hot || action == HotMethodAction.FLAG;
+    }
+
+    /**
+     * Writes every sampled method of the processed classes to the report, the hottest first.
+     */
+    public void writeReport(Path file) throws IOException {
+        List<Decision> sampled = new ArrayList<>();
+        decisions.values().forEach(classDecisions -> sampled.addAll(classDecisions.values()));
+        sampled.sort(Comparator
+            .comparingLong((Decision decision) -> Math.max(decision.samples.self, decision.loopSamples))
+            .reversed()
+            .thenComparing(decision -> decision.key));
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.append("{\n  \"recording\": ").append(quote(recording.toString()));
+            writer.append(",\n  \"samples\": ").append(String.valueOf(totalSamples));
+            writer.append(",\n  \"thresholdPercent\": ").append(String.valueOf(threshold));
+            writer.append(",\n  \"action\": ").append(quote(action.name().toLowerCase()));
+            writer.append(",\n  \"methods\": [");
+            for (int i = 0; i < sampled.size(); i++) {
+                Decision decision = sampled.get(i);
+                writer.append(i == 0 ? "\n" : ",\n").append("    {\"method\": ").append(quote(decision.key));
+                writer.append(", \"selfSamples\": ").append(String.valueOf(decision.samples.self));
+                writer.append(", \"loopSamples\": ").append(String.valueOf(decision.loopSamples));
+                writer.append(", \"totalSamples\": ").append(String.valueOf(decision.samples.total));
+                writer.append(", \"selfPercent\": ").append(String.format(Locale.ROOT, "%.2f", getPercent(decision.samples.self)));
+                writer.append(", \"loopPercent\": ").append(String.format(Locale.ROOT, "%.2f", getPercent(decision.loopSamples)));
+                writer.append(", \"decision\": ").append(quote(!decision.hot ? "transpiled" :
+                    action == HotMethodAction.KEEP ? "bytecode" : "flagged"));
+                writer.append("}");
+            }
+            writer.append(sampled.isEmpty() ? "]" : "\n  ]").append("\n}\n");
+        }
+
+        long hotMethods = sampled.stream().filter(decision -> decision.hot).count();
+        Logger.info(action == HotMethodAction.KEEP ? "Kept {} hot methods as bytecode, see {}" :
+            "Flagged {} hot methods, see {}", hotMethods, file);
+    }
+
+    private Map<String, Decision> decide(ClassNode clazz) {
+        Map<String, Decision> classDecisions = new HashMap<>();
+        for (MethodNode method : clazz.methods) {
+            String key = getKey(clazz.name, method.name, method.desc);
+            MethodSamples methodSamples = samples.get(key);
+            if (methodSamples == null) {
+                continue;
+            }
+
+            long loopSamples = getLoopSamples(method, methodSamples);
+            // The static initializer registers the native methods, it has to be transpiled
+            boolean hot = !method.name.equals("<clinit>") &&
+                (getPercent(methodSamples.self) >= threshold || getPercent(loopSamples) >= threshold);
+            if (hot && action == HotMethodAction.FLAG) {
+                Logger.warn("Transpiling hot method {}", key);
+            }
+            classDecisions.put(method.name + method.desc, new Decision(key, methodSamples, loopSamples, hot));
+        }
+        return classDecisions;
+    }
+
+    /**
+     * Loops are found by their back edges, a jump to a label in front of it. The tree does not know the bytecode
+     * offsets of its instructions, so the samples are matched by the lines of the loops instead. Methods without line
+     * numbers never have loop samples.
+     *
+     * @return The samples of the method which have been inside one of its loops
+     */
+    private static long getLoopSamples(MethodNode method, MethodSamples methodSamples) {
+        Set<Integer> loopLines = new HashSet<>();
+        Set<LabelNode> visitedLabels = new HashSet<>();
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof LabelNode label) {
+                visitedLabels.add(label);
+            } else if (insn instanceof JumpInsnNode jump && visitedLabels.contains(jump.label)) {
+                addLines(jump.label, jump, loopLines);
+            }
+        }
+
+        long loopSamples = 0;
+        for (Map.Entry<Integer, Long> line : methodSamples.lines.entrySet()) {
+            if (loopLines.contains(line.getKey())) {
+                loopSamples += line.getValue();
+            }
+        }
+        return loopSamples;
+    }
+
+    /**
+     * Adds the lines of the instructions from the start up to the end, including the line the start belongs to.
+     */
+    private static void addLines(AbstractInsnNode start, AbstractInsnNode end, Set<Integer> lines) {
+        for (AbstractInsnNode insn = start; insn != null; insn = insn.getPrevious()) {
+            if (insn instanceof LineNumberNode lineNumber) {
+                lines.add(lineNumber.line);
+                break;
+            }
+        }
+        for (AbstractInsnNode insn = start; insn != null && insn != end; insn = insn.getNext()) {
+            if (insn instanceof LineNumberNode lineNumber) {
+                lines.add(lineNumber.line);
+            }
+        }
+    }
+
+    private double getPercent(long methodSamples) {
+        return totalSamples == 0 ? 0 : methodSamples * 100.0 / totalSamples;
+    }
+
+    private static String getKey(String owner, String name, String desc) {
+        return owner + "." + name + desc;
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static class MethodSamples {
+        // Samples with the method on top of the stack
+        private long self;
+        // Samples with the method anywhere in the stack
+        private long total;
+        // Samples by the line the method has been at
+        private final Map<Integer, Long> lines = new HashMap<>();
+
+        private void add(boolean top, int line) {
+            if (top) {
+                self++;
+            }
+            total++;
+            if (line >= 0) {
+                lines.merge(line, 1L, Long::sum);
+            }
+        }
+    }
+
+    private static class Decision {
+        private final String key;
+        private final MethodSamples samples;
+        private final long loopSamples;
+        private final boolean hot;
+
+        private Decision(String key, MethodSamples samples, long loopSamples, boolean hot) {
+            this.key = key;
+            this.samples = samples;
+            this.loopSamples = loopSamples;
+            this.hot = hot;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package dev.lennoxlotl.obfuscator.metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how long the phases of a build take and where the time within them goes.
+ * <p>
+ * Spans can be recorded from any thread. They are written as a summary with the slowest classes and files and as a
+ * trace event file which can be opened with chrome://tracing or Perfetto. Disabled metrics record nothing.
+ */
+public class BuildMetrics {
+    public static final BuildMetrics DISABLED = new BuildMetrics(false);
+
+    private static final String PHASE_CATEGORY = "phase";
+    // Categories whose spans belong to a single class, summed up for the slowest classes
+    private static final Set<String> CLASS_CATEGORIES = Set.of("preprocess", "transpile");
+    private static final int SLOWEST_COUNT = 20;
+    private static final Span NO_SPAN = new Span(null, null, null, 0, 0);
+
+    private final boolean enabled;
+    private final long startNanos = System.nanoTime();
+    private final Instant startTime = Instant.now();
+    private final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+    private Span currentPhase;
+    private long endNanos;
+
+    public BuildMetrics() {
+        this(true);
+        resetPeakHeap();
+    }
+
+    private BuildMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts a span on the current thread, it is recorded once it is closed.
+     *
+     * @param category The kind of work, spans are grouped by it in the summary
+     * @param name     What is worked on, a class or file name for example
+     */
+    public Span start(String category, String name) {
+        if (!enabled) {
+            return NO_SPAN;
+        }
+        Thread thread = Thread.currentThread();
+        threadNames.putIfAbsent(thread.getId(), thread.getName());
+        return new Span(this, category, name, thread.getId(), System.nanoTime());
+    }
+
+    public void count(String counter, long value) {
+        if (enabled) {
+            counters.computeIfAbsent(counter, key -> new LongAdder()).add(value);
+        }
+    }
+
+    /**
+     * Ends the current phase and starts the next one. The peak heap usage is recorded for every phase.
+     */
+    public synchronized void phase(String name) {
+        if (!enabled) {
+            return;
+        }
+        endPhase();
+        currentPhase = start(PHASE_CATEGORY, name);
+    }
+
+    /**
+     * Ends the last phase, nothing is recorded afterwards.
+     */
+    public synchronized void finish() {
+        if (!enabled || endNanos != 0) {
+            return;
+        }
+        endPhase();
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * Writes the summary to {@code metrics.json} and the trace events to {@code trace.json}.
+     */
+    public void write(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        List<Span> recorded = new ArrayList<>(spans);
+        recorded.sort(Comparator.comparingLong(span -> span.start));
+
+        try (Writer writer = Files.newBufferedWriter(directory.resolve("metrics.json"), StandardCharsets.UTF_8)) {
+            writeSummary(writer, recorded);
+        }
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(directory.resolve("trace.json"),
+            StandardCharsets.UTF_8), 1 << 16)) {
+            writeTrace(writer, recorded);
+        }
+    }
+
+    private void endPhase() {
+        if (currentPhase != null) {
+            currentPhase.arg("peakHeapBytes", getPeakHeap());
+            currentPhase.close();
+            currentPhase = null;
+            resetPeakHeap();
+        }
+    }
+
+    private void writeSummary(Writer writer, List<Span> recorded) throws IOException {
+        Map<String, List<Span>> categories = new TreeMap<>();
+        Map<String, Long> classDurations = new HashMap<>();
+        for (Span span : recorded) {
+            categories.computeIfAbsent(span.category, key -> new ArrayList<>()).add(span);
+            if (CLASS_CATEGORIES.contains(span.category)) {
+                classDurations.merge(span.name, span.duration, Long::sum);
+            }
+        }
+
+        writer.append("{\n");
+        writer.append("  \"startTime\": ");
+        appendString(writer, startTime.toString());
+        writer.append(",\n  \"durationMs\": ");
+        appendMillis(writer, endNanos - startNanos);
+
+        writer.append(",\n  \"phases\": [");
+        List<Span> phases = categories.getOrDefault(PHASE_CATEGORY, List.of());
+        for (int i = 0; i < phases.size(); i++) {
+            Span phase = phases.get(i);
+            writer.append(i == 0 ? "\n" : ",\n").append("    {\"name\": ");
+            appendString(writer, phase.name);
+            writer.append(", \"durationMs\": ");
+            appendMillis(writer, phase.duration);
+            writer.append(", \"peakHeapBytes\": ").append(String.valueOf(phase.args.get("peakHeapBytes"))).append("}");
+        }
+        writer.append(phases.isEmpty() ? "]" : "\n  ]");
+
+        writer.append(",\n  \"counters\": {");
+        List<String> counterNames = new ArrayList<>(counters.keySet());
+        Collections.sort(counterNames);
+        for (int i = 0; i < counterNames.size(); i++) {
+            writer.append(i == 0 ? "\n    " : ",\n    ");
+            appendString(writer, counterNames.get(i));
+            writer.append(": ").append(String.valueOf(counters.get(counterNames.get(i)).sum()));
+        }
+        writer.append(counterNames.isEmpty() ? "}" : "\n  }");
+
+        writer.append(",\n  \"slowestClasses\": [");
+        List<Map.Entry<String, Long>> slowestClasses = classDurations.entrySet().stream()
+            .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+            .limit(SLOWEST_COUNT)
+            .toList();
+        for (int i = 0; i < slowestClasses.size(); i++) {
+            writer.append(i == 0 ? "\n" : ",\n").append("    {\"name\": ");
+            appendString(writer, slowestClasses.get(i).getKey());
+            writer.append(", \"durationMs\": ");
+            appendMillis(writer, slowestClasses.get(i).getValue());
+            writer.append("}");
+        }
+        writer.append(slowestClasses.isEmpty() ? "]" : "\n  ]");
+
+        writer.append(",\n  \"categories\": {");
+        boolean first = true;
+        for (Map.Entry<String, List<Span>> category : categories.entrySet()) {
+            if (category.getKey().equals(PHASE_CATEGORY)) {
+                continue;
+            }
+            List<Span> categorySpans = category.getValue();
+            writer.append(first ? "\n    " : ",\n    ");
+            first = false;
+            appendString(writer, category.getKey());
+            writer.append(": {\n      \"count\": ").append(String.valueOf(categorySpans.size()));
+            writer.append(",\n      \"totalMs\": ");
+            appendMillis(writer, categorySpans.stream().mapToLong(span -> span.duration).sum());
+
+            writer.append(",\n      \"slowest\": [");
+            List<Span> slowest = categorySpans.stream()
+                .sorted(Comparator.comparingLong((Span span) -> span.duration).reversed())
+                .limit(SLOWEST_COUNT)
+                .toList();
+            for (int i = 0; i < slowest.size(); i++) {
+                Span span = slowest.get(i);
+                writer.append(i == 0 ? "\n" : ",\n").append("        {\"name\": ");
+                appendString(writer, span.name);
+                writer.append(", \"durationMs\": ");
+                appendMillis(writer, span.duration);
+                if (span.args != null) {
+                    writer.append(", ");
+                    appendArgs(writer, span.args);
+                }
+                writer.append("}");
+            }
+            writer.append("\n      ]\n    }");
+        }
+        writer.append(first ? "}" : "\n  }");
+        writer.append("\n}\n");
+    }
+
+    private void writeTrace(Writer writer, List<Span> recorded) throws IOException {
+        writer.append("{\"displayTimeUnit\": \"ms\", \"traceEvents\": [\n");
+        boolean first = true;
+        for (Map.Entry<Long, String> thread : new TreeMap<>(threadNames).entrySet()) {
+            writer.append(first ? "" : ",\n");
+            first = false;
+            writer.append("{\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": ")
+                .append(String.valueOf(thread.getKey())).append(", \"args\": {\"name\": ");
+            appendString(writer, thread.getValue());
+            writer.append("}}");
+        }
+
+        for (Span span : recorded) {
+            writer.append(first ? "" : ",\n");
+            first = false;
+            writer.append("{\"name\": ");
+            appendString(writer, span.name);
+            writer.append(", \"cat\": ");
+            appendString(writer, span.category);
+            writer.append(", \"ph\": \"X\", \"ts\": ");
+            appendMicros(writer, span.start - startNanos);
+            writer.append(", \"dur\": ");
+            appendMicros(writer, span.duration);
+            writer.append(", \"pid\": 1, \"tid\": ").append(String.valueOf(span.threadId));
+            if (span.args != null) {
+                writer.append(", \"args\": {");
+                appendArgs(writer, span.args);
+                writer.append("}");
+            }
+            writer.append("}");
+
+            // Shows the heap usage as a graph next to the phases
+            if (span.category.equals(PHASE_CATEGORY)) {
+                writer.append(",\n{\"name\": \"heap\", \"ph\": \"C\", \"pid\": 1, \"ts\": ");
+                appendMicros(writer, span.start + span.duration - startNanos);
+                writer.append(", \"args\": {\"peakHeapBytes\": ")
+                    .append(String.valueOf(span.args.get("peakHeapBytes"))).append("}}");
+            }
+        }
+        writer.append("\n]}\n");
+    }
+
+    private static void appendArgs(Writer writer, Map<String, Object> args) throws IOException {
+        boolean first = true;
+        for (Map.Entry<String, Object> arg : args.entrySet()) {
+            writer.append(first ? "" : ", ");
+            first = false;
+            appendString(writer, arg.getKey());
+            writer.append(": ");
+            if (arg.getValue() instanceof Number) {
+                writer.append(arg.getValue().toString());
+            } else {
+                appendString(writer, String.valueOf(arg.getValue()));
+            }
+        }
+    }
+
+    private static void appendString(Writer writer, String value) throws IOException {
+        writer.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.append('\\').append(c);
+            } else if (c < 0x20) {
+                writer.append(String.format("\\u%04x", (int) c));
+            } else {
+                writer.append(c);
+            }
+        }
+        writer.append('"');
+    }
+
+    private static void appendMillis(Writer writer, long nanos) throws IOException {
+        appendFraction(writer, nanos / 1000, 3);
+    }
+
+    private static void appendMicros(Writer writer, long nanos) throws IOException {
+        appendFraction(writer, nanos, 3);
+    }
+
+    /**
+     * Writes a value with a fixed amount of decimal places, the value is given in units of the last place.
+     */
+    private static void appendFraction(Writer writer, long value, int places) throws IOException {
+        long scale = 1;
+        for (int i = 0; i < places; i++) {
+            scale *= 10;
+        }
+        String fraction = Long.toString(value % scale);
+        writer.append(Long.toString(value / scale)).append('.');
+        for (int i = fraction.length(); i < places; i++) {
+            writer.append('0');
+        }
+        writer.append(fraction);
+    }
+
+    /**
+     * @return The sum of the peak usages of all heap memory pools since they have been reset
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP && pool.isValid() ? pool.getPeakUsage() : null;
+            if (usage != null) {
+                peak += usage.getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * A piece of work on one thread, recorded once it is closed.
+     */
+    public static class Span implements AutoCloseable {
+        private final BuildMetrics metrics;
+        private final String category;
+        private final String name;
+        private final long threadId;
+        private final long start;
+        private long duration = -1;
+        private Map<String, Object> args;
+
+        private Span(BuildMetrics metrics, String category, String name, long threadId, long start) {
+            this.metrics = metrics;
+            this.category = category;
+            this.name = name;
+            this.threadId = threadId;
+            this.start = start;
+        }
+
+        /**
+         * Attaches a value to the span, shown in the trace and in the summary.
+         */
+        public Span arg(String key, Object value) {
+            if (metrics != null) {
+                if (args == null) {
+                    args = new LinkedHashMap<>();
+                }
+                args.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (metrics != null && duration < 0) {
+                duration = System.nanoTime() - start;
+                metrics.spans.add(this);
+            }
+        }
+    }
+}
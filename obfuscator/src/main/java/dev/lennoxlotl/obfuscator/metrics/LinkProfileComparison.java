@@ -0,0 +1,205 @@
+package dev.lennoxlotl.obfuscator.metrics;
+
+import dev.lennoxlotl.obfuscator.config.ObfuscatorConfig;
+import dev.lennoxlotl.obfuscator.daemon.BuildSession;
+import dev.lennoxlotl.obfuscator.shard.ShardedBuild;
+import dev.lennoxlotl.obfuscator.zig.LinkProfile;
+import dev.lennoxlotl.obfuscator.zig.ZigCompilationTarget;
+import org.tinylog.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Builds the configured jar once with every {@link LinkProfile} and compares the size of the native libraries and,
+ * if a benchmark command is given, the time the obfuscated jar takes to run it.
+ */
+public class LinkProfileComparison {
+    private final ObfuscatorConfig config;
+    // Runs the obfuscated jar, {jar} is replaced with its path. Null if only the libraries are compared
+    private final String benchmarkCommand;
+    private final int benchmarkRuns;
+
+    public LinkProfileComparison(ObfuscatorConfig config, String benchmarkCommand, int benchmarkRuns) {
+        this.config = config;
+        this.benchmarkCommand = benchmarkCommand;
+        this.benchmarkRuns = benchmarkRuns;
+    }
+
+    /**
+     * Writes the comparison to {@code link-profiles.json} in the metrics directory, or next to the output jar if no
+     * metrics directory has been configured.
+     *
+     * @return Whether every profile has been built
+     */
+    public boolean run() throws IOException, InterruptedException {
+        List<Result> results = new ArrayList<>();
+        // The profiles share the class path and the transpilation state, only the compiled objects differ
+        try (BuildSession session = new BuildSession()) {
+            for (LinkProfile profile : LinkProfile.values()) {
+                String name = profile.name().toLowerCase();
+                File outputJar = getOutputJar(name);
+                ObfuscatorConfig profileConfig = config.withZigLinkProfile(profile).withOutputJar(outputJar)
+                    .withMetricsDirectory(config.getMetricsDirectory() == null ? null :
+                        new File(config.getMetricsDirectory(), name));
+
+                Logger.info("Building with the {} link profile", name);
+                long start = System.nanoTime();
+                if (!ShardedBuild.run(profileConfig, session)) {
+                    return false;
+                }
+                long buildNanos = System.nanoTime() - start;
+                results.add(new Result(name, buildNanos, getLibrarySizes(outputJar), benchmark(outputJar)));
+            }
+        }
+
+        Path directory = config.getMetricsDirectory() != null ? config.getMetricsDirectory().toPath() :
+            config.getOutputJar().getAbsoluteFile().toPath().getParent();
+        Files.createDirectories(directory);
+        try (Writer writer = Files.newBufferedWriter(directory.resolve("link-profiles.json"), StandardCharsets.UTF_8)) {
+            write(writer, results);
+        }
+        log(results);
+        return true;
+    }
+
+    /**
+     * @return The output jar with the name of the profile appended, e.g. {@code output-thin_lto.jar}
+     */
+    private File getOutputJar(String profileName) {
+        File outputJar = config.getOutputJar().getAbsoluteFile();
+        String fileName = outputJar.getName();
+        int extension = fileName.lastIndexOf('.');
+        String baseName = extension < 0 ? fileName : fileName.substring(0, extension);
+        return new File(outputJar.getParentFile(), baseName + "-" + profileName + ".jar");
+    }
+
+    /**
+     * @return The size of the native library of every target in the jar, by library name
+     */
+    private Map<String, Long> getLibrarySizes(File jar) throws IOException {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        try (ZipFile zip = new ZipFile(jar)) {
+            for (ZigCompilationTarget target : config.getZigCompilerTargets()) {
+                ZipEntry entry = zip.getEntry(config.getLoaderDirectory() + "/" + target.getLibraryName());
+                if (entry != null) {
+                    sizes.put(target.getLibraryName(), entry.getSize());
+                }
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Runs the benchmark command against the jar, the first run only warms up the file system cache.
+     *
+     * @return The median wall time of the runs in nanoseconds, -1 if there is no benchmark or it failed
+     */
+    private long benchmark(File jar) throws IOException, InterruptedException {
+        if (benchmarkCommand == null) {
+            return -1;
+        }
+
+        String command = benchmarkCommand.replace("{jar}", jar.getAbsolutePath());
+        List<String> shell = System.getProperty("os.name").startsWith("Windows") ?
+            List.of("cmd", "/c", command) : List.of("sh", "-c", command);
+        long[] times = new long[benchmarkRuns];
+        for (int i = -1; i < benchmarkRuns; i++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(shell)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                Logger.warn("Benchmark exited with code {} for {}", exitCode, jar.getName());
+                return -1;
+            }
+            if (i >= 0) {
+                times[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(times);
+        return times[benchmarkRuns / 2];
+    }
+
+    private void write(Writer writer, List<Result> results) throws IOException {
+        writer.append("{\n  \"benchmark\": ");
+        writer.append(benchmarkCommand == null ? "null" : quote(benchmarkCommand));
+        writer.append(",\n  \"benchmarkRuns\": ").append(String.valueOf(benchmarkRuns));
+        writer.append(",\n  \"profiles\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            writer.append(i == 0 ? "\n" : ",\n").append("    {\"name\": ").append(quote(result.name));
+            writer.append(", \"buildMs\": ").append(String.valueOf(TimeUnit.NANOSECONDS.toMillis(result.buildNanos)));
+            writer.append(", \"libraryBytes\": {");
+            int j = 0;
+            for (Map.Entry<String, Long> library : result.librarySizes.entrySet()) {
+                writer.append(j++ == 0 ? "" : ", ").append(quote(library.getKey())).append(": ")
+                    .append(String.valueOf(library.getValue()));
+            }
+            writer.append("}, \"benchmarkMs\": ").append(result.benchmarkNanos < 0 ? "null" :
+                String.format(Locale.ROOT, "%.3f", result.benchmarkNanos / 1e6));
+            writer.append("}");
+        }
+        writer.append(results.isEmpty() ? "]" : "\n  ]").append("\n}\n");
+    }
+
+    /**
+     * Logs every profile relative to the first one, which is the default profile.
+     */
+    private void log(List<Result> results) {
+        Result baseline = results.get(0);
+        for (Result result : results) {
+            StringBuilder line = new StringBuilder(String.format("%-12s build %6d ms", result.name,
+                TimeUnit.NANOSECONDS.toMillis(result.buildNanos)));
+            result.librarySizes.forEach((library, size) -> {
+                Long baselineSize = baseline.librarySizes.get(library);
+                line.append(String.format(", %s %d bytes", library, size));
+                if (baselineSize != null && baselineSize > 0) {
+                    line.append(String.format(" (%+.1f%%)", (size - baselineSize) * 100.0 / baselineSize));
+                }
+            });
+            if (result.benchmarkNanos >= 0) {
+                line.append(String.format(", benchmark %.1f ms", result.benchmarkNanos / 1e6));
+                if (baseline.benchmarkNanos > 0) {
+                    line.append(String.format(" (%+.1f%%)",
+                        (result.benchmarkNanos - baseline.benchmarkNanos) * 100.0 / baseline.benchmarkNanos));
+                }
+            }
+            Logger.info(line.toString());
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static class Result {
+        private final String name;
+        private final long buildNanos;
+        private final Map<String, Long> librarySizes;
+        // -1 if the jar has not been benchmarked
+        private final long benchmarkNanos;
+
+        private Result(String name, long buildNanos, Map<String, Long> librarySizes, long benchmarkNanos) {
+            this.name = name;
+            this.buildNanos = buildNanos;
+            this.librarySizes = librarySizes;
+            this.benchmarkNanos = benchmarkNanos;
+        }
+    }
+}
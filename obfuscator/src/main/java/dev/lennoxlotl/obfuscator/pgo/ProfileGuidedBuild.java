@@ -0,0 +1,167 @@
+package dev.lennoxlotl.obfuscator.pgo;
+
+import dev.lennoxlotl.obfuscator.Util;
+import dev.lennoxlotl.obfuscator.config.ObfuscatorConfig;
+import dev.lennoxlotl.obfuscator.daemon.BuildSession;
+import dev.lennoxlotl.obfuscator.shard.Shard;
+import dev.lennoxlotl.obfuscator.shard.ShardedBuild;
+import dev.lennoxlotl.obfuscator.zig.ProfileMode;
+import dev.lennoxlotl.obfuscator.zig.ProfileStore;
+import dev.lennoxlotl.obfuscator.zig.ZigCompilationTarget;
+import dev.lennoxlotl.obfuscator.zig.ZigCompiler;
+import org.tinylog.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Builds the configured jar with profile guided optimization.
+ * <p>
+ * The first stage builds the library of the host with instrumentation and runs the workload against it, the recorded
+ * profiles are merged and stored for the compiled sources. The second stage builds every target with the stored
+ * profiles, later builds with {@code pgo} enabled keep using them for the sources which have not changed. Both stages
+ * build the configured shards, the profiles are stored by the hash of the sources and the sources of a shard differ
+ * from the ones of a build without shards.
+ */
+public class ProfileGuidedBuild {
+    private final ObfuscatorConfig config;
+    // Runs the instrumented jar, {jar} is replaced with its path
+    private final String workloadCommand;
+    private final int workloadRuns;
+
+    public ProfileGuidedBuild(ObfuscatorConfig config, String workloadCommand, int workloadRuns) {
+        // The generated build.zig can't instrument the sources, they are compiled one by one instead
+        this.config = config.withZigBuildProject(false);
+        this.workloadCommand = workloadCommand;
+        this.workloadRuns = workloadRuns;
+    }
+
+    /**
+     * @return Whether the optimized output jar has been written
+     */
+    public boolean run() throws IOException, InterruptedException {
+        if (config.getCacheDirectory() == null) {
+            throw new IllegalStateException("Profile guided optimization needs a cache directory");
+        }
+        Path profileDir = config.getCacheDirectory().toPath().resolve("profiles");
+        ProfileStore profileStore = new ProfileStore(profileDir,
+            ZigCompiler.getCompilerVersion(config.getZigExecutable()));
+
+        try (BuildSession session = new BuildSession()) {
+            // The workload only runs on the host, the instrumented sources are the same for every target
+            File instrumentedJar = getInstrumentedJar();
+            ZigCompilationTarget host = ZigCompilationTarget.getHost();
+            Logger.info("Building the instrumented library for {}", host.name().toLowerCase());
+            ObfuscatorConfig instrumentedConfig = config.withZigProfileMode(ProfileMode.INSTRUMENT)
+                .withZigCompilerTargets(List.of(host))
+                .withOutputJar(instrumentedJar)
+                .withMetricsDirectory(null);
+            // Only compiled sources are recorded, so no shard may be taken as built
+            invalidateShards();
+            profileStore.clearRecorded();
+            if (!ShardedBuild.run(instrumentedConfig, session)) {
+                return false;
+            }
+
+            Path rawDir = profileDir.resolve("raw");
+            if (Files.exists(rawDir)) {
+                Util.deleteDirectory(rawDir);
+            }
+            Files.createDirectories(rawDir);
+            if (!runWorkload(instrumentedJar, rawDir)) {
+                return false;
+            }
+            Path mergedProfile = mergeProfiles(rawDir);
+            if (mergedProfile == null) {
+                return false;
+            }
+            int sources = profileStore.store(mergedProfile);
+            Util.deleteDirectory(rawDir);
+            Logger.info("Stored the merged profile for {} sources", sources);
+
+            // Shards only depend on the profiles through the store, so they are built again with the new profile
+            invalidateShards();
+            Logger.info("Building all targets with the recorded profile");
+            return ShardedBuild.run(config.withZigProfileMode(ProfileMode.OPTIMIZE), session);
+        }
+    }
+
+    private void invalidateShards() throws IOException {
+        for (int i = 0; i < config.getShards(); i++) {
+            Shard.of(config, i).invalidate();
+        }
+    }
+
+    /**
+     * Runs the workload against the instrumented jar, every process writes a raw profile into the given directory.
+     *
+     * @return Whether the workload succeeded and recorded at least one profile
+     */
+    private boolean runWorkload(File instrumentedJar, Path rawDir) throws IOException, InterruptedException {
+        String command = workloadCommand.replace("{jar}", instrumentedJar.getAbsolutePath());
+        List<String> shell = System.getProperty("os.name").startsWith("Windows") ?
+            List.of("cmd", "/c", command) : List.of("sh", "-c", command);
+        for (int i = 0; i < workloadRuns; i++) {
+            Logger.info("Running the workload ({} of {})", i + 1, workloadRuns);
+            ProcessBuilder builder = new ProcessBuilder(shell).inheritIO();
+            // %p keeps the profiles of concurrent processes apart
+            builder.environment().put("LLVM_PROFILE_FILE", rawDir.toAbsolutePath().resolve("%p.profraw").toString());
+            int exitCode = builder.start().waitFor();
+            if (exitCode != 0) {
+                Logger.error("The workload exited with code {}", exitCode);
+                return false;
+            }
+        }
+
+        if (getRawProfiles(rawDir).isEmpty()) {
+            Logger.error("The workload has not recorded a profile, it has to load the library and exit normally");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The merged profile or null if the raw profiles could not be merged
+     */
+    private Path mergeProfiles(Path rawDir) throws IOException, InterruptedException {
+        Path mergedProfile = rawDir.resolve("merged.profdata");
+        List<String> command = new ArrayList<>(List.of(config.getZigProfdataExecutable(), "merge", "-o",
+            mergedProfile.toString()));
+        command.addAll(getRawProfiles(rawDir));
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .start();
+        String output = new String(process.getInputStream().readAllBytes());
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            Logger.error("Could not merge the profiles: {}", output);
+            return null;
+        }
+        return mergedProfile;
+    }
+
+    /**
+     * @return The output jar with {@code -instrumented} appended to its name
+     */
+    private File getInstrumentedJar() {
+        File outputJar = config.getOutputJar().getAbsoluteFile();
+        String fileName = outputJar.getName();
+        int extension = fileName.lastIndexOf('.');
+        String baseName = extension < 0 ? fileName : fileName.substring(0, extension);
+        return new File(outputJar.getParentFile(), baseName + "-instrumented.jar");
+    }
+
+    private static List<String> getRawProfiles(Path rawDir) throws IOException {
+        try (Stream<Path> files = Files.list(rawDir)) {
+            return files.filter(file -> file.toString().endsWith(".profraw"))
+                .map(Path::toString)
+                .sorted()
+                .toList();
+        }
+    }
+}
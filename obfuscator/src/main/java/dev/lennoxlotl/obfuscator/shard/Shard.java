@@ -0,0 +1,222 @@
+package dev.lennoxlotl.obfuscator.shard;
+
+import dev.lennoxlotl.obfuscator.cache.TranspilationCache;
+import dev.lennoxlotl.obfuscator.config.ObfuscatorConfig;
+import dev.lennoxlotl.obfuscator.zig.ZigCompilationTarget;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * One part of a sharded build.
+ * <p>
+ * Class files are assigned to the shards by the hash of their package, so changed or added classes only affect the
+ * shards of their packages. Every shard is transpiled on its own and compiled into a static archive per target,
+ * which keeps its string pool and the registration code of its classes in a namespace of its own. Class ids are
+ * handed out to the shards in turns, so they stay unique without knowing the size of the other shards.
+ * <p>
+ * A built shard consists of its transpiled class files, its archives and a manifest with the hash of its inputs,
+ * which tells whether the shard has to be built again.
+ */
+@Getter
+public class Shard {
+    private static final String MANIFEST_FILE = "shard.properties";
+    private static final String CLASSES_FILE = "classes.jar";
+
+    private final int index;
+    private final int count;
+    private final Path directory;
+
+    public Shard(int index, int count, Path directory) {
+        this.index = index;
+        this.count = count;
+        this.directory = directory;
+    }
+
+    /**
+     * @return The shard with the index, kept in the shard directory of the config
+     */
+    public static Shard of(ObfuscatorConfig config, int index) {
+        if (index < 0 || index >= config.getShards()) {
+            throw new IllegalArgumentException("Shard " + index + " does not exist, " + config.getShards() +
+                " shards have been configured");
+        }
+        return new Shard(index, config.getShards(), config.getShardDirectory().toPath().resolve("shard-" + index));
+    }
+
+    /**
+     * @return The index of the shard the jar entry belongs to
+     */
+    public static int getIndex(String entryName, int count) {
+        int packageEnd = entryName.lastIndexOf('/');
+        String packageName = packageEnd == -1 ? "" : entryName.substring(0, packageEnd);
+        return Math.floorMod(packageName.hashCode(), count);
+    }
+
+    /**
+     * @return The name of the namespace of the shard in the native code and of the package of its hidden classes
+     */
+    public String getName() {
+        return "shard_" + index;
+    }
+
+    /**
+     * @return Whether the jar entry belongs to the shard
+     */
+    public boolean contains(String entryName) {
+        return getIndex(entryName, count) == index;
+    }
+
+    /**
+     * @param shardClassId The id of the class within the shard
+     * @return The id of the class within the library
+     */
+    public int getClassId(int shardClassId) {
+        return shardClassId * count + index;
+    }
+
+    /**
+     * @return The directory of the transpilation cache of the shard, the offsets of its strings and the ids of its
+     * classes differ from the other shards
+     */
+    public Path getCacheDirectory(Path cacheDirectory) {
+        return cacheDirectory.resolve("shards").resolve(count + "-" + index);
+    }
+
+    /**
+     * @return The jar with the transpiled class files of the shard
+     */
+    public Path getClassesJar() {
+        return directory.resolve(CLASSES_FILE);
+    }
+
+    public Path getArchive(ZigCompilationTarget target) {
+        return directory.resolve(target.getTargetName() + ".a");
+    }
+
+    /**
+     * @return Whether the shard has been built completely from the given inputs for all targets
+     */
+    public boolean isBuilt(String inputHash, List<ZigCompilationTarget> targets) throws IOException {
+        Path manifestFile = directory.resolve(MANIFEST_FILE);
+        if (!Files.isRegularFile(manifestFile)) {
+            return false;
+        }
+
+        Properties manifest = new Properties();
+        try (InputStream in = Files.newInputStream(manifestFile)) {
+            manifest.load(in);
+        }
+        return inputHash.equals(manifest.getProperty("inputs")) && Files.isRegularFile(getClassesJar()) &&
+            targets.stream().allMatch(target -> Files.isRegularFile(getArchive(target)));
+    }
+
+    /**
+     * Marks the shard as incomplete until it has been built again.
+     */
+    public void invalidate() throws IOException {
+        Files.createDirectories(directory);
+        Files.deleteIfExists(directory.resolve(MANIFEST_FILE));
+    }
+
+    /**
+     * Marks the shard as built from the given inputs, once its class files and archives have been written.
+     */
+    public void complete(String inputHash, int classCount) throws IOException {
+        Properties manifest = new Properties();
+        manifest.setProperty("index", Integer.toString(index));
+        manifest.setProperty("count", Integer.toString(count));
+        manifest.setProperty("classes", Integer.toString(classCount));
+        manifest.setProperty("inputs", inputHash);
+
+        Path manifestFile = directory.resolve(MANIFEST_FILE);
+        Path tempFile = directory.resolve(MANIFEST_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            manifest.store(out, null);
+        }
+        Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hashes everything the output of every shard depends on: the environment of the transpiled sources, the options
+     * which change the output, the entries of the libraries and the entries of the shard. Entries are hashed by
+     * their name, size and checksum, so neither the input jar nor the libraries have to be decompressed.
+     *
+     * @return The hash of every shard, by index
+     */
+    public static String[] getInputHashes(ObfuscatorConfig config, JarFile inputJar, List<Path> libraries)
+        throws IOException {
+        MessageDigest environment = createDigest();
+        environment.update(TranspilationCache.getEnvironmentHash(config));
+        update(environment, config.getShards() + "\n" + config.getUnitSize() + "\n" + config.getIncludePatterns() +
+            "\n" + config.getExcludePatterns() + "\n" + config.getZigCompilerTargets() + "\n" +
+            config.getZigLinkProfile() + "\n" + config.getZigProfileMode());
+        for (Path library : libraries) {
+            update(environment, library.getFileName().toString());
+            try (JarFile jar = new JarFile(library.toFile())) {
+                updateWithEntries(environment, jar.stream().iterator());
+            } catch (IOException ex) {
+                // Libraries which can't be opened are left out of the class path
+                update(environment, "invalid");
+            }
+        }
+
+        MessageDigest[] digests = new MessageDigest[config.getShards()];
+        for (int i = 0; i < digests.length; i++) {
+            try {
+                digests[i] = (MessageDigest) environment.clone();
+            } catch (CloneNotSupportedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        for (Iterator<JarEntry> entries = inputJar.stream().iterator(); entries.hasNext(); ) {
+            JarEntry entry = entries.next();
+            if (entry.getName().endsWith(".class")) {
+                updateWithEntries(digests[getIndex(entry.getName(), digests.length)], List.of(entry).iterator());
+            }
+        }
+
+        String[] hashes = new String[digests.length];
+        for (int i = 0; i < digests.length; i++) {
+            hashes[i] = HexFormat.of().formatHex(digests[i].digest());
+        }
+        return hashes;
+    }
+
+    private static void updateWithEntries(MessageDigest digest, Iterator<JarEntry> entries) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        while (entries.hasNext()) {
+            JarEntry entry = entries.next();
+            update(digest, entry.getName());
+            digest.update(buffer.clear().putLong(entry.getSize()).putLong(entry.getCrc()).array());
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
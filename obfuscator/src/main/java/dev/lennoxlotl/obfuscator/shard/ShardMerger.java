@@ -0,0 +1,199 @@
+package dev.lennoxlotl.obfuscator.shard;
+
+import dev.lennoxlotl.obfuscator.LibraryClassPath;
+import dev.lennoxlotl.obfuscator.NativeObfuscator;
+import dev.lennoxlotl.obfuscator.Util;
+import dev.lennoxlotl.obfuscator.config.ObfuscatorConfig;
+import dev.lennoxlotl.obfuscator.metrics.BuildMetrics;
+import dev.lennoxlotl.obfuscator.zig.ZigCompilationTarget;
+import dev.lennoxlotl.obfuscator.zig.ZigCompiler;
+import dev.lennoxlotl.obfuscator.zip.JarWriter;
+import dev.lennoxlotl.obfuscator.zip.ZipIndex;
+import org.tinylog.Logger;
+import ru.gravit.launchserver.asm.ClassMetadataReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Assembles the output jar from the built shards.
+ * <p>
+ * The runtime and a main source which calls the registration code of every shard are compiled and linked together
+ * with the archives of the shards. The output jar gets the entries of the input jar in their original order, with the
+ * class files transpiled by the shards in place of the original ones, followed by the loader and the libraries.
+ */
+public class ShardMerger {
+    private final ObfuscatorConfig config;
+
+    public ShardMerger(ObfuscatorConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @return Whether the output jar has been written, fails if a shard is missing or has been built from other inputs
+     */
+    public boolean merge() throws IOException {
+        Path inputJarPath = config.getInputJar().toPath().toAbsolutePath();
+        List<Shard> shards = new ArrayList<>();
+        try (JarFile inputJar = new JarFile(inputJarPath.toFile())) {
+            String[] inputHashes = Shard.getInputHashes(config, inputJar,
+                LibraryClassPath.find(config.getLibrariesDirectory()));
+            for (int i = 0; i < config.getShards(); i++) {
+                Shard shard = Shard.of(config, i);
+                if (!shard.isBuilt(inputHashes[i], config.getZigCompilerTargets())) {
+                    throw new IllegalStateException("Shard " + i + " has not been built from the current input, " +
+                        "build it with --shard " + i);
+                }
+                shards.add(shard);
+            }
+        }
+
+        Logger.info("Merging {} shards", shards.size());
+        String nativeDir = config.getLoaderDirectory();
+        Path workingDir = new File("temp-" + System.currentTimeMillis()).toPath();
+        Path cppDir = workingDir.resolve("cpp");
+        Files.createDirectories(cppDir);
+        Util.copyResource("sources/native_jvm.cpp", cppDir);
+        Util.copyResource("sources/native_jvm.hpp", cppDir);
+        Util.copyResource("sources/native_jvm_output.hpp", cppDir);
+        writeMainSource(cppDir.resolve("native_jvm_output.cpp"), shards, nativeDir);
+
+        Path outputJar = config.getOutputJar().toPath().toAbsolutePath();
+        Path tempJarFile = outputJar.resolveSibling(outputJar.getFileName() + ".tmp");
+        boolean compiled = false;
+        try (JarWriter out = new JarWriter(tempJarFile);
+             ZigCompiler zigCompiler = ZigCompiler.start(config.getZigExecutable(),
+                 workingDir,
+                 cppDir,
+                 config.getZigCompileThreads(),
+                 config.getZigMemoryLimit(),
+                 true,
+                 false,
+                 config.getZigLinkProfile(),
+                 config.getZigProfileMode(),
+                 config.isZigBuildProject(),
+                 config.getZigCompilerTargets(),
+                 config.getCacheDirectory() == null ? null : config.getCacheDirectory().toPath().resolve("objects"),
+                 config.getCacheDirectory() == null ? null : config.getCacheDirectory().toPath().resolve("profiles"),
+                 BuildMetrics.DISABLED)) {
+            zigCompiler.submit(cppDir.resolve("native_jvm.cpp"));
+            zigCompiler.submit(cppDir.resolve("native_jvm_output.cpp"));
+            for (ZigCompilationTarget target : config.getZigCompilerTargets()) {
+                for (Shard shard : shards) {
+                    zigCompiler.addArchive(target, shard.getArchive(target));
+                }
+            }
+
+            writeEntries(out, inputJarPath, shards);
+            out.write(nativeDir + "/Loader.class", NativeObfuscator.createLoaderClass(nativeDir, new ClassMetadataReader()));
+
+            try {
+                for (Path path : zigCompiler.finish()) {
+                    Logger.info("Writing {} to {}", path.getFileName().toString(), nativeDir + "/" + path.getFileName());
+                    out.write(nativeDir + "/" + path.getFileName().toString(), Files.readAllBytes(path));
+                }
+                compiled = true;
+            } catch (Exception e) {
+                Logger.error(e, "Could not compile the merged shards");
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempJarFile);
+            throw ex;
+        }
+
+        if (compiled) {
+            Files.move(tempJarFile, outputJar, StandardCopyOption.REPLACE_EXISTING);
+            Logger.info("Merged shards written to {}", outputJar);
+        } else {
+            Files.deleteIfExists(tempJarFile);
+        }
+
+        if (config.isDeleteTempDir()) {
+            Util.deleteDirectory(workingDir);
+        }
+        return compiled;
+    }
+
+    /**
+     * Writes the entries of the input jar with the class files of the shards in place of the original ones, hidden
+     * classes written by the shards come last.
+     */
+    private static void writeEntries(JarWriter out, Path inputJarPath, List<Shard> shards) throws IOException {
+        List<ZipIndex> shardIndexes = new ArrayList<>();
+        try (JarFile inputJar = new JarFile(inputJarPath.toFile());
+             ZipIndex inputIndex = new ZipIndex(inputJarPath)) {
+            for (Shard shard : shards) {
+                shardIndexes.add(new ZipIndex(shard.getClassesJar()));
+            }
+
+            // Written first, so the manifest is found by JarInputStream
+            ZipIndex.Entry manifest = inputIndex.getEntry(JarFile.MANIFEST_NAME);
+            if (manifest != null) {
+                out.copy(inputIndex, manifest);
+            }
+
+            Set<String> names = new HashSet<>();
+            for (Iterator<JarEntry> entries = inputJar.stream().iterator(); entries.hasNext(); ) {
+                String name = entries.next().getName();
+                if (name.equals(JarFile.MANIFEST_NAME) || !names.add(name)) {
+                    continue;
+                }
+                ZipIndex shardIndex = name.endsWith(".class")
+                    ? shardIndexes.get(Shard.getIndex(name, shards.size())) : null;
+                ZipIndex.Entry transpiled = shardIndex == null ? null : shardIndex.getEntry(name);
+                if (transpiled != null) {
+                    out.copy(shardIndex, transpiled);
+                } else {
+                    out.copy(inputIndex, inputIndex.getEntry(name));
+                }
+            }
+
+            for (int i = 0; i < shards.size(); i++) {
+                try (JarFile classesJar = new JarFile(shards.get(i).getClassesJar().toFile())) {
+                    for (Iterator<JarEntry> entries = classesJar.stream().iterator(); entries.hasNext(); ) {
+                        String name = entries.next().getName();
+                        if (names.add(name)) {
+                            out.copy(shardIndexes.get(i), shardIndexes.get(i).getEntry(name));
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (ZipIndex shardIndex : shardIndexes) {
+                shardIndex.close();
+            }
+        }
+    }
+
+    private static void writeMainSource(Path file, List<Shard> shards, String nativeDir) throws IOException {
+        StringBuilder declarations = new StringBuilder();
+        StringBuilder registers = new StringBuilder();
+        StringBuilder prepareCode = new StringBuilder();
+        for (Shard shard : shards) {
+            declarations.append("    namespace ").append(shard.getName()).append(" {\n")
+                .append("        void register_for_class(JNIEnv *env, jint id, jclass clazz);\n")
+                .append("        void prepare(JNIEnv *env);\n")
+                .append("    }\n");
+            registers.append("        &shards::").append(shard.getName()).append("::register_for_class,\n");
+            prepareCode.append("        shards::").append(shard.getName()).append("::prepare(env);\n");
+        }
+
+        Files.writeString(file, Util.dynamicFormat(Util.readResource("sources/native_jvm_shards.cpp"), Util.createMap(
+            "declarations", declarations,
+            "registers", registers,
+            "prepare_code", prepareCode,
+            "shard_count", shards.size(),
+            "native_dir", nativeDir
+        )));
+    }
+}
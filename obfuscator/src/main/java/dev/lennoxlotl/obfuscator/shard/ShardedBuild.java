@@ -0,0 +1,56 @@
+package dev.lennoxlotl.obfuscator.shard;
+
+import dev.lennoxlotl.obfuscator.LibraryClassPath;
+import dev.lennoxlotl.obfuscator.NativeObfuscator;
+import dev.lennoxlotl.obfuscator.config.ObfuscatorConfig;
+import dev.lennoxlotl.obfuscator.daemon.BuildSession;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.util.jar.JarFile;
+
+/**
+ * Builds the configured jar, shard by shard if shards have been configured.
+ */
+public class ShardedBuild {
+
+    /**
+     * Builds every shard which has not been built from the current inputs and merges them, or the whole jar at once
+     * if no shards have been configured.
+     *
+     * @param session Keeps state for the next build of a long running process, null for a single build
+     * @return Whether the output jar has been written
+     */
+    public static boolean run(ObfuscatorConfig config, BuildSession session) throws IOException {
+        if (config.getShards() <= 0) {
+            return new NativeObfuscator().process(config, session);
+        }
+
+        String[] inputHashes;
+        try (JarFile inputJar = new JarFile(config.getInputJar())) {
+            inputHashes = Shard.getInputHashes(config, inputJar, LibraryClassPath.find(config.getLibrariesDirectory()));
+        }
+
+        // The shards share the class path of the libraries
+        BuildSession shardSession = session != null ? session : new BuildSession();
+        try {
+            for (int i = 0; i < config.getShards(); i++) {
+                Shard shard = Shard.of(config, i);
+                if (shard.isBuilt(inputHashes[i], config.getZigCompilerTargets())) {
+                    Logger.info("Shard {} of {} is up to date", i, config.getShards());
+                    continue;
+                }
+
+                Logger.info("Building shard {} of {}", i, config.getShards());
+                if (!new NativeObfuscator().process(config, shardSession, shard)) {
+                    return false;
+                }
+            }
+        } finally {
+            if (session == null) {
+                shardSession.close();
+            }
+        }
+        return new ShardMerger(config).merge();
+    }
+}
@@ -0,0 +1,70 @@
+package dev.lennoxlotl.obfuscator.source;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes binary data as a C++ string literal, split into lines of roughly equal length.
+ * <p>
+ * Compilers parse string literals much faster than lists of byte initializers and the generated source is about a
+ * quarter of the size. The literal has an implicit terminating zero byte, arrays initialized with it have to be one
+ * byte larger than the written data.
+ */
+public class ByteLiteralWriter {
+    private static final int LINE_LENGTH = 100;
+
+    private final Writer out;
+    private final String indent;
+    private final StringBuilder line = new StringBuilder();
+    private boolean started;
+
+    /**
+     * @param indent The indentation of every line of the literal
+     */
+    public ByteLiteralWriter(Writer out, String indent) {
+        this.out = out;
+        this.indent = indent;
+    }
+
+    public void write(byte[] data) throws IOException {
+        for (byte b : data) {
+            write(b);
+        }
+    }
+
+    public void write(int b) throws IOException {
+        b &= 0xFF;
+        if (b >= 0x20 && b < 0x7F && b != '"' && b != '\\' && b != '?') {
+            line.append((char) b);
+        } else {
+            // Octal escapes always use three digits, so they can't be extended by a following digit
+            line.append('\\')
+                .append((char) ('0' + (b >> 6)))
+                .append((char) ('0' + ((b >> 3) & 7)))
+                .append((char) ('0' + (b & 7)));
+        }
+
+        if (line.length() >= LINE_LENGTH) {
+            writeLine();
+        }
+    }
+
+    /**
+     * Writes the remaining data, the literal is empty if no data has been written.
+     */
+    public void finish() throws IOException {
+        if (line.length() > 0 || !started) {
+            writeLine();
+        }
+    }
+
+    private void writeLine() throws IOException {
+        out.write('\n');
+        out.write(indent);
+        out.write('"');
+        out.write(line.toString());
+        out.write('"');
+        line.setLength(0);
+        started = true;
+    }
+}
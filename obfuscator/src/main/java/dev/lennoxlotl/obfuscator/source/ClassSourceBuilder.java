@@ -11,7 +11,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -21,6 +21,7 @@ public class ClassSourceBuilder implements AutoCloseable {
     private final Path hppFile;
     private final BufferedWriter cppWriter;
     private final BufferedWriter hppWriter;
+    private final CppEmitter methodEmitter;
     private final String className;
     private final String filename;
 
@@ -35,9 +36,14 @@ public class ClassSourceBuilder implements AutoCloseable {
         hppFile = cppOutputDir.resolve(filename.concat(".hpp"));
         cppWriter = Files.newBufferedWriter(cppFile, StandardCharsets.UTF_8);
         hppWriter = Files.newBufferedWriter(hppFile, StandardCharsets.UTF_8);
+        methodEmitter = new CppEmitter(cppWriter, "    ");
     }
 
-    public void addHeader(int strings, int classes, int methods, int fields) throws IOException {
+    /**
+     * Writes the start of the sources. The caches are only declared here, their size is known once all methods have
+     * been written.
+     */
+    public void addHeader() throws IOException {
         cppWriter.append("#include \"../native_jvm.hpp\"\n");
         cppWriter.append("#include \"../string_pool.hpp\"\n");
         cppWriter.append("#include \"").append(getHppFilename()).append("\"\n");
@@ -46,19 +52,11 @@ public class ClassSourceBuilder implements AutoCloseable {
         cppWriter.append("namespace native_jvm::classes::__ngen_").append(filename).append(" {\n\n");
         cppWriter.append("    char *string_pool;\n\n");
 
-        if (strings > 0) {
-            cppWriter.append(String.format("    jstring cstrings[%d];\n", strings));
-        }
-        if (classes > 0) {
-            cppWriter.append(String.format("    std::mutex cclasses_mtx[%d];\n", classes));
-            cppWriter.append(String.format("    jclass cclasses[%d];\n", classes));
-        }
-        if (methods > 0) {
-            cppWriter.append(String.format("    jmethodID cmethods[%d];\n", methods));
-        }
-        if (fields > 0) {
-            cppWriter.append(String.format("    jfieldID cfields[%d];\n", fields));
-        }
+        cppWriter.append("    extern jstring cstrings[];\n");
+        cppWriter.append("    extern std::mutex cclasses_mtx[];\n");
+        cppWriter.append("    extern jclass cclasses[];\n");
+        cppWriter.append("    extern jmethodID cmethods[];\n");
+        cppWriter.append("    extern jfieldID cfields[];\n");
 
         cppWriter.append("\n");
         cppWriter.append("    ");
@@ -76,8 +74,33 @@ public class ClassSourceBuilder implements AutoCloseable {
                 .append(" {\n\n");
     }
 
-    public void addInstructions(String instructions) throws IOException {
-        cppWriter.append(instructions);
+    /**
+     * @return The emitter for the methods, which are written right after the header
+     */
+    public CppEmitter getMethodEmitter() {
+        return methodEmitter;
+    }
+
+    /**
+     * Defines the caches declared in the header once all methods have been written.
+     */
+    public void addCaches(int strings, int classes, int methods, int fields) throws IOException {
+        cppWriter.append("\n");
+
+        if (strings > 0) {
+            cppWriter.append("    jstring cstrings[").append(String.valueOf(strings)).append("];\n");
+        }
+        if (classes > 0) {
+            cppWriter.append("    std::mutex cclasses_mtx[").append(String.valueOf(classes)).append("];\n");
+            cppWriter.append("    jclass cclasses[").append(String.valueOf(classes)).append("];\n");
+        }
+        if (methods > 0) {
+            cppWriter.append("    jmethodID cmethods[").append(String.valueOf(methods)).append("];\n");
+        }
+        if (fields > 0) {
+            cppWriter.append("    jfieldID cfields[").append(String.valueOf(fields)).append("];\n");
+        }
+
         cppWriter.append("\n");
     }
 
@@ -107,7 +130,7 @@ public class ClassSourceBuilder implements AutoCloseable {
         }
 
         if (!hiddenMethods.isEmpty()) {
-            HashMap<ClassNode, List<HiddenCppMethod>> sortedHiddenMethods = new HashMap<>();
+            Map<ClassNode, List<HiddenCppMethod>> sortedHiddenMethods = new LinkedHashMap<>();
             for (HiddenCppMethod method : hiddenMethods) {
                 sortedHiddenMethods.computeIfAbsent(method.getHiddenMethod().getClassNode(), unused -> new ArrayList<>()).add(method);
             }
@@ -0,0 +1,89 @@
+package dev.lennoxlotl.obfuscator.source;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Writes generated code straight to the source file of a class.
+ * <p>
+ * Every line after a line break is prefixed with the indentation of the emitter, so code can be generated without
+ * knowing where it ends up. Numbers are formatted without creating intermediate strings.
+ */
+public class CppEmitter implements Appendable {
+
+    private final Writer out;
+    private final String indent;
+    private final char[] digits = new char[20];
+
+    /**
+     * @param indent Written after every line break
+     */
+    public CppEmitter(Writer out, String indent) {
+        this.out = out;
+        this.indent = indent;
+    }
+
+    @Override
+    public CppEmitter append(CharSequence csq) {
+        String value = String.valueOf(csq);
+        return append(value, 0, value.length());
+    }
+
+    @Override
+    public CppEmitter append(CharSequence csq, int start, int end) {
+        String value = String.valueOf(csq);
+        try {
+            for (int lineEnd = value.indexOf('\n', start); lineEnd != -1 && lineEnd < end;
+                 lineEnd = value.indexOf('\n', start)) {
+                out.write(value, start, lineEnd + 1 - start);
+                out.write(indent);
+                start = lineEnd + 1;
+            }
+            out.write(value, start, end - start);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return this;
+    }
+
+    @Override
+    public CppEmitter append(char c) {
+        try {
+            out.write(c);
+            if (c == '\n') {
+                out.write(indent);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return this;
+    }
+
+    public CppEmitter append(int value) {
+        return append((long) value);
+    }
+
+    public CppEmitter append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+
+        int position = digits.length;
+        long remaining = Math.abs(value);
+        do {
+            digits[--position] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            digits[--position] = '-';
+        }
+
+        try {
+            out.write(digits, position, digits.length - position);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return this;
+    }
+}
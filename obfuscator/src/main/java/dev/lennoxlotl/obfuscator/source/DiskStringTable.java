@@ -0,0 +1,222 @@
+package dev.lennoxlotl.obfuscator.source;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Holds the strings of a {@link StringPool} which has outgrown its memory limit.
+ * <p>
+ * The encoded strings are appended to a data file exactly as they are laid out in the pool, so the offset of a string
+ * is its position in the file. They are found through an open addressing hash table in a memory mapped file, which
+ * keeps the hash and the offset of every string. A matching hash is confirmed by reading the string back, so neither
+ * the strings nor the table take up heap.
+ */
+class DiskStringTable implements Closeable {
+    // Marks preloaded strings which have not been requested yet
+    static final long UNUSED = 1L << 62;
+
+    // The hash and the entry of a string, empty slots have the entry 0
+    private static final int SLOT_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    // Files can only be mapped up to 2 GB
+    private static final int MAX_CAPACITY = 1 << 26;
+    // Fits the longest string the pool can encode and its terminator
+    private static final int BUFFER_SIZE = 1 << 17;
+
+    private final Path directory;
+    private final Path dataFile;
+    private final FileChannel data;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    // The bytes which have been written to the data file, the following ones are still in the write buffer
+    private long writtenLength;
+
+    private Path indexFile;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int size;
+
+    interface StringVisitor {
+        void visit(byte[] value) throws IOException;
+    }
+
+    DiskStringTable(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        dataFile = directory.resolve("strings.bin");
+        data = FileChannel.open(dataFile, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        createIndex(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return The offset of the string combined with {@link #UNUSED} or -1 if the string is not part of the table
+     */
+    long get(byte[] value) throws IOException {
+        long entry = index.getLong(findSlot(value, hash(value)) * SLOT_SIZE + 8);
+        return entry - 1;
+    }
+
+    /**
+     * Appends a string which is not part of the table yet.
+     *
+     * @return The offset of the string
+     */
+    long add(byte[] value, boolean unused) throws IOException {
+        if (writeBuffer.remaining() < value.length + 1) {
+            flush();
+        }
+        long offset = writtenLength + writeBuffer.position();
+        writeBuffer.put(value).put((byte) 0);
+
+        if ((size + 1) * 2L > capacity) {
+            grow();
+        }
+        long hash = hash(value);
+        int slot = findSlot(value, hash);
+        index.putLong(slot * SLOT_SIZE, hash);
+        index.putLong(slot * SLOT_SIZE + 8, (unused ? offset | UNUSED : offset) + 1);
+        size++;
+        return offset;
+    }
+
+    /**
+     * Removes the {@link #UNUSED} mark of a string.
+     */
+    void markUsed(byte[] value) throws IOException {
+        int slot = findSlot(value, hash(value));
+        long entry = index.getLong(slot * SLOT_SIZE + 8);
+        if (entry != 0) {
+            index.putLong(slot * SLOT_SIZE + 8, ((entry - 1) & ~UNUSED) + 1);
+        }
+    }
+
+    /**
+     * Visits the encoded strings in the order of their offsets.
+     */
+    void forEach(StringVisitor visitor) throws IOException {
+        flush();
+        byte[] value = new byte[BUFFER_SIZE];
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(dataFile))) {
+            int length = 0;
+            for (int b = in.read(); b != -1; b = in.read()) {
+                if (b != 0) {
+                    value[length++] = (byte) b;
+                    continue;
+                }
+                visitor.visit(Arrays.copyOf(value, length));
+                length = 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    private int findSlot(byte[] value, long hash) throws IOException {
+        int slot = (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+        while (true) {
+            long entry = index.getLong(slot * SLOT_SIZE + 8);
+            if (entry == 0 || (index.getLong(slot * SLOT_SIZE) == hash && matches(value, (entry - 1) & ~UNUSED))) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    /**
+     * @return Whether the string at the offset is the given one, strings never span the data file and the write buffer
+     */
+    private boolean matches(byte[] value, long offset) throws IOException {
+        ByteBuffer stored;
+        if (offset >= writtenLength) {
+            stored = writeBuffer.duplicate().position((int) (offset - writtenLength));
+        } else {
+            readBuffer.clear().limit(value.length + 1);
+            while (readBuffer.hasRemaining()) {
+                if (data.read(readBuffer, offset + readBuffer.position()) < 0) {
+                    return false;
+                }
+            }
+            stored = readBuffer.flip();
+        }
+
+        for (byte b : value) {
+            if (stored.get() != b) {
+                return false;
+            }
+        }
+        return stored.get() == 0;
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            writtenLength += data.write(writeBuffer, writtenLength);
+        }
+        writeBuffer.clear();
+    }
+
+    private void grow() throws IOException {
+        if (capacity == MAX_CAPACITY) {
+            throw new IllegalStateException("String pool exceeds " + MAX_CAPACITY / 2 + " strings");
+        }
+        MappedByteBuffer oldIndex = index;
+        Path oldIndexFile = indexFile;
+        int oldCapacity = capacity;
+        createIndex(capacity * 2);
+
+        // Strings are unique, so they only need a free slot
+        for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            long entry = oldIndex.getLong(oldSlot * SLOT_SIZE + 8);
+            if (entry == 0) {
+                continue;
+            }
+            long hash = oldIndex.getLong(oldSlot * SLOT_SIZE);
+            int slot = (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+            while (index.getLong(slot * SLOT_SIZE + 8) != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            index.putLong(slot * SLOT_SIZE, hash);
+            index.putLong(slot * SLOT_SIZE + 8, entry);
+        }
+
+        try {
+            Files.deleteIfExists(oldIndexFile);
+        } catch (IOException ignored) {
+            // Mapped files can't be deleted on every platform, the working directory is removed anyway
+        }
+    }
+
+    private void createIndex(int capacity) throws IOException {
+        this.capacity = capacity;
+        indexFile = directory.resolve("index-" + capacity + ".bin");
+        // The mapping stays valid once the channel is closed, new files are filled with zeros
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            index = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * SLOT_SIZE);
+        }
+    }
+
+    private static long hash(byte[] value) {
+        // FNV-1a, finished with the mixer of SplitMix64 to spread the bits over the slot index
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
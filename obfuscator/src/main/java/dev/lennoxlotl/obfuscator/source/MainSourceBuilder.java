@@ -2,24 +2,79 @@ package dev.lennoxlotl.obfuscator.source;
 
 import dev.lennoxlotl.obfuscator.Util;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class MainSourceBuilder {
 
     private final StringBuilder includes;
     private final StringBuilder registerMethods;
+    private final List<String> classFilenames;
+    // The optimization flag of every class source which is not compiled with the level of the build
+    private final Map<String, String> optimizationFlags = new HashMap<>();
+
+    private final Path spillDirectory;
+    private final long memoryLimit;
+    private Writer spilledIncludes;
+    private Writer spilledRegisterMethods;
 
     public MainSourceBuilder() {
+        this(null, 0);
+    }
+
+    /**
+     * @param spillDirectory Receives the generated code whenever it takes up more than the given amount of heap, null
+     *                       keeps it in memory
+     * @param memoryLimit    The heap in bytes the generated code may take up
+     */
+    public MainSourceBuilder(Path spillDirectory, long memoryLimit) {
         includes = new StringBuilder();
         registerMethods = new StringBuilder();
+        classFilenames = new ArrayList<>();
+        this.spillDirectory = spillDirectory;
+        this.memoryLimit = memoryLimit;
     }
 
     public void addHeader(String hppFilename) {
         includes.append(String.format("#include \"output/%s\"\n", hppFilename));
+        spillIfNeeded();
     }
 
-    public void registerClassMethods(int classId, String escapedClassName) {
+    /**
+     * @param optimizationFlag The optimization flag the class source is compiled with, null for the level of the build
+     */
+    public void registerClassMethods(int classId, String escapedClassName, String optimizationFlag) {
         registerMethods.append(String.format(
                 "        reg_methods[%d] = &(native_jvm::classes::__ngen_%s::__ngen_register_methods);\n",
                 classId, escapedClassName));
+        classFilenames.add(escapedClassName);
+        if (optimizationFlag != null) {
+            optimizationFlags.put(escapedClassName, optimizationFlag);
+        }
+        spillIfNeeded();
+    }
+
+    /**
+     * @return The names of all registered class sources, without extension
+     */
+    public List<String> getClassFilenames() {
+        return classFilenames;
+    }
+
+    /**
+     * @return The optimization flags of the registered class sources by their name, classes compiled with the level
+     * of the build are left out
+     */
+    public Map<String, String> getOptimizationFlags() {
+        return optimizationFlags;
     }
 
     public void registerDefine(String stringPooledClassName, String classFileName) {
@@ -29,15 +84,72 @@ public class MainSourceBuilder {
                 classFileName,
                 classFileName
         ));
+        spillIfNeeded();
+    }
+
+    private void spillIfNeeded() {
+        if (spillDirectory == null || 2L * (includes.length() + registerMethods.length()) <= memoryLimit) {
+            return;
+        }
+
+        try {
+            if (spilledIncludes == null) {
+                Files.createDirectories(spillDirectory);
+                spilledIncludes = Files.newBufferedWriter(spillDirectory.resolve("includes.cpp"));
+                spilledRegisterMethods = Files.newBufferedWriter(spillDirectory.resolve("register_code.cpp"));
+            }
+            spilledIncludes.append(includes);
+            spilledRegisterMethods.append(registerMethods);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        includes.setLength(0);
+        registerMethods.setLength(0);
     }
 
-    public String build(String nativeDir, int classCount) {
-        String template = Util.readResource("sources/native_jvm_output.cpp");
-        return Util.dynamicFormat(template, Util.createMap(
-                "register_code", registerMethods,
-                "includes", includes,
+    /**
+     * Writes the main source, code which has been spilled is copied from its file.
+     */
+    public void build(Writer out, String nativeDir, int classCount) throws IOException {
+        build(out, Util.dynamicFormat(Util.readResource("sources/native_jvm_output.cpp"), Util.createMap(
                 "native_dir", nativeDir,
                 "class_count", classCount
-        ));
+        )));
+    }
+
+    /**
+     * Writes the registration source of a shard instead of the main source, it is called by the main source of the
+     * merged shards.
+     */
+    public void buildShard(Writer out, String shardName, int classCount) throws IOException {
+        build(out, Util.dynamicFormat(Util.readResource("sources/native_jvm_shard.cpp"), Util.createMap(
+                "shard", shardName,
+                "class_count", classCount
+        )));
+    }
+
+    private void build(Writer out, String template) throws IOException {
+        if (spilledIncludes != null) {
+            spilledIncludes.close();
+            spilledRegisterMethods.close();
+        }
+
+        int includesIndex = template.indexOf("$includes");
+        int registerIndex = template.indexOf("$register_code");
+        out.write(template, 0, includesIndex);
+        writeCode(out, "includes.cpp", includes);
+        out.write(template, includesIndex + "$includes".length(), registerIndex - includesIndex - "$includes".length());
+        writeCode(out, "register_code.cpp", registerMethods);
+        out.write(template, registerIndex + "$register_code".length(),
+                template.length() - registerIndex - "$register_code".length());
+    }
+
+    private void writeCode(Writer out, String spillFilename, StringBuilder code) throws IOException {
+        if (spilledIncludes != null) {
+            try (Reader in = Files.newBufferedReader(spillDirectory.resolve(spillFilename))) {
+                in.transferTo(out);
+            }
+        }
+        out.append(code);
     }
 }
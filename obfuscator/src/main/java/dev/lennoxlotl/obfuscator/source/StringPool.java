@@ -1,26 +1,345 @@
 package dev.lennoxlotl.obfuscator.source;
 
 import dev.lennoxlotl.obfuscator.Util;
+import org.tinylog.Logger;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.stream.Collectors;
 
 public class StringPool {
+    // Rough heap size of a pooled string besides its characters: the map entry, the string and the boxed offset
+    private static final long ENTRY_OVERHEAD = 96;
+    // Strings whose offsets are kept in memory once the pool has been spilled, saves reading them back from disk
+    private static final int RECENT_STRINGS = 4096;
+    private static final String REFERENCE_PREFIX = "((char *)(string_pool + ";
+    private static final String REFERENCE_SUFFIX = "LL))";
 
     private long length;
-    private final Map<String, Long> pool;
+    private int count;
+    private int unusedCount;
+    private long unusedLength;
+    private Map<String, Long> pool;
+    private Set<String> unusedStrings;
+    private Map<String, Long> recordedStrings;
+
+    private Path spillDirectory;
+    private long memoryLimit;
+    private long memoryUsage;
+    private DiskStringTable spilledStrings;
+    private final Map<String, Long> recentStrings = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > RECENT_STRINGS;
+        }
+    };
+
+    public interface StringVisitor {
+        void visit(String value, boolean unused) throws IOException;
+    }
 
     public StringPool() {
         this.length = 0;
         this.pool = new HashMap<>();
+        this.unusedStrings = new HashSet<>();
+    }
+
+    /**
+     * Moves the pool into the directory once its strings take up more than the given amount of heap. The offsets
+     * and the written pool stay the same, looking up strings gets slower.
+     *
+     * @param memoryLimit The heap in bytes the strings may take up
+     */
+    public void spillTo(Path directory, long memoryLimit) {
+        this.spillDirectory = directory;
+        this.memoryLimit = memoryLimit;
+        if (spilledStrings == null && memoryUsage > memoryLimit) {
+            spill();
+        }
     }
 
     public String get(String value) {
-        if (!pool.containsKey(value)) {
-            pool.put(value, length);
-            length += getModifiedUtf8Bytes(value).length + 1;
+        return REFERENCE_PREFIX + getOffset(value) + REFERENCE_SUFFIX;
+    }
+
+    /**
+     * Moves the strings a class source refers to from the offsets of another pool to their offsets in this pool. The
+     * source is rewritten line by line, so it is never held in memory as a whole.
+     * <p>
+     * References are only emitted into code, strings of the class only show up in the code as references. Their text
+     * only appears in comments, which the generated sources only contain as whole {@code //} lines. Comment lines are
+     * copied as they are, so the source is the same as if the class had been transpiled with this pool.
+     *
+     * @param offsets The offsets in this pool by the offsets in the other pool
+     */
+    public static void relocate(Path source, Map<Long, Long> offsets) throws IOException {
+        Path relocated = source.resolveSibling(source.getFileName() + ".relocated");
+        try (Reader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8);
+             Writer writer = Files.newBufferedWriter(relocated, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        line.append(buffer, start, i + 1 - start);
+                        relocateLine(line.toString(), offsets, writer);
+                        line.setLength(0);
+                        start = i + 1;
+                    }
+                }
+                line.append(buffer, start, read - start);
+            }
+            relocateLine(line.toString(), offsets, writer);
+        }
+        Files.move(relocated, source, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void relocateLine(String line, Map<Long, Long> offsets, Writer writer) throws IOException {
+        if (line.stripLeading().startsWith("//")) {
+            writer.write(line);
+            return;
+        }
+
+        int end = 0;
+        for (int start = line.indexOf(REFERENCE_PREFIX); start >= 0; start = line.indexOf(REFERENCE_PREFIX, end)) {
+            int offsetStart = start + REFERENCE_PREFIX.length();
+            int offsetEnd = line.indexOf(REFERENCE_SUFFIX, offsetStart);
+            Long offset = offsetEnd < 0 ? null : parseOffset(line, offsetStart, offsetEnd);
+            Long relocated = offset == null ? null : offsets.get(offset);
+            if (relocated == null) {
+                throw new IllegalStateException("Unknown string reference in " + line.strip());
+            }
+            writer.write(line, end, offsetStart - end);
+            writer.write(String.valueOf(relocated));
+            end = offsetEnd;
+        }
+        writer.write(line, end, line.length() - end);
+    }
+
+    private static Long parseOffset(String source, int start, int end) {
+        if (start == end || end - start > 18) {
+            return null;
+        }
+        for (int i = start; i < end; i++) {
+            if (source.charAt(i) < '0' || source.charAt(i) > '9') {
+                return null;
+            }
+        }
+        return Long.parseLong(source, start, end, 10);
+    }
+    /**
+     * Adds the string to the pool if it is not part of it yet.
+     *
+     * @return The offset of the string in the pool
+     */
+    public long getOffset(String value) {
+        long offset = spilledStrings == null ? getPooledOffset(value) : getSpilledOffset(value);
+        if (recordedStrings != null) {
+            recordedStrings.putIfAbsent(value, offset);
+        }
+        return offset;
+    }
+
+    private long getPooledOffset(String value) {
+        Long offset = pool.get(value);
+        if (offset == null) {
+            return add(value, getModifiedUtf8Bytes(value), false);
+        }
+        if (!unusedStrings.isEmpty() && unusedStrings.remove(value)) {
+            markUsed(getModifiedUtf8Bytes(value).length + 1);
+        }
+        return offset;
+    }
+
+    private long getSpilledOffset(String value) {
+        Long recentOffset = recentStrings.get(value);
+        if (recentOffset != null) {
+            return recentOffset;
+        }
+
+        byte[] bytes = getModifiedUtf8Bytes(value);
+        long offset;
+        try {
+            long entry = spilledStrings.get(bytes);
+            if (entry == -1) {
+                offset = add(value, bytes, false);
+            } else {
+                offset = entry & ~DiskStringTable.UNUSED;
+                if ((entry & DiskStringTable.UNUSED) != 0) {
+                    spilledStrings.markUsed(bytes);
+                    markUsed(bytes.length + 1);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        recentStrings.put(value, offset);
+        return offset;
+    }
+
+    private long add(String value, byte[] bytes, boolean unused) {
+        long offset = length;
+        length += bytes.length + 1;
+        count++;
+        if (unused) {
+            unusedCount++;
+            unusedLength += bytes.length + 1;
+        }
+
+        if (spilledStrings != null) {
+            try {
+                spilledStrings.add(bytes, unused);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return offset;
+        }
+
+        pool.put(value, offset);
+        if (unused) {
+            unusedStrings.add(value);
+        }
+        memoryUsage += ENTRY_OVERHEAD + 2L * value.length();
+        if (spillDirectory != null && memoryUsage > memoryLimit) {
+            spill();
+        }
+        return offset;
+    }
+
+    private void markUsed(long stringLength) {
+        unusedCount--;
+        unusedLength -= stringLength;
+    }
+
+    private void spill() {
+        Logger.info("String pool exceeds {} KB of memory, moving it to {}", memoryLimit / 1024, spillDirectory);
+        List<String> layout = getLayout();
+        try {
+            spilledStrings = new DiskStringTable(spillDirectory);
+            for (String value : layout) {
+                spilledStrings.add(getModifiedUtf8Bytes(value), unusedStrings.contains(value));
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        // Cleared maps keep their tables
+        pool = new HashMap<>();
+        unusedStrings = new HashSet<>();
+        memoryUsage = 0;
+    }
+
+    /**
+     * Places strings of an earlier run at the start of the pool, so they keep their offsets as long as the layout
+     * is preloaded before any other string is added.
+     *
+     * @param layout The strings in the order of their offsets
+     */
+    public void preload(List<String> layout) {
+        for (String value : layout) {
+            byte[] bytes = getModifiedUtf8Bytes(value);
+            if (!contains(value, bytes)) {
+                add(value, bytes, true);
+            }
+        }
+    }
+
+    private boolean contains(String value, byte[] bytes) {
+        if (spilledStrings == null) {
+            return pool.containsKey(value);
+        }
+        try {
+            return spilledStrings.get(bytes) != -1;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Records every string requested from now on together with its offset, in the order of the first request.
+     */
+    public void startRecording() {
+        recordedStrings = new LinkedHashMap<>();
+    }
+
+    public Map<String, Long> stopRecording() {
+        Map<String, Long> result = recordedStrings;
+        recordedStrings = null;
+        return result;
+    }
+
+    /**
+     * @return All strings in the order of their offsets
+     */
+    public List<String> getLayout() {
+        if (spilledStrings == null) {
+            return pool.entrySet().stream()
+                    .sorted(Map.Entry.comparingByValue())
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+        }
+
+        List<String> layout = new ArrayList<>(count);
+        try {
+            forEach((value, unused) -> layout.add(value));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return layout;
+    }
+
+    /**
+     * Visits all strings in the order of their offsets, without keeping them in memory if the pool has been spilled.
+     */
+    public void forEach(StringVisitor visitor) throws IOException {
+        if (spilledStrings == null) {
+            for (String value : getLayout()) {
+                visitor.visit(value, unusedStrings.contains(value));
+            }
+            return;
+        }
+
+        spilledStrings.forEach(bytes -> visitor.visit(getModifiedUtf8String(bytes),
+            (spilledStrings.get(bytes) & DiskStringTable.UNUSED) != 0));
+    }
+
+    /**
+     * @return The amount of strings in the pool
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The amount of preloaded strings which have not been requested in this run
+     */
+    public int getUnusedCount() {
+        return unusedCount;
+    }
+
+    /**
+     * @return The amount of bytes taken by preloaded strings which have not been requested in this run
+     */
+    public long getUnusedLength() {
+        return unusedLength;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void close() throws IOException {
+        if (spilledStrings != null) {
+            spilledStrings.close();
         }
-        return String.format("((char *)(string_pool + %dLL))", pool.get(value));
     }
 
     private static byte[] getModifiedUtf8Bytes(String str) {
@@ -70,25 +389,66 @@ public class StringPool {
         return bytearr;
     }
 
-    public String build() {
-        List<Byte> bytes = new ArrayList<>();
-        pool.entrySet().stream()
-                .sorted(Map.Entry.comparingByValue())
-                .map(Map.Entry::getKey)
-                .forEach(string -> {
-                    for (byte b : getModifiedUtf8Bytes(string)) {
-                        bytes.add(b);
-                    }
-                    bytes.add((byte) 0);
-                });
+    private static String getModifiedUtf8String(byte[] bytes) {
+        char[] chars = new char[bytes.length];
+        int count = 0;
+        for (int i = 0; i < bytes.length; count++) {
+            int c = bytes[i] & 0xFF;
+            if (c < 0x80) {
+                chars[count] = (char) c;
+                i++;
+            } else if ((c & 0xE0) == 0xC0) {
+                chars[count] = (char) (((c & 0x1F) << 6) | (bytes[i + 1] & 0x3F));
+                i += 2;
+            } else {
+                chars[count] = (char) (((c & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F));
+                i += 3;
+            }
+        }
+        return new String(chars, 0, count);
+    }
 
-        String result = String.format("{ %s }", bytes.stream().map(String::valueOf)
-                .collect(Collectors.joining(", ")));
+    /**
+     * Writes the pool source, the pool is emitted as a string literal.
+     */
+    public void build(Writer out) throws IOException {
+        build(out, "native_jvm::string_pool");
+    }
 
-        String template = Util.readResource("sources/string_pool.cpp");
-        return Util.dynamicFormat(template, Util.createMap(
-                "size", bytes.size() + "LL",
-                "value", result
+    /**
+     * @param namespace The namespace of the pool, shards have one each so they can be linked together
+     */
+    public void build(Writer out, String namespace) throws IOException {
+        String template = Util.dynamicFormat(Util.readResource("sources/string_pool.cpp"), Util.createMap(
+                "namespace", namespace,
+                // The terminator of the literal is the terminator of the last string, an empty pool needs one byte
+                "size", Math.max(length, 1) + "LL"
         ));
+        int valueIndex = template.indexOf("$value");
+        out.write(template, 0, valueIndex);
+
+        ByteLiteralWriter literalWriter = new ByteLiteralWriter(out, "        ");
+        if (spilledStrings == null) {
+            List<String> layout = getLayout();
+            for (int i = 0; i < layout.size(); i++) {
+                literalWriter.write(getModifiedUtf8Bytes(layout.get(i)));
+                if (i != layout.size() - 1) {
+                    literalWriter.write(0);
+                }
+            }
+        } else {
+            // Separators are written in front of the strings, the last string is terminated by the literal
+            boolean[] first = {true};
+            spilledStrings.forEach(bytes -> {
+                if (!first[0]) {
+                    literalWriter.write(0);
+                }
+                literalWriter.write(bytes);
+                first[0] = false;
+            });
+        }
+        literalWriter.finish();
+
+        out.write(template, valueIndex + "$value".length(), template.length() - valueIndex - "$value".length());
     }
 }
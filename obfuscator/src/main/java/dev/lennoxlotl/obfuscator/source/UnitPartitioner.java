@@ -0,0 +1,128 @@
+package dev.lennoxlotl.obfuscator.source;
+
+import org.tinylog.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Groups the generated class sources into larger translation units.
+ * <p>
+ * Every translation unit parses the runtime headers again and costs a compiler process, which dominates the compile
+ * time of small classes. Every class lives in its own namespace and only includes guarded headers, so their sources
+ * can be concatenated as they are. The registration table only references the class headers, which are kept.
+ */
+public class UnitPartitioner {
+
+    /**
+     * Replaces the sources of small classes by balanced translation units of up to the given size, classes which are
+     * at least as large are compiled on their own.
+     *
+     * @param classFilenames    The names of the class sources without extension
+     * @param optimizationFlags The optimization flags of the class sources which have their own level
+     * @param sizeBudget        The maximum size of a translation unit in bytes
+     */
+    public static void partition(Path cppOutput, List<String> classFilenames, Map<String, String> optimizationFlags,
+                                 long sizeBudget) throws IOException {
+        List<ClassSource> sources = new ArrayList<>();
+        for (int i = 0; i < classFilenames.size(); i++) {
+            // Classes with their own optimization level stay in their own translation unit
+            if (optimizationFlags.containsKey(classFilenames.get(i))) {
+                continue;
+            }
+            Path file = cppOutput.resolve(classFilenames.get(i) + ".cpp");
+            long size = Files.size(file);
+            if (size < sizeBudget) {
+                sources.add(new ClassSource(i, file, size));
+            }
+        }
+
+        // Largest sources first, each into the currently smallest unit which still has room for it
+        sources.sort(Comparator.comparingLong((ClassSource source) -> source.size).reversed()
+            .thenComparingInt(source -> source.index));
+        long totalSize = sources.stream().mapToLong(source -> source.size).sum();
+        int unitCount = (int) ((totalSize + sizeBudget - 1) / sizeBudget);
+
+        List<Unit> units = new ArrayList<>();
+        PriorityQueue<Unit> smallestUnits = new PriorityQueue<>(Comparator.comparingLong((Unit unit) -> unit.size)
+            .thenComparingInt(unit -> unit.index));
+        for (int i = 0; i < unitCount; i++) {
+            Unit unit = new Unit(i);
+            units.add(unit);
+            smallestUnits.add(unit);
+        }
+        for (ClassSource source : sources) {
+            Unit unit = smallestUnits.poll();
+            if (unit == null || unit.size + source.size > sizeBudget) {
+                if (unit != null) {
+                    smallestUnits.add(unit);
+                }
+                unit = new Unit(units.size());
+                units.add(unit);
+            }
+            unit.sources.add(source);
+            unit.size += source.size;
+            smallestUnits.add(unit);
+        }
+
+        int groupedClasses = 0;
+        int groupedUnits = 0;
+        for (Unit unit : units) {
+            // A single class stays in its own file
+            if (unit.sources.size() < 2) {
+                continue;
+            }
+            unit.sources.sort(Comparator.comparingInt(source -> source.index));
+            writeUnit(cppOutput.resolve("unity_" + groupedUnits + ".cpp"), unit.sources);
+            groupedClasses += unit.sources.size();
+            groupedUnits++;
+        }
+
+        Logger.info("Grouped {} of {} classes into {} translation units", groupedClasses, classFilenames.size(),
+            groupedUnits);
+    }
+
+    private static void writeUnit(Path unitFile, List<ClassSource> sources) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(unitFile, StandardCharsets.UTF_8)) {
+            for (ClassSource source : sources) {
+                // Keeps compiler messages pointing at the original class source
+                writer.append("#line 1 \"").append(source.file.getFileName().toString()).append("\"\n");
+                writer.append(Files.readString(source.file, StandardCharsets.UTF_8));
+                writer.append("\n");
+            }
+        }
+        for (ClassSource source : sources) {
+            Files.delete(source.file);
+        }
+    }
+
+    private static class ClassSource {
+        private final int index;
+        private final Path file;
+        private final long size;
+
+        private ClassSource(int index, Path file, long size) {
+            this.index = index;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private static class Unit {
+        private final int index;
+        private final List<ClassSource> sources = new ArrayList<>();
+        private long size;
+
+        private Unit(int index) {
+            this.index = index;
+        }
+    }
+}
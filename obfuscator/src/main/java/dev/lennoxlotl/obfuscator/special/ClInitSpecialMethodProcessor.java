@@ -13,7 +13,7 @@ public class ClInitSpecialMethodProcessor implements SpecialMethodProcessor {
     public String preProcess(MethodContext context) {
         String name = String.format("special_clinit_%d_%d", context.classIndex, context.methodIndex);
 
-        context.proxyMethod = context.obfuscator.getHiddenMethodsPool().getMethod(name, "(Ljava/lang/Class;)V", methodNode -> {
+        context.proxyMethod = context.getHiddenMethodsPool().getMethod(name, "(Ljava/lang/Class;)V", methodNode -> {
             methodNode.signature = context.method.signature;
             methodNode.access = Opcodes.ACC_NATIVE | Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE;
             methodNode.visibleAnnotations = new ArrayList<>();
@@ -29,7 +29,7 @@ public class ClInitSpecialMethodProcessor implements SpecialMethodProcessor {
         instructions.clear();
         instructions.add(new LdcInsnNode(context.classIndex));
         instructions.add(new LdcInsnNode(Type.getObjectType(context.clazz.name)));
-        instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, context.obfuscator.getNativeDir() + "/Loader",
+        instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, context.classContext.getNativeDir() + "/Loader",
                 "registerNativesForClass", "(ILjava/lang/Class;)V", false));
         instructions.add(new LdcInsnNode(Type.getObjectType(context.clazz.name)));
         instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
@@ -21,7 +21,7 @@ public class DefaultSpecialMethodProcessor implements SpecialMethodProcessor {
             String resultDesc = Type.getMethodDescriptor(Type.getReturnType(context.method.desc), arguments.toArray(new Type[0]));
 
             String methodName = String.format("interfacestatic_%d_%d", context.classIndex, context.methodIndex);
-            context.proxyMethod = context.obfuscator.getHiddenMethodsPool()
+            context.proxyMethod = context.getHiddenMethodsPool()
                     .getMethod(methodName, resultDesc, methodNode -> {
                         methodNode.signature = context.method.signature;
                         methodNode.access = Opcodes.ACC_NATIVE | Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE;
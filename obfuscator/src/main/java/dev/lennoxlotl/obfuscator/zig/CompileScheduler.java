@@ -0,0 +1,137 @@
+package dev.lennoxlotl.obfuscator.zig;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs the compile and link jobs of all targets on one set of worker threads.
+ * <p>
+ * Link jobs run first since they finish a whole target, compile jobs run in the order of their estimated cost so
+ * large translation units don't end up running alone at the end of the build. A job only starts once its estimated
+ * memory fits into the memory budget, unless no other job is running.
+ */
+public class CompileScheduler implements AutoCloseable {
+
+    private final long memoryBudget;
+    private final PriorityQueue<Job> queue = new PriorityQueue<>();
+
+    private long usedMemory;
+    private int runningJobs;
+    private long submittedJobs;
+    private boolean closed;
+
+    /**
+     * @param threads      The maximum amount of jobs running at the same time
+     * @param memoryBudget The memory in bytes all running jobs may use together
+     */
+    public CompileScheduler(int threads, long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "zig-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * @param link   Whether this is a link job
+     * @param cost   The estimated cost of the job, jobs with a higher cost run first
+     * @param memory The estimated memory in bytes the job uses
+     * @return A future which completes once the job has run
+     */
+    public synchronized CompletableFuture<Void> submit(boolean link, long cost, long memory, Task task) {
+        Job job = new Job(link, cost, memory, submittedJobs++, task);
+        if (closed) {
+            job.future.completeExceptionally(new CancellationException("Scheduler has been closed"));
+        } else {
+            queue.add(job);
+            notifyAll();
+        }
+        return job.future;
+    }
+
+    /**
+     * Cancels all jobs which have not been started yet.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Job job : queue) {
+            job.future.completeExceptionally(new CancellationException("Scheduler has been closed"));
+        }
+        queue.clear();
+        notifyAll();
+    }
+
+    private void work() {
+        while (true) {
+            Job job;
+            synchronized (this) {
+                while (!closed && !canStart(queue.peek())) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                job = queue.poll();
+                usedMemory += job.memory;
+                runningJobs++;
+            }
+
+            try {
+                job.task.run();
+                job.future.complete(null);
+            } catch (Throwable ex) {
+                job.future.completeExceptionally(ex);
+            } finally {
+                synchronized (this) {
+                    usedMemory -= job.memory;
+                    runningJobs--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean canStart(Job job) {
+        return job != null && (runningJobs == 0 || usedMemory + job.memory <= memoryBudget);
+    }
+
+    @FunctionalInterface
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private static class Job implements Comparable<Job> {
+        private final boolean link;
+        private final long cost;
+        private final long memory;
+        private final long sequence;
+        private final Task task;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Job(boolean link, long cost, long memory, long sequence, Task task) {
+            this.link = link;
+            this.cost = cost;
+            this.memory = memory;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (link != other.link) {
+                return link ? -1 : 1;
+            }
+            if (cost != other.cost) {
+                return Long.compare(other.cost, cost);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package dev.lennoxlotl.obfuscator.zig;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * How the sources are optimized across translation units when they are linked into the native libraries.
+ */
+@Getter
+@RequiredArgsConstructor
+public enum LinkProfile {
+    // Every translation unit is optimized on its own
+    DEFAULT(List.of()),
+    // The linker optimizes across all translation units, so runtime helpers can be inlined into generated methods
+    THIN_LTO(List.of("-flto=thin")),
+    // Every function and variable gets a section of its own, the linker discards the sections which can't be reached
+    // from JNI_OnLoad, the only exported symbol
+    GC_SECTIONS(List.of("-ffunction-sections", "-fdata-sections", "-fvisibility=hidden"));
+
+    private final List<String> compileFlags;
+
+    /**
+     * @param compilationDir Receives the files the flags refer to
+     * @return The flags to link the library of the target with
+     */
+    public List<String> getLinkFlags(ZigCompilationTarget target, Path compilationDir) throws IOException {
+        return switch (this) {
+            case DEFAULT -> List.of();
+            case THIN_LTO -> List.of("-flto=thin");
+            case GC_SECTIONS -> {
+                String compileTarget = target.getCompileTarget();
+                if (compileTarget.contains("-macos")) {
+                    yield List.of("-Wl,-dead_strip");
+                }
+                if (compileTarget.contains("-windows")) {
+                    // Dlls only export the functions marked with JNIEXPORT
+                    yield List.of("-Wl,--gc-sections");
+                }
+                // Also keeps the symbols of the statically linked C++ runtime out of the dynamic symbol table
+                Path exports = writeVersionScript(compilationDir);
+                yield List.of("-Wl,--gc-sections", "-Wl,--version-script=" + exports.toAbsolutePath());
+            }
+        };
+    }
+
+    /**
+     * Writes the version script which only exports JNI_OnLoad.
+     *
+     * @return The written version script
+     */
+    static Path writeVersionScript(Path directory) throws IOException {
+        Path exports = directory.resolve("exports.map");
+        Files.writeString(exports, "{\n    global: JNI_OnLoad;\n    local: *;\n};\n");
+        return exports;
+    }
+}
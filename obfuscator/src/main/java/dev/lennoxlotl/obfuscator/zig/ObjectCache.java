@@ -0,0 +1,150 @@
+package dev.lennoxlotl.obfuscator.zig;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local cache of compiled object files, shared between builds.
+ * <p>
+ * Objects are stored by a hash of the compiler version, the compiler flags, the source file and every header it
+ * includes. Headers which can't be found in the source directory or the include directories belong to the compiler
+ * and are covered by its version.
+ */
+public class ObjectCache {
+    private static final Pattern INCLUDE_PATTERN = Pattern.compile("^\\s*#\\s*include\\s*([<\"])([^>\"]+)[>\"]",
+        Pattern.MULTILINE);
+
+    private final Path directory;
+    private final String compilerVersion;
+    private final List<Path> includeDirs;
+
+    // Headers are shared by most sources, so their includes and hashes are only computed once
+    private final Map<Path, List<Path>> includes = new ConcurrentHashMap<>();
+    private final Map<Path, byte[]> fileHashes = new ConcurrentHashMap<>();
+
+    public ObjectCache(Path directory, String compilerVersion, List<Path> includeDirs) throws IOException {
+        this.directory = directory;
+        this.compilerVersion = compilerVersion;
+        this.includeDirs = includeDirs;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * @param flags The compiler flags, without the source and object file
+     */
+    public String getKey(Path source, List<String> flags) throws IOException {
+        MessageDigest digest = createDigest();
+        digest.update(compilerVersion.getBytes(StandardCharsets.UTF_8));
+        for (String flag : flags) {
+            digest.update((byte) 0);
+            digest.update(flag.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Set<Path> files = new LinkedHashSet<>();
+        collectFiles(source.toAbsolutePath().normalize(), files);
+        for (Path file : files) {
+            digest.update(getFileHash(file));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return The cached object file or null if there is none for the key
+     */
+    public Path find(String key) {
+        Path objectFile = getObjectFile(key);
+        return Files.isRegularFile(objectFile) ? objectFile : null;
+    }
+
+    public void store(String key, Path objectFile) throws IOException {
+        Path cachedFile = getObjectFile(key);
+        Files.createDirectories(cachedFile.getParent());
+
+        // Copy into a temporary file first, so concurrent builds sharing the cache never link partially written files
+        Path tempFile = Files.createTempFile(cachedFile.getParent(), key, ".tmp");
+        try {
+            Files.copy(objectFile, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile, cachedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private Path getObjectFile(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + ".o");
+    }
+
+    private void collectFiles(Path file, Set<Path> files) throws IOException {
+        if (!files.add(file)) {
+            return;
+        }
+        for (Path include : getIncludes(file)) {
+            collectFiles(include, files);
+        }
+    }
+
+    private List<Path> getIncludes(Path file) throws IOException {
+        List<Path> result = includes.get(file);
+        if (result != null) {
+            return result;
+        }
+
+        result = new ArrayList<>();
+        Matcher matcher = INCLUDE_PATTERN.matcher(Files.readString(file, StandardCharsets.ISO_8859_1));
+        while (matcher.find()) {
+            Path include = resolveInclude(file, matcher.group(2), matcher.group(1).equals("\""));
+            if (include != null) {
+                result.add(include);
+            }
+        }
+        includes.put(file, result);
+        return result;
+    }
+
+    private Path resolveInclude(Path file, String name, boolean quoted) {
+        if (quoted) {
+            Path include = file.resolveSibling(name).normalize();
+            if (Files.isRegularFile(include)) {
+                return include;
+            }
+        }
+        for (Path includeDir : includeDirs) {
+            Path include = includeDir.resolve(name).toAbsolutePath().normalize();
+            if (Files.isRegularFile(include)) {
+                return include;
+            }
+        }
+        return null;
+    }
+
+    private byte[] getFileHash(Path file) throws IOException {
+        byte[] hash = fileHashes.get(file);
+        if (hash == null) {
+            hash = createDigest().digest(Files.readAllBytes(file));
+            fileHashes.put(file, hash);
+        }
+        return hash;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
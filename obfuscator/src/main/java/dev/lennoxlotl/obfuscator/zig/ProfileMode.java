@@ -0,0 +1,13 @@
+package dev.lennoxlotl.obfuscator.zig;
+
+/**
+ * How the sources are compiled with profile guided optimization.
+ */
+public enum ProfileMode {
+    // The sources are compiled without profiles
+    NONE,
+    // The libraries record a profile while they run, the compiled sources are remembered for the merged profile
+    INSTRUMENT,
+    // Every source is optimized with the profile recorded for it, sources without one are compiled as usual
+    OPTIMIZE
+}
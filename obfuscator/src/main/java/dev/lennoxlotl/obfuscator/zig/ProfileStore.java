@@ -0,0 +1,142 @@
+package dev.lennoxlotl.obfuscator.zig;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local store of the profiles recorded with instrumented libraries, shared between builds.
+ * <p>
+ * A merged profile is stored once by its own hash. Every source of the instrumented build refers to it by the hash of
+ * the source and the headers it includes, so sources which have not changed keep using their profile while changed
+ * ones are compiled without one until the workload is recorded again. The jni headers are left out of the hash, a
+ * profile recorded on the host applies to every target.
+ */
+public class ProfileStore {
+    private final Path directory;
+    // Only used to hash the sources, the jni headers are treated like compiler headers
+    private final ObjectCache sourceHashes;
+    // The sources an instrumented build has compiled
+    private final Set<String> recordedKeys = ConcurrentHashMap.newKeySet();
+
+    public ProfileStore(Path directory, String compilerVersion) throws IOException {
+        this.directory = directory;
+        sourceHashes = new ObjectCache(directory.resolve("sources"), compilerVersion, List.of());
+    }
+
+    public String getKey(Path source) throws IOException {
+        return sourceHashes.getKey(source, List.of());
+    }
+
+    /**
+     * Remembers a source of an instrumented build.
+     */
+    public void record(String key) {
+        recordedKeys.add(key);
+    }
+
+    /**
+     * Forgets the sources of earlier instrumented builds, before the sources of a new recording are compiled.
+     */
+    public void clearRecorded() throws IOException {
+        Files.deleteIfExists(getRecordedFile());
+    }
+
+    /**
+     * Adds the recorded sources to the ones saved since {@link #clearRecorded()}, the next merged profile is stored
+     * for them. A sharded build saves the sources of every shard and of the merge.
+     */
+    public void saveRecorded() throws IOException {
+        Files.createDirectories(directory);
+        Path recorded = getRecordedFile();
+        Set<String> keys = new TreeSet<>(recordedKeys);
+        if (Files.isRegularFile(recorded)) {
+            Files.readAllLines(recorded).stream().filter(key -> !key.isEmpty()).forEach(keys::add);
+        }
+        writeAtomically(recorded, String.join("\n", keys));
+    }
+
+    /**
+     * @return The profile stored for the source or null if there is none
+     */
+    public Path find(String key) throws IOException {
+        Path reference = getReferenceFile(key);
+        if (!Files.isRegularFile(reference)) {
+            return null;
+        }
+        Path profile = getProfileFile(Files.readString(reference).trim());
+        return Files.isRegularFile(profile) ? profile : null;
+    }
+
+    /**
+     * Stores a merged profile for the sources of the last instrumented build.
+     *
+     * @return The amount of sources the profile is stored for
+     */
+    public int store(Path mergedProfile) throws IOException {
+        Path recorded = getRecordedFile();
+        if (!Files.isRegularFile(recorded)) {
+            throw new IllegalStateException("No instrumented build has been recorded");
+        }
+
+        String hash = HexFormat.of().formatHex(createDigest().digest(Files.readAllBytes(mergedProfile)));
+        Path profile = getProfileFile(hash);
+        Files.createDirectories(profile.getParent());
+        Path tempFile = Files.createTempFile(profile.getParent(), hash, ".tmp");
+        try {
+            Files.copy(mergedProfile, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile, profile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+
+        List<String> keys = Files.readAllLines(recorded).stream().filter(key -> !key.isEmpty()).toList();
+        for (String key : keys) {
+            Path reference = getReferenceFile(key);
+            Files.createDirectories(reference.getParent());
+            writeAtomically(reference, hash);
+        }
+        Files.delete(recorded);
+        return keys.size();
+    }
+
+    private Path getRecordedFile() {
+        return directory.resolve("recorded.txt");
+    }
+
+    private Path getReferenceFile(String key) {
+        return directory.resolve("sources").resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private Path getProfileFile(String hash) {
+        return directory.resolve("profiles").resolve(hash + ".profdata");
+    }
+
+    // Concurrent builds sharing the store never read partially written files
+    private static void writeAtomically(Path file, String content) throws IOException {
+        Path tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(tempFile, content, StandardCharsets.UTF_8);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package dev.lennoxlotl.obfuscator.zig;
+
+import dev.lennoxlotl.obfuscator.metrics.BuildMetrics;
+import lombok.Builder;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles all targets through a generated {@code build.zig} and a single {@code zig build}, instead of a zig process
+ * per source and target. Zig hashes the sources and flags of every object itself, so sources which have not changed
+ * are taken from its cache, and runs the compile jobs of all targets on its own threads.
+ * <p>
+ * The project refers to the sources and headers relative to the output directory, so the directory can be copied and
+ * built on another machine with {@code zig build}. Archives of other builds are referred to by their absolute path.
+ */
+@Builder
+public class ZigBuildProject {
+    // The project is written for the build API of this version, it changes between releases
+    private static final String ZIG_VERSION = "0.14";
+
+    private final String compilerPath;
+    private final Path outputDir;
+    // The maximum amount of concurrent jobs, 0 lets zig decide
+    private final int threads;
+    // The memory in bytes the jobs may use together, 0 lets zig decide
+    private final long memoryLimit;
+    private final boolean hotspot;
+    // Whether the objects are bundled into a static archive instead of being linked into a library
+    private final boolean staticArchive;
+    @Builder.Default
+    private final LinkProfile linkProfile = LinkProfile.DEFAULT;
+    private final List<ZigCompilationTarget> targets;
+    // The cache directory of zig, null to keep the cache in the project directory
+    private final Path cacheDir;
+    @Builder.Default
+    private final BuildMetrics metrics = BuildMetrics.DISABLED;
+
+    private final Map<ZigCompilationTarget, Path> jniHeaders = new LinkedHashMap<>();
+    // Objects and archives which have been built before, linked after the sources
+    private final Map<ZigCompilationTarget, List<Path>> addedObjects = new LinkedHashMap<>();
+
+    /**
+     * Prepares the project directory and extracts the jni headers of every target into it.
+     */
+    public void prepare() throws IOException {
+        Path projectDir = getProjectDir();
+        Files.createDirectories(projectDir);
+        for (ZigCompilationTarget target : targets) {
+            Path targetDir = projectDir.resolve(target.getTargetName());
+            jniHeaders.put(target, ZigTargetCompiler.extractJniHeaders(target, targetDir));
+        }
+    }
+
+    /**
+     * Links an object or static archive into the library of a target after the sources.
+     */
+    public void addObject(ZigCompilationTarget target, Path object) {
+        addedObjects.computeIfAbsent(target, unused -> new ArrayList<>()).add(object.toAbsolutePath());
+    }
+
+    /**
+     * Writes the {@code build.zig} for the sources and builds it.
+     *
+     * @param sources The sources to compile for every target with their optimization flag or null for the level of
+     *                the build, linked in this order
+     * @return The list of compiled library files, in the order of the targets
+     */
+    public List<Path> build(Map<Path, String> sources) throws IOException, InterruptedException {
+        Path buildFile = outputDir.resolve("build.zig");
+        Files.writeString(buildFile, writeBuildFile(sources), StandardCharsets.UTF_8);
+
+        Path installDir = getProjectDir().resolve("out").toAbsolutePath();
+        List<String> command = new ArrayList<>(List.of(compilerPath, "build", "--prefix", installDir.toString(),
+            "--summary", "none"));
+        if (threads > 0) {
+            command.add("-j" + threads);
+        }
+        if (memoryLimit > 0) {
+            command.addAll(List.of("--maxrss", String.valueOf(memoryLimit)));
+        }
+        if (cacheDir != null) {
+            Files.createDirectories(cacheDir);
+            command.addAll(List.of("--cache-dir", cacheDir.toAbsolutePath().toString()));
+        }
+
+        Logger.info("Building {} files for {} targets with zig build", sources.size(), targets.size());
+        try (BuildMetrics.Span span = metrics.start("build", "build.zig")) {
+            span.arg("sources", sources.size()).arg("targets", targets.size());
+            runProcess(command);
+        }
+
+        List<Path> libraries = new ArrayList<>();
+        for (ZigCompilationTarget target : targets) {
+            Path library = installDir.resolve(getOutputName(target));
+            Logger.info("\u001B[93m[zig/" + target.name().toLowerCase() + "] \u001B[0mNative library compiled to {}",
+                library);
+            libraries.add(library);
+        }
+        return libraries;
+    }
+
+    private String writeBuildFile(Map<Path, String> sources) throws IOException {
+        List<String> flags = new ArrayList<>(List.of(ZigTargetCompiler.OPTIMIZATION,
+            hotspot ? "-DUSE_HOTSPOT" : "-DUSE_STANDARD"));
+        flags.addAll(linkProfile.getCompileFlags());
+
+        StringBuilder file = new StringBuilder();
+        file.append("// Generated by the native obfuscator for zig ").append(ZIG_VERSION)
+            .append(", build with `zig build`\n");
+        file.append("const std = @import(\"std\");\n\n");
+        file.append("const Target = struct {\n");
+        file.append("    name: []const u8,\n");
+        file.append("    triple: []const u8,\n");
+        file.append("    output: []const u8,\n");
+        file.append("    jni_headers: []const u8,\n");
+        file.append("    // Only exports JNI_OnLoad from the library\n");
+        file.append("    version_script: ?[]const u8 = null,\n");
+        file.append("    objects: []const []const u8 = &.{},\n");
+        file.append("};\n\n");
+        file.append("const Source = struct {\n");
+        file.append("    file: []const u8,\n");
+        file.append("    // Appended to the flags of the build, e.g. another optimization level\n");
+        file.append("    flags: []const []const u8 = &.{},\n");
+        file.append("};\n\n");
+
+        file.append("const flags = [_][]const u8{ ").append(join(flags)).append(" };\n\n");
+
+        Path versionScript = linkProfile == LinkProfile.GC_SECTIONS && !staticArchive
+            ? LinkProfile.writeVersionScript(getProjectDir()) : null;
+        file.append("const targets = [_]Target{\n");
+        for (ZigCompilationTarget target : targets) {
+            file.append("    .{ .name = ").append(quote(target.getTargetName()));
+            file.append(", .triple = ").append(quote(target.getCompileTarget()));
+            file.append(", .output = ").append(quote(getOutputName(target)));
+            file.append(", .jni_headers = ").append(quote(getPath(jniHeaders.get(target))));
+            // Windows and macOS only export the functions marked with JNIEXPORT
+            if (versionScript != null && target.getCompileTarget().contains("-linux")) {
+                file.append(", .version_script = ").append(quote(getPath(versionScript)));
+            }
+            List<Path> objects = addedObjects.get(target);
+            if (objects != null) {
+                file.append(", .objects = &.{ ").append(join(objects.stream().map(this::getPath).toList()))
+                    .append(" }");
+            }
+            file.append(" },\n");
+        }
+        file.append("};\n\n");
+
+        file.append("const sources = [_]Source{\n");
+        for (Map.Entry<Path, String> source : sources.entrySet()) {
+            file.append("    .{ .file = ").append(quote(getPath(source.getKey())));
+            String optimization = source.getValue();
+            if (optimization != null) {
+                file.append(", .flags = &.{").append(quote(optimization)).append("}");
+            }
+            file.append(" },\n");
+        }
+        file.append("};\n\n");
+
+        file.append("pub fn build(b: *std.Build) void {\n");
+        file.append("    for (targets) |target| {\n");
+        file.append("        const query = std.Target.Query.parse(.{ .arch_os_abi = target.triple }) catch unreachable;\n");
+        file.append("        const module = b.createModule(.{\n");
+        file.append("            .target = b.resolveTargetQuery(query),\n");
+        file.append("            .optimize = .ReleaseFast,\n");
+        file.append("            .link_libcpp = true,\n");
+        file.append("            .strip = true,\n");
+        file.append("        });\n");
+        file.append("        module.addIncludePath(path(b, target.jni_headers));\n");
+        file.append("        for (sources) |source| {\n");
+        file.append("            module.addCSourceFile(.{\n");
+        file.append("                .file = path(b, source.file),\n");
+        file.append("                .flags = std.mem.concat(b.allocator, []const u8, &.{ &flags, source.flags })\n");
+        file.append("                    catch @panic(\"OOM\"),\n");
+        file.append("            });\n");
+        file.append("        }\n");
+        file.append("        for (target.objects) |object| {\n");
+        file.append("            module.addObjectFile(path(b, object));\n");
+        file.append("        }\n\n");
+        file.append("        const library = b.addLibrary(.{\n");
+        file.append("            .linkage = .").append(staticArchive ? "static" : "dynamic").append(",\n");
+        file.append("            .name = target.name,\n");
+        file.append("            .root_module = module,\n");
+        file.append("        });\n");
+        switch (linkProfile) {
+            case THIN_LTO -> file.append("        library.want_lto = true;\n");
+            case GC_SECTIONS -> file.append("        library.link_gc_sections = true;\n");
+            default -> {
+            }
+        }
+        file.append("        if (target.version_script) |version_script| {\n");
+        file.append("            library.version_script = path(b, version_script);\n");
+        file.append("        }\n");
+        file.append("        b.getInstallStep().dependOn(&b.addInstallArtifact(library, .{\n");
+        file.append("            .dest_dir = .{ .override = .{ .custom = \".\" } },\n");
+        file.append("            .dest_sub_path = target.output,\n");
+        file.append("        }).step);\n");
+        file.append("    }\n");
+        file.append("}\n\n");
+
+        file.append("fn path(b: *std.Build, file: []const u8) std.Build.LazyPath {\n");
+        file.append("    return if (std.fs.path.isAbsolute(file)) .{ .cwd_relative = file } else b.path(file);\n");
+        file.append("}\n");
+        return file.toString();
+    }
+
+    /**
+     * @return The path relative to the output directory, or the absolute path if it is outside of it
+     */
+    private String getPath(Path file) {
+        Path root = outputDir.toAbsolutePath().normalize();
+        Path absolute = file.toAbsolutePath().normalize();
+        // Zig only accepts forward slashes in paths relative to the build root
+        return absolute.startsWith(root)
+            ? root.relativize(absolute).toString().replace('\\', '/')
+            : absolute.toString();
+    }
+
+    /**
+     * @return The file name of the library or of the static archive
+     */
+    private String getOutputName(ZigCompilationTarget target) {
+        return staticArchive ? target.getTargetName() + ".a" : target.getLibraryName();
+    }
+
+    private Path getProjectDir() {
+        return outputDir.resolve("zig_build");
+    }
+
+    private void runProcess(List<String> arguments) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder()
+            .command(arguments)
+            .directory(outputDir.toFile())
+            .redirectErrorStream(true)
+            .start();
+
+        // The output has to be read before waiting, a process filling up the pipe would never exit otherwise
+        String output = new String(process.getInputStream().readAllBytes());
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            Logger.error("\u001B[93m[zig] \u001B[0m" + output);
+            throw new RuntimeException("Zig build failed with exit code " + exitCode);
+        }
+    }
+
+    private static String join(List<String> values) {
+        return String.join(", ", values.stream().map(ZigBuildProject::quote).toList());
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -20,4 +20,19 @@ public enum ZigCompilationTarget {
     private final String libraryName;
     private final String jniHeaderPath;
     private final String targetName;
+
+    /**
+     * @return The target of the running JVM
+     */
+    public static ZigCompilationTarget getHost() {
+        String os = System.getProperty("os.name").toLowerCase();
+        boolean aarch64 = System.getProperty("os.arch").equals("aarch64");
+        if (os.startsWith("windows")) {
+            return aarch64 ? WINDOWS_AARCH64 : WINDOWS_X86;
+        }
+        if (os.startsWith("mac")) {
+            return aarch64 ? MACOS_AARCH64 : MACOS_X86;
+        }
+        return aarch64 ? LINUX_AARCH64 : LINUX_X86;
+    }
 }
@@ -1,39 +1,309 @@
 package dev.lennoxlotl.obfuscator.zig;
 
+import dev.lennoxlotl.obfuscator.Util;
+import dev.lennoxlotl.obfuscator.metrics.BuildMetrics;
+import me.tongfei.progressbar.ProgressBar;
+import org.tinylog.Logger;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
 
 /**
  * The main interface to compile files with zig.
+ * <p>
+ * Sources are compiled for all targets as soon as they are submitted, so classes are compiled while the remaining
+ * classes are still being transpiled. The libraries are linked once all sources are done. With a build project the
+ * sources are only collected and compiled by a single {@code zig build} at the end, see {@link ZigBuildProject}.
  */
-public class ZigCompiler {
+public class ZigCompiler implements AutoCloseable {
+    private static final String PROGRESS_PREFIX = "\u001B[32m[INFO] \u001B[93m[zig] \u001B[0m";
+    // Versions by executable and modification time, a long running process only asks once
+    private static final Map<String, String> COMPILER_VERSIONS = new ConcurrentHashMap<>();
+
+    private final Path cppDir;
+    private final List<ZigTargetCompiler> targetCompilers;
+    private final CompileScheduler scheduler;
+    // In the order they have been submitted, with their optimization flag or null for the level of the build
+    private final Map<Path, String> submittedSources = new LinkedHashMap<>();
+    // Completes with the first failed source, compiling the remaining sources would be wasted
+    private final CompletableFuture<Void> failure = new CompletableFuture<>();
+    // Receives the sources of an instrumented build, null otherwise
+    private final ProfileStore recordingStore;
+    // Compiles the sources once all are submitted, null if they are compiled as soon as they are submitted
+    private final ZigBuildProject buildProject;
+
+    private int compiledObjects;
+    private ProgressBar progressBar;
+
+    private ZigCompiler(Path cppDir, List<ZigTargetCompiler> targetCompilers, CompileScheduler scheduler,
+                        ProfileStore recordingStore, ZigBuildProject buildProject) {
+        this.cppDir = cppDir;
+        this.targetCompilers = targetCompilers;
+        this.scheduler = scheduler;
+        this.recordingStore = recordingStore;
+        this.buildProject = buildProject;
+        failure.whenComplete((unused, ex) -> scheduler.close());
+    }
 
     /**
-     * Compiles the transpiled source-code for all given targets.
+     * Prepares all given targets and starts precompiling their runtime header. The compile jobs of all targets share
+     * one scheduler, so the build is limited by the available cores and memory instead of the slowest file of each
+     * target.
      *
-     * @return The list of compiled library files
-     */
-    public static List<Path> compileWithZig(String compilerPath,
-                                            Path outputDir,
-                                            Path cppDir,
-                                            int threads,
-                                            boolean hotspot,
-                                            List<ZigCompilationTarget> targets) throws Exception {
-        List<Path> compiledLibraries = new ArrayList<>();
+     * @param cppDir        The directory of the transpiled sources, the runtime headers have to be in it already
+     * @param threads       The maximum amount of compiler processes, capped by the available cores
+     * @param memoryLimit   The memory in megabytes the compiler processes may use together, 0 to use three quarters
+     *                      of the physical memory
+     * @param staticArchive Whether the objects of every target are bundled into a static archive instead of a library
+     * @param linkProfile   How the sources are optimized across translation units, archives are only compiled for it
+     * @param profileMode   Whether the libraries are instrumented or optimized with the recorded profiles
+     * @param buildProject  Whether all sources are compiled by a generated build.zig once they have been submitted,
+     *                      not supported with a profile mode
+     * @param cacheDir      The directory of the object cache, null to disable it
+     * @param profileDir    The directory of the profile store, only used with a profile mode
+     * @param metrics       Receives the time spent on every compiled file and link
+     */
+    public static ZigCompiler start(String compilerPath,
+                                    Path outputDir,
+                                    Path cppDir,
+                                    int threads,
+                                    long memoryLimit,
+                                    boolean hotspot,
+                                    boolean staticArchive,
+                                    LinkProfile linkProfile,
+                                    ProfileMode profileMode,
+                                    boolean buildProject,
+                                    List<ZigCompilationTarget> targets,
+                                    Path cacheDir,
+                                    Path profileDir,
+                                    BuildMetrics metrics) throws IOException {
+        boolean profiled = profileMode != ProfileMode.NONE;
+        if (buildProject) {
+            if (profiled) {
+                throw new IllegalStateException("Profile guided optimization is not supported with the build project");
+            }
+            ZigBuildProject project = ZigBuildProject.builder()
+                .compilerPath(compilerPath)
+                .outputDir(outputDir)
+                .threads(threads > 0 ? Math.min(threads, Runtime.getRuntime().availableProcessors()) : 0)
+                .memoryLimit(memoryLimit << 20)
+                .hotspot(hotspot)
+                .staticArchive(staticArchive)
+                .linkProfile(linkProfile)
+                .targets(targets)
+                // Zig keeps its own cache next to the object cache, its objects are not shared with it
+                .cacheDir(cacheDir == null ? null : cacheDir.resolveSibling("zig"))
+                .metrics(metrics)
+                .build();
+            project.prepare();
+            // Zig runs the jobs itself, the scheduler has no workers
+            return new ZigCompiler(cppDir, List.of(), new CompileScheduler(0, 0), null, project);
+        }
+        String compilerVersion = cacheDir == null && !profiled ? null : getCompilerVersion(compilerPath);
+        ProfileStore profileStore = profiled ? new ProfileStore(profileDir, compilerVersion) : null;
+        List<ZigTargetCompiler> targetCompilers = new ArrayList<>();
         for (ZigCompilationTarget target : targets) {
-            Path library = ZigTargetCompiler.builder()
+            ZigTargetCompiler targetCompiler = ZigTargetCompiler.builder()
                 .compilerPath(compilerPath)
                 .outputDir(outputDir)
                 .cppDir(cppDir)
-                .threads(threads)
                 .target(target)
                 .hotspot(hotspot)
-                .build()
-                .compile();
-            compiledLibraries.add(library);
+                .staticArchive(staticArchive)
+                .linkProfile(linkProfile)
+                .profileMode(profileMode)
+                .profileStore(profileStore)
+                .cacheDir(cacheDir)
+                .compilerVersion(compilerVersion)
+                .metrics(metrics)
+                .build();
+            targetCompiler.prepare();
+            targetCompilers.add(targetCompiler);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int workers = threads > 0 ? Math.min(threads, cores) : cores;
+        long memoryBudget = memoryLimit > 0 ? memoryLimit << 20 : getPhysicalMemory() / 4 * 3;
+        Logger.info("Compiling for {} targets with {} threads", targets.size(), workers);
+
+        ZigCompiler compiler = new ZigCompiler(cppDir, targetCompilers, new CompileScheduler(workers, memoryBudget),
+            profileMode == ProfileMode.INSTRUMENT ? profileStore : null, null);
+        for (ZigTargetCompiler targetCompiler : targetCompilers) {
+            targetCompiler.start(compiler.scheduler, compiler::step);
+        }
+        return compiler;
+    }
+
+    /**
+     * Starts compiling a source with the level of the build for all targets. The source must not change afterwards.
+     */
+    public void submit(Path source) {
+        submit(source, null);
+    }
+
+    /**
+     * Starts compiling a source for all targets. The source must not change afterwards.
+     *
+     * @param optimizationFlag The optimization flag of the source, null for the level of the build
+     */
+    public void submit(Path source, String optimizationFlag) {
+        Path normalizedSource = source.toAbsolutePath().normalize();
+        if (submittedSources.containsKey(normalizedSource)) {
+            return;
+        }
+        submittedSources.put(normalizedSource, optimizationFlag);
+        for (ZigTargetCompiler targetCompiler : targetCompilers) {
+            targetCompiler.submit(source, optimizationFlag).exceptionally(ex -> {
+                failure.completeExceptionally(ex);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Links a static archive into the library of a target, after all sources which have been submitted so far.
+     */
+    public void addArchive(ZigCompilationTarget target, Path archive) {
+        if (buildProject != null) {
+            buildProject.addObject(target, archive);
+        }
+        for (ZigTargetCompiler targetCompiler : targetCompilers) {
+            if (targetCompiler.getTarget() == target) {
+                targetCompiler.addObject(archive);
+            }
+        }
+    }
+
+    /**
+     * Submits all sources in the source directory which have not been submitted yet and links the libraries once
+     * everything has been compiled.
+     *
+     * @return The list of compiled library files, in the order of the targets
+     */
+    public List<Path> finish() throws Exception {
+        try (Stream<Path> files = Files.walk(cppDir)) {
+            files.filter(path -> path.toString().endsWith(".cpp")).forEach(this::submit);
+        }
+        if (buildProject != null) {
+            return buildProject.build(submittedSources);
+        }
+
+        int compileJobs = submittedSources.size() * targetCompilers.size();
+        Logger.info("Compiling {} files for {} targets", submittedSources.size(), targetCompilers.size());
+        showProgress(compileJobs);
+
+        List<CompletableFuture<Path>> libraries = new ArrayList<>();
+        for (ZigTargetCompiler targetCompiler : targetCompilers) {
+            libraries.add(targetCompiler.link());
+        }
+
+        // Stop at the first failure instead of waiting for the remaining targets
+        libraries.forEach(library -> library.exceptionally(ex -> {
+            failure.completeExceptionally(ex);
+            return null;
+        }));
+        try {
+            CompletableFuture.anyOf(CompletableFuture.allOf(libraries.toArray(CompletableFuture[]::new)), failure).get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof Exception exception ? exception : ex;
+        } finally {
+            hideProgress();
+        }
+        if (recordingStore != null) {
+            recordingStore.saveRecorded();
+        }
+        // The profiles only apply to the sources they have been recorded with
+        if (targetCompilers.stream().anyMatch(ZigTargetCompiler::isMissingProfiles)) {
+            Logger.warn("No profile has been recorded for any of the sources, they have been compiled without " +
+                "profile guided optimization. Record the workload again with --pgo");
+        }
+        return libraries.stream().map(CompletableFuture::join).toList();
+    }
+
+    /**
+     * Cancels all compile jobs which have not been started yet.
+     */
+    @Override
+    public void close() {
+        scheduler.close();
+        hideProgress();
+    }
+
+    private synchronized void step() {
+        compiledObjects++;
+        if (progressBar != null) {
+            progressBar.step();
+        }
+    }
+
+    /**
+     * Shows the progress once transpilation is done, the progress bar would be interrupted by its log otherwise.
+     */
+    private synchronized void showProgress(int compileJobs) {
+        progressBar = Util.buildProgressbar(PROGRESS_PREFIX, compileJobs);
+        progressBar.stepTo(compiledObjects);
+    }
+
+    private synchronized void hideProgress() {
+        if (progressBar != null) {
+            progressBar.close();
+            progressBar = null;
+        }
+    }
+
+    private static long getPhysicalMemory() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+            .getTotalMemorySize();
+    }
+
+    /**
+     * @return The version printed by the zig executable
+     */
+    public static String getCompilerVersion(String compilerPath) throws IOException {
+        Path executable = Path.of(compilerPath);
+        String key = Files.isRegularFile(executable)
+            ? executable.toAbsolutePath() + ":" + Files.getLastModifiedTime(executable).toMillis()
+            : compilerPath;
+        String version = COMPILER_VERSIONS.get(key);
+        if (version == null) {
+            version = readCompilerVersion(compilerPath);
+            COMPILER_VERSIONS.put(key, version);
+        }
+        return version;
+    }
+
+    private static String readCompilerVersion(String compilerPath) throws IOException {
+        Process process = new ProcessBuilder()
+            .command(compilerPath, "version")
+            .redirectErrorStream(true)
+            .start();
+        String version = new String(process.getInputStream().readAllBytes()).trim();
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while determining the zig version");
+        }
+        if (exitCode != 0) {
+            throw new RuntimeException("Could not determine the zig version: " + version);
         }
-        return compiledLibraries;
+        return version;
     }
 }
@@ -1,20 +1,21 @@
 package dev.lennoxlotl.obfuscator.zig;
 
 import dev.lennoxlotl.obfuscator.Util;
+import dev.lennoxlotl.obfuscator.metrics.BuildMetrics;
 import lombok.Builder;
-import me.tongfei.progressbar.ProgressBar;
 import org.tinylog.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -33,121 +34,328 @@ public class ZigTargetCompiler {
         "jvmticmlr.h",
     };
 
+    // Rough upper bounds of the memory used by clang at -O3 and by the linker
+    private static final long PROCESS_MEMORY = 256L << 20;
+    private static final long COMPILE_MEMORY_PER_SOURCE_BYTE = 512;
+    private static final long LINK_MEMORY_PER_OBJECT_BYTE = 4;
+    // Sources may be submitted with another level
+    static final String OPTIMIZATION = "-O3";
+
     private final String compilerPath;
     private final Path outputDir;
     private final Path cppDir;
-    private final int threads;
     private final ZigCompilationTarget target;
     private final boolean hotspot;
+    // Whether the objects are bundled into a static archive instead of being linked into a library
+    private final boolean staticArchive;
+    @Builder.Default
+    private final LinkProfile linkProfile = LinkProfile.DEFAULT;
+    @Builder.Default
+    private final ProfileMode profileMode = ProfileMode.NONE;
+    // Holds the recorded profiles, null if the sources are compiled without profiles
+    private final ProfileStore profileStore;
+    // Directory of the object cache, null if objects should not be cached
+    private final Path cacheDir;
+    private final String compilerVersion;
+    @Builder.Default
+    private final BuildMetrics metrics = BuildMetrics.DISABLED;
+
+    // Object files in the order their sources have been submitted, linked in that order
+    private final List<CompletableFuture<Path>> objectFiles = new ArrayList<>();
+    // Objects and archives which have been built before, linked after the submitted sources
+    private final List<Path> addedObjects = new ArrayList<>();
+    private final List<String> compileFlags = new ArrayList<>();
+    private final AtomicInteger cachedObjects = new AtomicInteger();
+    private final AtomicInteger profiledSources = new AtomicInteger();
 
-    private final List<String> objectFiles = new ArrayList<>();
-    private final List<Future<Void>> compilationTasks = new ArrayList<>();
+    private ObjectCache objectCache;
+    // The flags which are part of the object cache key
+    private List<String> cacheFlags;
+    private CompileScheduler scheduler;
+    // Completes with the precompiled runtime header, or null if the sources have to be compiled without it. Only
+    // started once the first source has to be compiled, rebuilds which only reuse cached objects never need it
+    private CompletableFuture<Path> precompiledHeader;
+    // Runs for every compiled or reused object file
+    private Runnable onCompiled;
 
     /**
-     * Compiles the source files with zig.
-     *
-     * @return The path to the compiled binary
+     * Prepares the compilation directory and the compiler flags.
      */
-    public Path compile() throws Exception {
-        boolean threadingRequired = threads > 1;
-        ExecutorService executorService = threadingRequired ? Executors.newFixedThreadPool(threads) : null;
-        Path compilationDir = outputDir.resolve("zig_temp_" + target.name().toLowerCase());
+    public void prepare() throws IOException {
+        Path compilationDir = getCompilationDir();
         Files.createDirectories(compilationDir);
-        Path targetCompilationDir = compilationDir.resolve(target.getTargetName()).toAbsolutePath();
+        Path targetCompilationDir = getTargetCompilationDir();
         Files.createDirectories(targetCompilationDir);
-        Path jniDir = extractJniHeaders(compilationDir);
-
-        Stream<Path> fileStream = Files.walk(this.cppDir);
-        List<Path> files = fileStream
-            .filter(path -> path.toString().endsWith(".cpp"))
-            .toList();
-        fileStream.close();
-
-        String platformPrefix = "\u001B[93m[zig/" + target.name().toLowerCase() + "] \u001B[0m";
-        String progressPrefix = "\u001B[32m[INFO] " + platformPrefix;
-        try (ProgressBar progressBar = Util.buildProgressbar(progressPrefix, files.size())) {
-            for (Path path : files) {
-                String fullCppPath = path.toAbsolutePath().toString();
-                String fileName = path.getFileName().toString();
-                String objectFileName = targetCompilationDir.resolve(fileName + ".o")
-                    .toAbsolutePath()
-                    .toString();
-
-                objectFiles.add(objectFileName);
-
-                Runnable callable = () -> {
-                    try {
-                        runProcess(
-                            List.of(this.compilerPath,
-                                "c++",
-                                "-target", target.getCompileTarget(),
-                                "-shared",
-                                "-I" + jniDir.toAbsolutePath(),
-                                "-O3",
-                                "-s",
-                                "-c",
-                                "-o", objectFileName,
-                                "-D",
-                                hotspot ? "USE_HOTSPOT" : "USE_STANDARD",
-                                fullCppPath
-                            ),
-                            outputDir.toFile()
-                        );
-
-                        if (progressBar != null) {
-                            progressBar.step();
-                        }
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                };
-
-                if (threadingRequired) {
-                    //noinspection unchecked
-                    compilationTasks.add((Future<Void>) executorService.submit(callable));
+        Path jniDir = extractJniHeaders(target, compilationDir);
+
+        compileFlags.addAll(List.of(
+            "-target", target.getCompileTarget(),
+            "-shared",
+            "-I" + jniDir.toAbsolutePath(),
+            OPTIMIZATION,
+            "-s",
+            "-c",
+            "-D",
+            hotspot ? "USE_HOTSPOT" : "USE_STANDARD"
+        ));
+        compileFlags.addAll(linkProfile.getCompileFlags());
+        if (profileMode == ProfileMode.INSTRUMENT) {
+            compileFlags.add("-fprofile-generate");
+        }
+        // The include directory is temporary, the headers in it are part of the cache key instead
+        cacheFlags = compileFlags.stream().filter(flag -> !flag.startsWith("-I")).toList();
+        objectCache = cacheDir == null ? null : new ObjectCache(cacheDir, compilerVersion, List.of(jniDir));
+    }
+
+    /**
+     * Sources can be submitted once the compiler has been started.
+     *
+     * @param onCompiled Runs for every compiled or reused object file
+     */
+    public void start(CompileScheduler scheduler, Runnable onCompiled) {
+        this.scheduler = scheduler;
+        this.onCompiled = onCompiled;
+    }
+
+    private synchronized CompletableFuture<Path> getPrecompiledHeader() {
+        if (precompiledHeader == null) {
+            // The runtime header is precompiled first, it is the largest part of every translation unit
+            Path headerFile = getTargetCompilationDir().resolve("native_jvm.hpp.pch");
+            precompiledHeader = scheduler.submit(false, Long.MAX_VALUE, PROCESS_MEMORY, () -> precompileHeader(headerFile))
+                .thenApply(unused -> Files.isRegularFile(headerFile) ? headerFile : null);
+        }
+        return precompiledHeader;
+    }
+
+    /**
+     * Compiles a source unless its object is cached. The source must not change afterwards.
+     *
+     * @param optimization The optimization flag of the source, null for the level of the build
+     * @return The object file, fails if the source could not be compiled
+     */
+    public CompletableFuture<Path> submit(Path source, String optimization) {
+        // Looking up the object hashes the source and its headers, which is kept off the submitting thread
+        CompletableFuture<Path> objectFile = CompletableFuture.supplyAsync(() ->
+                createJob(source.toAbsolutePath(), optimization))
+            .thenCompose(job -> {
+                if (job.cachedObject != null) {
+                    return CompletableFuture.completedFuture(job.cachedObject);
+                }
+                return getPrecompiledHeader().thenCompose(header -> scheduler.submit(false, job.sourceSize,
+                        PROCESS_MEMORY + job.sourceSize * COMPILE_MEMORY_PER_SOURCE_BYTE, () -> compileSource(job, header)))
+                    .thenApply(unused -> job.objectFile);
+            });
+        objectFile.thenRun(onCompiled);
+        objectFiles.add(objectFile);
+        return objectFile;
+    }
+
+    /**
+     * @return Whether sources have been compiled with the recorded profiles, but none of them had a profile
+     */
+    public boolean isMissingProfiles() {
+        return profileMode == ProfileMode.OPTIMIZE && !objectFiles.isEmpty() && profiledSources.get() == 0;
+    }
+
+    /**
+     * Links an object or static archive into the library after the submitted sources, archives only contribute the
+     * objects which are referenced by the objects in front of them.
+     */
+    public void addObject(Path object) {
+        addedObjects.add(object.toAbsolutePath());
+    }
+
+    /**
+     * Links the library once all submitted sources have been compiled, no sources may be submitted afterwards.
+     *
+     * @return The path to the compiled binary, fails as soon as one of the sources fails
+     */
+    public CompletableFuture<Path> link() {
+        if (objectCache != null) {
+            Logger.info(getPlatformPrefix() + "Reused {} of {} cached object files", cachedObjects.get(),
+                objectFiles.size());
+        }
+
+        CompletableFuture<Path> library = new CompletableFuture<>();
+        objectFiles.forEach(objectFile -> objectFile.exceptionally(ex -> {
+            library.completeExceptionally(ex);
+            return null;
+        }));
+        CompletableFuture.allOf(objectFiles.toArray(CompletableFuture[]::new))
+            .thenCompose(unused -> {
+                List<String> objects = Stream.concat(objectFiles.stream().map(CompletableFuture::join), addedObjects.stream())
+                    .map(Path::toString)
+                    .toList();
+                return scheduler.submit(true, 0, PROCESS_MEMORY + getObjectsSize(objects) * LINK_MEMORY_PER_OBJECT_BYTE,
+                    () -> link(objects));
+            })
+            .whenComplete((unused, ex) -> {
+                if (ex != null) {
+                    library.completeExceptionally(ex);
                 } else {
-                    callable.run();
+                    library.complete(getTargetCompilationDir().resolve("target").resolve(getOutputName()));
                 }
-            }
+            });
+        return library;
+    }
 
-            if (threadingRequired) {
-                // Wait for all compiler tasks to finish
-                for (Future<Void> future : compilationTasks) {
-                    future.get();
+    private CompileJob createJob(Path source, String optimization) {
+        try {
+            String fileName = source.getFileName().toString();
+            Path objectFile = getTargetCompilationDir().resolve(fileName + ".o");
+            Path profile = null;
+            List<String> flags = optimization == null ? cacheFlags : withOptimization(cacheFlags, optimization);
+            if (profileStore != null) {
+                String profileKey = profileStore.getKey(source);
+                if (profileMode == ProfileMode.INSTRUMENT) {
+                    profileStore.record(profileKey);
+                } else if ((profile = profileStore.find(profileKey)) != null) {
+                    // Profiles are stored by their hash, so the file name identifies the profile
+                    flags = new ArrayList<>(flags);
+                    flags.add("-fprofile-use=" + profile.getFileName());
+                    profiledSources.incrementAndGet();
+                    metrics.count("zig.profiledFiles", 1);
                 }
-                executorService.shutdown();
             }
+            String cacheKey = objectCache == null ? null : objectCache.getKey(source, flags);
+            Path cachedObject = cacheKey == null ? null : objectCache.find(cacheKey);
+            if (cachedObject != null) {
+                // Cached objects are linked from the cache directly
+                cachedObjects.incrementAndGet();
+                metrics.count("zig.cachedObjects", 1);
+                return new CompileJob(source, 0, false, objectFile, optimization, profile, cacheKey,
+                    cachedObject.toAbsolutePath());
+            }
+            // The runtime header is precompiled with the level of the build, which clang only accepts for that level
+            return new CompileJob(source, Files.size(source), optimization == null && includesRuntimeHeader(source),
+                objectFile, optimization, profile, cacheKey, null);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
         }
+    }
 
-        Path targetDir = targetCompilationDir.resolve("target");
+    /**
+     * Precompiles the runtime header with the flags of the translation units. Translation units are compiled without
+     * it if this fails, the header is only an optimization.
+     */
+    private void precompileHeader(Path precompiledHeader) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(this.compilerPath);
+        command.add("c++");
+        command.addAll(compileFlags);
+        command.addAll(List.of("-x", "c++-header", "-o", precompiledHeader.toString(),
+            cppDir.resolve("native_jvm.hpp").toAbsolutePath().toString()));
+
+        try (BuildMetrics.Span span = metrics.start("precompile", "native_jvm.hpp")) {
+            span.arg("target", target.name().toLowerCase());
+            runProcess(command, outputDir.toFile(), false);
+        } catch (Exception ex) {
+            Logger.warn(getPlatformPrefix() + "Could not precompile the runtime header, compiling without it");
+            Files.deleteIfExists(precompiledHeader);
+        }
+    }
+
+    /**
+     * @param precompiledHeader The precompiled runtime header, null if the sources should be compiled without it
+     */
+    private void compileSource(CompileJob job, Path precompiledHeader) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(this.compilerPath);
+        command.add("c++");
+        command.addAll(job.optimization == null ? compileFlags : withOptimization(compileFlags, job.optimization));
+        if (precompiledHeader != null && job.includesRuntimeHeader) {
+            command.addAll(List.of("-include-pch", precompiledHeader.toString()));
+        }
+        if (job.profile != null) {
+            command.add("-fprofile-use=" + job.profile.toAbsolutePath());
+        }
+        command.addAll(List.of("-o", job.objectFile.toString(), job.source.toString()));
+        try (BuildMetrics.Span span = metrics.start("compile", job.source.getFileName().toString())) {
+            span.arg("target", target.name().toLowerCase()).arg("sourceBytes", job.sourceSize);
+            runProcess(command, outputDir.toFile());
+        }
+        metrics.count("zig.compiledFiles", 1);
+        if (job.cacheKey != null) {
+            objectCache.store(job.cacheKey, job.objectFile);
+        }
+    }
+
+    private void link(List<String> objects) throws IOException, InterruptedException {
+        String platformPrefix = getPlatformPrefix();
+        Path compilationDir = getCompilationDir();
+        Path targetDir = getTargetCompilationDir().resolve("target");
         Files.createDirectories(targetDir);
-        String outputFile = targetDir.resolve(target.getLibraryName()).toString();
-
-        Logger.info(platformPrefix + "Linking {}...", target.getLibraryName());
-        List<String> linkCommand = new ArrayList<>(
-            List.of(
-                this.compilerPath,
-                "c++",
-                "-target",
-                target.getCompileTarget(),
-                "-shared",
-                "-O3",
-                "-s",
-                "-o",
-                outputFile
-            )
-        );
-        linkCommand.addAll(objectFiles);
-        runProcess(linkCommand, outputDir.toFile());
+        String outputName = getOutputName();
+        Path outputFile = targetDir.resolve(outputName);
+
+        List<String> linkCommand;
+        if (staticArchive) {
+            Logger.info(platformPrefix + "Archiving {}...", outputName);
+            // The archiver adds to existing archives
+            Files.deleteIfExists(outputFile);
+            linkCommand = new ArrayList<>(List.of(this.compilerPath, "ar", "rcs", outputFile.toString()));
+        } else {
+            Logger.info(platformPrefix + "Linking {}...", outputName);
+            linkCommand = new ArrayList<>(
+                List.of(
+                    this.compilerPath,
+                    "c++",
+                    "-target",
+                    target.getCompileTarget(),
+                    "-shared",
+                    OPTIMIZATION,
+                    "-s",
+                    "-o",
+                    outputFile.toString()
+                )
+            );
+            linkCommand.addAll(linkProfile.getLinkFlags(target, compilationDir));
+            if (profileMode == ProfileMode.INSTRUMENT) {
+                // Links the runtime which writes the profile when the process exits
+                linkCommand.add("-fprofile-generate");
+            }
+        }
+        linkCommand.addAll(objects);
+        try (BuildMetrics.Span span = metrics.start("link", outputName)) {
+            span.arg("target", target.name().toLowerCase()).arg("objects", objects.size());
+            runProcess(linkCommand, outputDir.toFile());
+            span.arg("outputBytes", Files.size(outputFile));
+        }
 
         Files.copy(
-            targetDir.resolve(target.getLibraryName()),
-            compilationDir.resolve(target.getLibraryName()),
+            outputFile,
+            compilationDir.resolve(outputName),
             StandardCopyOption.REPLACE_EXISTING
         );
 
-        Logger.info(platformPrefix + "Native library compiled to {}", compilationDir.resolve(target.getLibraryName()));
-        return targetDir.resolve(target.getLibraryName());
+        Logger.info(platformPrefix + "Native library compiled to {}", compilationDir.resolve(outputName));
+    }
+
+    /**
+     * @return The file name of the library or of the static archive
+     */
+    private String getOutputName() {
+        return staticArchive ? target.getTargetName() + ".a" : target.getLibraryName();
+    }
+
+    ZigCompilationTarget getTarget() {
+        return target;
+    }
+
+    private Path getCompilationDir() {
+        return outputDir.resolve("zig_temp_" + target.name().toLowerCase());
+    }
+
+    private Path getTargetCompilationDir() {
+        return getCompilationDir().resolve(target.getTargetName()).toAbsolutePath();
+    }
+
+    private String getPlatformPrefix() {
+        return "\u001B[93m[zig/" + target.name().toLowerCase() + "] \u001B[0m";
+    }
+
+    private static long getObjectsSize(List<String> objects) {
+        return objects.stream().mapToLong(objectFile -> new File(objectFile).length()).sum();
     }
 
     /**
@@ -157,18 +365,29 @@ public class ZigTargetCompiler {
      * @param directory The working directory
      */
     private void runProcess(List<String> arguments, File directory) throws IOException, InterruptedException {
-        String platformPrefix = "\u001B[93m[zig/" + target.name().toLowerCase() + "] \u001B[0m";
+        runProcess(arguments, directory, true);
+    }
+
+    /**
+     * @param logErrors Whether the output of a failed process is logged as an error
+     */
+    private void runProcess(List<String> arguments, File directory, boolean logErrors)
+        throws IOException, InterruptedException {
         Process process = new ProcessBuilder()
             .command(arguments)
             .directory(directory)
+            .redirectErrorStream(true)
             .start();
 
+        // The output has to be read before waiting, a process filling up the pipe would never exit otherwise
+        String output = new String(process.getInputStream().readAllBytes());
         int exitCode = process.waitFor();
         if (exitCode != 0 && exitCode != 130) {
-            String errorOutput = new String(process.getErrorStream().readAllBytes());
-            String output = new String(process.getInputStream().readAllBytes());
-            Logger.error(platformPrefix + errorOutput);
-            Logger.info(platformPrefix + output);
+            if (logErrors) {
+                Logger.error(getPlatformPrefix() + output);
+            } else {
+                Logger.debug(getPlatformPrefix() + output);
+            }
             throw new RuntimeException("Zig process failed with exit code " + exitCode);
         }
     }
@@ -178,7 +397,7 @@ public class ZigTargetCompiler {
      *
      * @return The path to the jni headers in the file system
      */
-    private Path extractJniHeaders(Path compilationDirectory) throws IOException {
+    static Path extractJniHeaders(ZigCompilationTarget target, Path compilationDirectory) throws IOException {
         Path jniHeaders = compilationDirectory.resolve("jni_headers");
         Files.createDirectories(jniHeaders);
 
@@ -188,4 +407,50 @@ public class ZigTargetCompiler {
 
         return jniHeaders;
     }
+
+    /**
+     * @return The flags with the optimization level of the build replaced by the given one
+     */
+    private static List<String> withOptimization(List<String> flags, String optimization) {
+        return flags.stream().map(flag -> flag.equals(OPTIMIZATION) ? optimization : flag).toList();
+    }
+
+    /**
+     * Checks whether the includes at the start of a source file contain the runtime header. Forcing the precompiled
+     * header into other sources only slows them down.
+     */
+    private static boolean includesRuntimeHeader(Path source) throws IOException {
+        try (Stream<String> lines = Files.lines(source, StandardCharsets.ISO_8859_1)) {
+            return lines
+                .takeWhile(line -> line.startsWith("#"))
+                .anyMatch(line -> line.startsWith("#include") && line.contains("native_jvm.hpp\""));
+        }
+    }
+
+    private static class CompileJob {
+        private final Path source;
+        private final long sourceSize;
+        private final boolean includesRuntimeHeader;
+        private final Path objectFile;
+        // The optimization flag of the source, null if it is compiled with the level of the build
+        private final String optimization;
+        // The profile the source is optimized with, null if there is none
+        private final Path profile;
+        // Key of the object in the cache, null if objects are not cached
+        private final String cacheKey;
+        // The object found in the cache, null if the source has to be compiled
+        private final Path cachedObject;
+
+        private CompileJob(Path source, long sourceSize, boolean includesRuntimeHeader, Path objectFile,
+                           String optimization, Path profile, String cacheKey, Path cachedObject) {
+            this.source = source;
+            this.sourceSize = sourceSize;
+            this.includesRuntimeHeader = includesRuntimeHeader;
+            this.objectFile = objectFile;
+            this.optimization = optimization;
+            this.profile = profile;
+            this.cacheKey = cacheKey;
+            this.cachedObject = cachedObject;
+        }
+    }
 }
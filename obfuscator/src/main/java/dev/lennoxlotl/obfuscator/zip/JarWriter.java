@@ -0,0 +1,240 @@
+package dev.lennoxlotl.obfuscator.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a jar file directly to disk.
+ * <p>
+ * Entries of other zip files can be copied as they are, their data is transferred without being decompressed and
+ * compressed again. New entries are deflated like {@link java.util.zip.ZipOutputStream} does.
+ */
+public class JarWriter implements Closeable {
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int VERSION = 20;
+    private static final int ZIP64_VERSION = 45;
+    // Flags which describe the entry data and stay valid for copied data, sizes are always written into the header
+    private static final int COPIED_FLAGS = 0x0006 | 0x0800;
+    private static final int UTF8_FLAG = 0x0800;
+
+    private final FileChannel channel;
+    private final List<WrittenEntry> writtenEntries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    // Reused for the compressed data of every new entry
+    private final CompressedData compressedData = new CompressedData();
+    private final byte[] deflateBuffer = new byte[1 << 16];
+
+    public JarWriter(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Copies an entry of another zip file without decompressing it.
+     */
+    public void copy(ZipIndex source, ZipIndex.Entry entry) throws IOException {
+        if ((entry.getFlags() & 0x0001) != 0) {
+            throw new ZipException("Encrypted entries are not supported: " + entry.getName());
+        }
+        WrittenEntry writtenEntry = new WrittenEntry(entry.getName(), entry.getFlags() & COPIED_FLAGS,
+            entry.getMethod(), entry.getDosTime(), entry.getCrc(), entry.getCompressedSize(), entry.getSize());
+        writeLocalHeader(writtenEntry);
+        source.transferData(entry, channel);
+    }
+
+    public void write(String name, byte[] data) throws IOException {
+        crc.reset();
+        crc.update(data);
+
+        compressedData.reset();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int length = deflater.deflate(deflateBuffer);
+            compressedData.write(deflateBuffer, 0, length);
+        }
+
+        WrittenEntry writtenEntry = new WrittenEntry(name, UTF8_FLAG, ZipEntry.DEFLATED, toDosTime(LocalDateTime.now()),
+            (int) crc.getValue(), compressedData.size(), data.length);
+        writeLocalHeader(writtenEntry);
+        writeFully(compressedData.toByteBuffer());
+    }
+
+    /**
+     * Writes the central directory and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            deflater.end();
+
+            long directoryOffset = channel.position();
+            for (WrittenEntry entry : writtenEntries) {
+                writeCentralHeader(entry);
+            }
+            long directorySize = channel.position() - directoryOffset;
+
+            boolean zip64 = writtenEntries.size() >= 0xFFFF || directoryOffset >= ZIP64_MAGIC ||
+                directorySize >= ZIP64_MAGIC;
+            if (zip64) {
+                long zip64EndOffset = channel.position();
+                ByteBuffer zip64End = allocate(56 + 20);
+                zip64End.putInt(ZIP64_END_SIGNATURE).putLong(44).putShort((short) ZIP64_VERSION)
+                    .putShort((short) ZIP64_VERSION).putInt(0).putInt(0)
+                    .putLong(writtenEntries.size()).putLong(writtenEntries.size())
+                    .putLong(directorySize).putLong(directoryOffset);
+                zip64End.putInt(ZIP64_LOCATOR_SIGNATURE).putInt(0).putLong(zip64EndOffset).putInt(1);
+                writeFully(zip64End.flip());
+            }
+
+            ByteBuffer end = allocate(22);
+            end.putInt(END_SIGNATURE).putShort((short) 0).putShort((short) 0)
+                .putShort((short) Math.min(writtenEntries.size(), 0xFFFF))
+                .putShort((short) Math.min(writtenEntries.size(), 0xFFFF))
+                .putInt((int) Math.min(directorySize, ZIP64_MAGIC))
+                .putInt((int) Math.min(directoryOffset, ZIP64_MAGIC))
+                .putShort((short) 0);
+            writeFully(end.flip());
+        }
+    }
+
+    private void writeLocalHeader(WrittenEntry entry) throws IOException {
+        if (!names.add(entry.name)) {
+            throw new ZipException("duplicate entry: " + entry.name);
+        }
+        entry.localHeaderOffset = channel.position();
+        writtenEntries.add(entry);
+
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        ByteBuffer header = allocate(30 + entry.encodedName.length + (zip64 ? 20 : 0));
+        header.putInt(LOCAL_SIGNATURE)
+            .putShort((short) (zip64 ? ZIP64_VERSION : VERSION))
+            .putShort((short) entry.flags)
+            .putShort((short) entry.method)
+            .putInt(entry.dosTime)
+            .putInt(entry.crc)
+            .putInt((int) (zip64 ? ZIP64_MAGIC : entry.compressedSize))
+            .putInt((int) (zip64 ? ZIP64_MAGIC : entry.size))
+            .putShort((short) entry.encodedName.length)
+            .putShort((short) (zip64 ? 20 : 0))
+            .put(entry.encodedName);
+        if (zip64) {
+            header.putShort((short) 0x0001).putShort((short) 16).putLong(entry.size).putLong(entry.compressedSize);
+        }
+        writeFully(header.flip());
+    }
+
+    private void writeCentralHeader(WrittenEntry entry) throws IOException {
+        boolean zip64Size = entry.size >= ZIP64_MAGIC;
+        boolean zip64CompressedSize = entry.compressedSize >= ZIP64_MAGIC;
+        boolean zip64Offset = entry.localHeaderOffset >= ZIP64_MAGIC;
+        int extraSize = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+        int version = extraSize > 0 ? ZIP64_VERSION : VERSION;
+
+        ByteBuffer header = allocate(46 + entry.encodedName.length + (extraSize > 0 ? 4 + extraSize : 0));
+        header.putInt(CENTRAL_SIGNATURE)
+            .putShort((short) version)
+            .putShort((short) version)
+            .putShort((short) entry.flags)
+            .putShort((short) entry.method)
+            .putInt(entry.dosTime)
+            .putInt(entry.crc)
+            .putInt((int) (zip64CompressedSize ? ZIP64_MAGIC : entry.compressedSize))
+            .putInt((int) (zip64Size ? ZIP64_MAGIC : entry.size))
+            .putShort((short) entry.encodedName.length)
+            .putShort((short) (extraSize > 0 ? 4 + extraSize : 0))
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putInt(0)
+            .putInt((int) (zip64Offset ? ZIP64_MAGIC : entry.localHeaderOffset))
+            .put(entry.encodedName);
+        if (extraSize > 0) {
+            header.putShort((short) 0x0001).putShort((short) extraSize);
+            if (zip64Size) {
+                header.putLong(entry.size);
+            }
+            if (zip64CompressedSize) {
+                header.putLong(entry.compressedSize);
+            }
+            if (zip64Offset) {
+                header.putLong(entry.localHeaderOffset);
+            }
+        }
+        writeFully(header.flip());
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int toDosTime(LocalDateTime time) {
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16 |
+            time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    /**
+     * Gives access to the buffer without copying it.
+     */
+    private static class CompressedData extends ByteArrayOutputStream {
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private static class WrittenEntry {
+        private final String name;
+        private final byte[] encodedName;
+        private final int flags;
+        private final int method;
+        private final int dosTime;
+        private final int crc;
+        private final long compressedSize;
+        private final long size;
+        private long localHeaderOffset;
+
+        private WrittenEntry(String name, int flags, int method, int dosTime, int crc, long compressedSize, long size) {
+            this.name = name;
+            this.encodedName = name.getBytes(StandardCharsets.UTF_8);
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package dev.lennoxlotl.obfuscator.zip;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Central directory of a zip file, used to copy entries without decompressing them.
+ */
+public class ZipIndex implements Closeable {
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private final FileChannel channel;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public ZipIndex(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            readCentralDirectory();
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The entry or null if there is no entry with the name
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Transfers the compressed data of the entry.
+     */
+    void transferData(Entry entry, WritableByteChannel target) throws IOException {
+        ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_SIGNATURE) {
+            throw new ZipException("Invalid local header of " + entry.name);
+        }
+        long position = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+            + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                throw new ZipException("Unexpected end of data of " + entry.name);
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(fileSize - tailSize, tailSize);
+
+        int endPosition = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                endPosition = i;
+                break;
+            }
+        }
+        if (endPosition == -1) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long entryCount = tail.getShort(endPosition + 10) & 0xFFFF;
+        long directorySize = tail.getInt(endPosition + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(endPosition + 16) & 0xFFFFFFFFL;
+
+        long locatorPosition = fileSize - tailSize + endPosition - ZIP64_LOCATOR_SIZE;
+        if (locatorPosition >= 0 && read(locatorPosition, 4).getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+            ByteBuffer zip64End = read(read(locatorPosition, ZIP64_LOCATOR_SIZE).getLong(8), 56);
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                throw new ZipException("Invalid zip64 end of central directory");
+            }
+            entryCount = zip64End.getLong(32);
+            directorySize = zip64End.getLong(40);
+            directoryOffset = zip64End.getLong(48);
+        }
+
+        if (directorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory too large");
+        }
+        ByteBuffer directory = read(directoryOffset, (int) directorySize);
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (directory.getInt(position) != CENTRAL_SIGNATURE) {
+                throw new ZipException("Invalid central directory header");
+            }
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+
+            byte[] name = new byte[nameLength];
+            directory.get(position + 46, name);
+            Entry entry = new Entry(
+                new String(name, StandardCharsets.UTF_8),
+                directory.getShort(position + 8) & 0xFFFF,
+                directory.getShort(position + 10) & 0xFFFF,
+                directory.getInt(position + 12),
+                directory.getInt(position + 16),
+                directory.getInt(position + 20) & 0xFFFFFFFFL,
+                directory.getInt(position + 24) & 0xFFFFFFFFL,
+                directory.getInt(position + 42) & 0xFFFFFFFFL
+            );
+            readZip64Extra(entry, directory, position + 46 + nameLength, extraLength);
+            entries.putIfAbsent(entry.name, entry);
+
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * Replaces the sizes and offset which don't fit into the header by the values of the zip64 extra field.
+     */
+    private static void readZip64Extra(Entry entry, ByteBuffer directory, int position, int length) {
+        int end = position + length;
+        while (position + 4 <= end) {
+            int id = directory.getShort(position) & 0xFFFF;
+            int size = directory.getShort(position + 2) & 0xFFFF;
+            if (id == 0x0001) {
+                int field = position + 4;
+                if (entry.size == 0xFFFFFFFFL) {
+                    entry.size = directory.getLong(field);
+                    field += 8;
+                }
+                if (entry.compressedSize == 0xFFFFFFFFL) {
+                    entry.compressedSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (entry.localHeaderOffset == 0xFFFFFFFFL) {
+                    entry.localHeaderOffset = directory.getLong(field);
+                }
+                return;
+            }
+            position += 4 + size;
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    @Getter
+    public static class Entry {
+        private final String name;
+        private final int flags;
+        private final int method;
+        private final int dosTime;
+        private final int crc;
+        private long compressedSize;
+        private long size;
+        private long localHeaderOffset;
+
+        private Entry(String name, int flags, int method, int dosTime, int crc, long compressedSize, long size,
+                      long localHeaderOffset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+}
@@ -5,33 +5,53 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.Opcodes;
 
+/**
+ * Reads classes and their super classes from the class path.
+ * <p>
+ * The owning jar of every class is indexed once, super classes are memoized since every frame merge of
+ * {@link SafeClassWriter} looks up the complete hierarchy of both types. Classes of the parent are looked up in the
+ * parent first, so a parent which outlives the reader keeps its index and super classes.
+ */
 public class ClassMetadataReader {
 
-    private static class CheckSuperClassVisitor extends ClassVisitor {
-
-        String superClassName;
-
-        public CheckSuperClassVisitor() {
-            super(Opcodes.ASM7);
-        }
-
-        @Override
-        public void visit(int version, int access, String name, String signature, String superName,
-                String[] interfaces) {
-            superClassName = superName;
-        }
-    }
+    // Marks classes without super class in the memo, which can't hold null values
+    private static final String NO_SUPER_CLASS = "";
 
+    private final ClassMetadataReader parent;
     private final List<JarFile> classPath;
+    // The first jar containing each class, like a class loader searching the class path in order
+    private final Map<String, JarFile> classIndex = new HashMap<>();
+    private final Map<String, String> superClasses = new ConcurrentHashMap<>();
 
     public ClassMetadataReader(List<JarFile> classPath) {
+        this(classPath, null);
+    }
+
+    /**
+     * @param parent Comes before the class path, may be null
+     */
+    public ClassMetadataReader(List<JarFile> classPath, ClassMetadataReader parent) {
+        this.parent = parent;
         this.classPath = classPath;
+        for (JarFile file : classPath) {
+            if (file == null) {
+                continue;
+            }
+            file.stream()
+                    .map(JarEntry::getName)
+                    .filter(name -> name.endsWith(".class"))
+                    .forEach(name -> classIndex.putIfAbsent(name.substring(0, name.length() - ".class".length()), file));
+        }
     }
 
     public List<JarFile> getCp() {
@@ -39,6 +59,7 @@ public class ClassMetadataReader {
     }
 
     public ClassMetadataReader() {
+        this.parent = null;
         this.classPath = new ArrayList<>();
     }
 
@@ -61,32 +82,72 @@ public class ClassMetadataReader {
     }
 
     public byte[] getClassData(String className) throws IOException, ClassNotFoundException {
-        for (JarFile file : classPath) {
-            if (file.getEntry(className + ".class") == null) {
-                continue;
-            }
-            try (InputStream in = file.getInputStream(file.getEntry(className + ".class"))) {
-                return read(in);
-            }
+        JarFile file = getOwner(className);
+        if (file == null) {
+            throw new ClassNotFoundException(className);
+        }
+        try (InputStream in = file.getInputStream(file.getEntry(className + ".class"))) {
+            return read(in);
         }
-        throw new ClassNotFoundException(className);
+    }
+
+    /**
+     * @return The jar the class is loaded from or null if it is not on the class path
+     */
+    public JarFile getOwner(String className) {
+        JarFile owner = parent == null ? null : parent.getOwner(className);
+        return owner != null ? owner : classIndex.get(className);
     }
 
     public String getSuperClass(String type) {
         if (type.equals("java/lang/Object")) {
             return null;
         }
-        try {
-            return getSuperClassASM(type);
-        } catch (IOException | ClassNotFoundException e) {
-            return "java/lang/Object";
+        if (parent != null && parent.getOwner(type) != null) {
+            return parent.getSuperClass(type);
+        }
+        String superClass = superClasses.get(type);
+        if (superClass == null) {
+            try {
+                superClass = Objects.requireNonNullElse(getSuperClassASM(type), NO_SUPER_CLASS);
+            } catch (IOException | ClassNotFoundException e) {
+                superClass = "java/lang/Object";
+            }
+            superClasses.put(type, superClass);
         }
+        return superClass.equals(NO_SUPER_CLASS) ? null : superClass;
     }
 
     protected String getSuperClassASM(String type) throws IOException, ClassNotFoundException {
-        CheckSuperClassVisitor cv = new CheckSuperClassVisitor();
-        acceptVisitor(type, cv);
-        return cv.superClassName;
+        // Only the header is needed, the class doesn't have to be visited
+        return new ClassReader(getClassData(type)).getSuperName();
+    }
+
+    /**
+     * @return The super classes looked up so far, classes without super class are mapped to null
+     */
+    public Map<String, String> getKnownSuperClasses() {
+        Map<String, String> result = parent == null ? new HashMap<>() : parent.getKnownSuperClasses();
+        superClasses.forEach((type, superClass) -> result.put(type, superClass.equals(NO_SUPER_CLASS) ? null : superClass));
+        return result;
+    }
+
+    /**
+     * Adds super classes looked up in an earlier run. The caller has to make sure they belong to the classes on
+     * this class path.
+     */
+    public void preloadSuperClasses(Map<String, String> knownSuperClasses) {
+        Map<String, String> parentSuperClasses = new HashMap<>();
+        knownSuperClasses.forEach((type, superClass) -> {
+            if (parent != null && parent.getOwner(type) != null) {
+                parentSuperClasses.put(type, superClass);
+            } else {
+                superClasses.putIfAbsent(type, superClass == null ? NO_SUPER_CLASS : superClass);
+            }
+        });
+        if (!parentSuperClasses.isEmpty()) {
+            parent.preloadSuperClasses(parentSuperClasses);
+        }
     }
 
     public ArrayList<String> getSuperClasses(String type) {
@@ -99,10 +160,15 @@ public class ClassMetadataReader {
         return superclasses;
     }
 
+    /**
+     * Closes the jars of the class path, the parent stays open.
+     */
     public void close() {
         classPath.forEach((file) -> {
             try {
-                file.close();
+                if (file != null) {
+                    file.close();
+                }
             } catch (IOException ignored) {
             }
         });
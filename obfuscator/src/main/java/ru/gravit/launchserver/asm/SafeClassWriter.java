@@ -1,25 +1,40 @@
 package ru.gravit.launchserver.asm;
 
 import java.util.ArrayList;
+import java.util.Set;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
 public class SafeClassWriter extends ClassWriter {
 
     private final ClassMetadataReader classMetadataReader;
+    private final Set<String> resolvedTypes;
 
     public SafeClassWriter(ClassMetadataReader classMetadataReader, int flags) {
+        this(classMetadataReader, flags, null);
+    }
+
+    /**
+     * @param resolvedTypes Receives every type whose hierarchy has been looked up, may be null
+     */
+    public SafeClassWriter(ClassMetadataReader classMetadataReader, int flags, Set<String> resolvedTypes) {
         super(flags);
         this.classMetadataReader = classMetadataReader;
+        this.resolvedTypes = resolvedTypes;
     }
 
     public SafeClassWriter(ClassReader classReader, ClassMetadataReader classMetadataReader, int flags) {
         super(classReader, flags);
         this.classMetadataReader = classMetadataReader;
+        this.resolvedTypes = null;
     }
 
     @Override
     protected String getCommonSuperClass(String type1, String type2) {
+        if (resolvedTypes != null) {
+            resolvedTypes.add(type1);
+            resolvedTypes.add(type2);
+        }
         ArrayList<String> superClasses1 = classMetadataReader.getSuperClasses(type1);
         ArrayList<String> superClasses2 = classMetadataReader.getSuperClasses(type2);
         int size = Math.min(superClasses1.size(), superClasses2.size());
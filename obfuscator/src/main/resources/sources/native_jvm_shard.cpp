@@ -0,0 +1,21 @@
+#include "native_jvm.hpp"
+#include "string_pool.hpp"
+
+$includes
+
+namespace native_jvm::shards::$shard {
+
+    typedef void (* reg_method)(JNIEnv *,jclass);
+
+    reg_method reg_methods[$class_count];
+
+    void register_for_class(JNIEnv *env, jint id, jclass clazz) {
+        reg_methods[id](env, clazz);
+    }
+
+    void prepare(JNIEnv *env) {
+        char* string_pool = string_pool::get_pool();
+
+$register_code
+    }
+}
\ No newline at end of file
@@ -0,0 +1,45 @@
+#include "native_jvm.hpp"
+#include "native_jvm_output.hpp"
+
+namespace native_jvm::shards {
+$declarations
+}
+
+namespace native_jvm {
+
+    typedef void (* shard_register)(JNIEnv *, jint, jclass);
+
+    shard_register shard_registers[$shard_count] = {
+$registers
+    };
+
+    void register_for_class(JNIEnv *env, jclass, jint id, jclass clazz) {
+        // Class ids are handed out to the shards in turns
+        shard_registers[id % $shard_count](env, id / $shard_count, clazz);
+    }
+
+    void prepare_lib(JNIEnv *env) {
+        utils::init_utils(env);
+        if (env->ExceptionCheck())
+            return;
+
+$prepare_code
+
+        if (env->ExceptionCheck())
+            return;
+
+        char method_name[] = "registerNativesForClass";
+        char method_desc[] = "(ILjava/lang/Class;)V";
+        JNINativeMethod loader_methods[] = {
+            { (char *) method_name, (char *) method_desc, (void *)&register_for_class }
+        };
+        env->RegisterNatives(env->FindClass("$native_dir/Loader"), loader_methods, 1);
+    }
+}
+
+extern "C" JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env = nullptr;
+    vm->GetEnv((void **)&env, JNI_VERSION_1_8);
+    native_jvm::prepare_lib(env);
+    return JNI_VERSION_1_8;
+}
\ No newline at end of file
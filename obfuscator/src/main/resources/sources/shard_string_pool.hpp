@@ -0,0 +1,13 @@
+#ifndef STRING_POOL_HPP_GUARD
+
+#define STRING_POOL_HPP_GUARD
+
+namespace native_jvm::shards::$shard::string_pool {
+    char *get_pool();
+}
+
+namespace native_jvm {
+    namespace string_pool = shards::$shard::string_pool;
+}
+
+#endif
\ No newline at end of file
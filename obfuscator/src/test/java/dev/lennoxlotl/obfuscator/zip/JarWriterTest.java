@@ -0,0 +1,287 @@
+package dev.lennoxlotl.obfuscator.zip;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round-trips jars through {@link JarWriter} and reads them back with {@link JarFile}, which checks the central
+ * directory, and with {@link JarInputStream}, which only reads the local headers.
+ */
+class JarWriterTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void copiesAndWritesEntries() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("dev/Deflated.class", "deflated ".repeat(1000).getBytes(StandardCharsets.UTF_8));
+        entries.put("dev/Stored.txt", "stored".getBytes(StandardCharsets.UTF_8));
+        entries.put("dev/\u00fcnicode.txt", "unicode".getBytes(StandardCharsets.UTF_8));
+        entries.put("dev/Empty.txt", new byte[0]);
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "dev.Main");
+        Path source = directory.resolve("source.jar");
+        // Deflated entries are followed by a data descriptor, which is not copied
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(source), manifest)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                JarEntry jarEntry = new JarEntry(entry.getKey());
+                if (entry.getKey().endsWith("Stored.txt")) {
+                    jarEntry.setMethod(ZipEntry.STORED);
+                    jarEntry.setSize(entry.getValue().length);
+                    jarEntry.setCrc(crc(entry.getValue()));
+                }
+                out.putNextEntry(jarEntry);
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+
+        byte[] written = "written ".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        Path target = directory.resolve("target.jar");
+        try (ZipIndex index = new ZipIndex(source);
+             JarWriter out = new JarWriter(target)) {
+            out.copy(index, index.getEntry(JarFile.MANIFEST_NAME));
+            for (String name : entries.keySet()) {
+                out.copy(index, index.getEntry(name));
+            }
+            out.write("dev/Written.class", written);
+        }
+        entries.put("dev/Written.class", written);
+
+        try (JarFile jar = new JarFile(target.toFile())) {
+            assertEquals("dev.Main", jar.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS));
+            assertEquals(entries.size() + 1, jar.size());
+            assertEquals(ZipEntry.STORED, jar.getEntry("dev/Stored.txt").getMethod());
+            assertEquals(ZipEntry.DEFLATED, jar.getEntry("dev/Deflated.class").getMethod());
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                assertArrayEquals(entry.getValue(), read(jar, entry.getKey()), entry.getKey());
+            }
+        }
+
+        try (JarInputStream in = new JarInputStream(Files.newInputStream(target))) {
+            assertEquals("dev.Main", in.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS));
+            Map<String, byte[]> streamed = new LinkedHashMap<>();
+            for (JarEntry entry = in.getNextJarEntry(); entry != null; entry = in.getNextJarEntry()) {
+                streamed.put(entry.getName(), in.readAllBytes());
+            }
+            assertEquals(entries.keySet(), streamed.keySet());
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                assertArrayEquals(entry.getValue(), streamed.get(entry.getKey()), entry.getKey());
+            }
+        }
+    }
+
+    @Test
+    void writesZip64EndRecordsForManyEntries() throws IOException {
+        // More entries than the end of central directory record can count
+        int count = 0x10000 + 10;
+        Path source = directory.resolve("source.jar");
+        try (JarWriter out = new JarWriter(source)) {
+            for (int i = 0; i < count; i++) {
+                out.write("entry" + i, data(i));
+            }
+        }
+
+        // Read back by the index, which has to find the zip64 end of central directory record
+        Path target = directory.resolve("target.jar");
+        try (ZipIndex index = new ZipIndex(source);
+             JarWriter out = new JarWriter(target)) {
+            for (int i = 0; i < count; i++) {
+                out.copy(index, index.getEntry("entry" + i));
+            }
+        }
+
+        for (Path jarPath : List.of(source, target)) {
+            try (JarFile jar = new JarFile(jarPath.toFile())) {
+                assertEquals(count, jar.size());
+                for (int i : new int[]{0, 0xFFFE, 0xFFFF, 0x10000, count - 1}) {
+                    assertArrayEquals(data(i), read(jar, "entry" + i));
+                }
+            }
+        }
+
+        try (JarInputStream in = new JarInputStream(Files.newInputStream(target))) {
+            int streamed = 0;
+            for (JarEntry entry = in.getNextJarEntry(); entry != null; entry = in.getNextJarEntry()) {
+                assertArrayEquals(data(streamed), in.readAllBytes(), entry.getName());
+                streamed++;
+            }
+            assertEquals(count, streamed);
+        }
+    }
+
+    @Test
+    void copiesEntriesWithZip64Extras() throws IOException {
+        // Small entries whose headers defer their sizes and offsets to the zip64 extra field, like larger ones do
+        byte[] first = "first entry".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "second entry".getBytes(StandardCharsets.UTF_8);
+        Path source = directory.resolve("source.jar");
+        Files.write(source, writeZip64Archive(List.of("first.txt", "second.txt"), List.of(first, second)));
+        try (JarFile jar = new JarFile(source.toFile())) {
+            assertArrayEquals(second, read(jar, "second.txt"));
+        }
+
+        Path target = directory.resolve("target.jar");
+        try (ZipIndex index = new ZipIndex(source);
+             JarWriter out = new JarWriter(target)) {
+            assertEquals(first.length, index.getEntry("first.txt").getSize());
+            assertEquals(first.length, index.getEntry("first.txt").getCompressedSize());
+            assertEquals(0, index.getEntry("first.txt").getLocalHeaderOffset());
+            assertEquals(30 + "first.txt".length() + 20 + first.length,
+                index.getEntry("second.txt").getLocalHeaderOffset());
+            out.copy(index, index.getEntry("first.txt"));
+            out.copy(index, index.getEntry("second.txt"));
+        }
+
+        try (JarFile jar = new JarFile(target.toFile())) {
+            assertEquals(crc(first), jar.getEntry("first.txt").getCrc());
+            assertArrayEquals(first, read(jar, "first.txt"));
+            assertArrayEquals(second, read(jar, "second.txt"));
+        }
+
+        try (JarInputStream in = new JarInputStream(Files.newInputStream(target))) {
+            assertEquals("first.txt", in.getNextJarEntry().getName());
+            assertArrayEquals(first, in.readAllBytes());
+            assertEquals("second.txt", in.getNextJarEntry().getName());
+            assertArrayEquals(second, in.readAllBytes());
+            assertNull(in.getNextJarEntry());
+        }
+    }
+
+    @Test
+    @Tag("slow")
+    void copiesEntriesLargerThan4GiB() throws IOException {
+        // Zeros compress well, so the entry is larger than 4 GiB while its data only takes a few megabytes
+        long size = 0x1_0000_0000L + 0x10_0000L;
+        byte[] chunk = new byte[0x10_0000];
+        CRC32 crc = new CRC32();
+        byte[] small = "after the large entry".getBytes(StandardCharsets.UTF_8);
+        Path source = directory.resolve("source.jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(source))) {
+            out.setLevel(Deflater.BEST_SPEED);
+            out.putNextEntry(new ZipEntry("large.bin"));
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk);
+                crc.update(chunk);
+            }
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("small.txt"));
+            out.write(small);
+            out.closeEntry();
+        }
+
+        Path target = directory.resolve("target.jar");
+        try (ZipIndex index = new ZipIndex(source);
+             JarWriter out = new JarWriter(target)) {
+            assertEquals(size, index.getEntry("large.bin").getSize());
+            out.copy(index, index.getEntry("large.bin"));
+            out.copy(index, index.getEntry("small.txt"));
+        }
+
+        try (JarFile jar = new JarFile(target.toFile())) {
+            ZipEntry large = jar.getEntry("large.bin");
+            assertEquals(size, large.getSize());
+            assertEquals(crc.getValue(), large.getCrc());
+            try (InputStream in = jar.getInputStream(large)) {
+                assertArrayEquals(chunk, in.readNBytes(chunk.length));
+            }
+            assertArrayEquals(small, read(jar, "small.txt"));
+        }
+
+        // The local header of the large entry carries its sizes in a zip64 extra field
+        try (JarInputStream in = new JarInputStream(Files.newInputStream(target))) {
+            assertEquals("large.bin", in.getNextJarEntry().getName());
+            JarEntry entry = in.getNextJarEntry();
+            assertEquals("small.txt", entry.getName());
+            assertArrayEquals(small, in.readAllBytes());
+            assertNull(in.getNextJarEntry());
+        }
+
+        try (ZipIndex index = new ZipIndex(target)) {
+            assertEquals(size, index.getEntry("large.bin").getSize());
+            assertEquals(small.length, index.getEntry("small.txt").getSize());
+        }
+    }
+
+    /**
+     * Writes stored entries with 0xFFFFFFFF as their sizes and offsets, the values are only in the zip64 extra fields.
+     */
+    private static byte[] writeZip64Archive(List<String> names, List<byte[]> contents) {
+        ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        long[] offsets = new long[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+            byte[] data = contents.get(i);
+            offsets[i] = buffer.position();
+            buffer.putInt(0x04034b50).putShort((short) 45).putShort((short) 0).putShort((short) ZipEntry.STORED)
+                .putShort((short) 0).putShort((short) 0x21).putInt((int) crc(data))
+                .putInt(0xFFFFFFFF).putInt(0xFFFFFFFF).putShort((short) name.length).putShort((short) 20)
+                .put(name)
+                .putShort((short) 0x0001).putShort((short) 16).putLong(data.length).putLong(data.length)
+                .put(data);
+        }
+
+        int directoryOffset = buffer.position();
+        for (int i = 0; i < names.size(); i++) {
+            byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+            byte[] data = contents.get(i);
+            buffer.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0)
+                .putShort((short) ZipEntry.STORED).putShort((short) 0).putShort((short) 0x21).putInt((int) crc(data))
+                .putInt(0xFFFFFFFF).putInt(0xFFFFFFFF).putShort((short) name.length).putShort((short) 28)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0).putInt(0xFFFFFFFF)
+                .put(name)
+                .putShort((short) 0x0001).putShort((short) 24).putLong(data.length).putLong(data.length)
+                .putLong(offsets[i]);
+        }
+
+        int directorySize = buffer.position() - directoryOffset;
+        buffer.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) names.size())
+            .putShort((short) names.size()).putInt(directorySize).putInt(directoryOffset).putShort((short) 0);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] read(JarFile jar, String name) throws IOException {
+        ZipEntry entry = jar.getEntry(name);
+        assertNotNull(entry, name);
+        try (InputStream in = jar.getInputStream(entry)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] data(int index) {
+        return ("entry data " + index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+}
@@ -1 +1 @@
-include("obfuscator", "annotations")
\ No newline at end of file
+include("obfuscator", "annotations", "benchmarks")
\ No newline at end of file